@@ -85,6 +85,28 @@ describe("ContextEngineer sparse retrieval", () => {
     consoleError.mockRestore();
   });
 
+  test("counts tokens natively only when the model tokenizer is loaded", async () => {
+    const llmService = {
+      embed: jest.fn(),
+      generate: jest.fn(),
+      countTokens: jest.fn().mockResolvedValue(7),
+      hasNativeTokenizer: jest.fn().mockReturnValue(false),
+    };
+    const engineer = createEngineer({
+      vectorStore: { searchVectors: jest.fn() },
+      llmService,
+    });
+    const estimate = jest.spyOn(engineer, "_estimateTokens");
+
+    await engineer._countTokens("some summary text");
+    expect(llmService.countTokens).not.toHaveBeenCalled();
+    expect(estimate).toHaveBeenCalledWith("some summary text");
+
+    llmService.hasNativeTokenizer.mockReturnValue(true);
+    await expect(engineer._countTokens("some summary text")).resolves.toBe(7);
+    expect(llmService.countTokens).toHaveBeenCalledWith("some summary text");
+  });
+
   test("throws when vector store is missing", () => {
     expect(() =>
       createEngineer({
@@ -0,0 +1,88 @@
+import {
+  decodeBase64,
+  decodeFloat32Base64,
+  dequantizeInt8,
+  hammingDistance,
+  unpackEmbeddings,
+  unpackQuantizedEmbeddings,
+  unpackTokens,
+} from "../src/utils/embeddingCodec";
+
+const encodeFloats = (values) =>
+  Buffer.from(new Float32Array(values).buffer).toString("base64");
+
+describe("embeddingCodec", () => {
+  test("decodes base64 with and without padding", () => {
+    expect(Array.from(decodeBase64("aGk="))).toEqual([104, 105]);
+    expect(Array.from(decodeBase64("aGkh"))).toEqual([104, 105, 33]);
+    expect(decodeBase64("").length).toBe(0);
+  });
+
+  test("round-trips packed float32 values", () => {
+    const values = [0.5, -1.25, 3.75, 0];
+    expect(Array.from(decodeFloat32Base64(encodeFloats(values)))).toEqual(
+      values,
+    );
+  });
+
+  test("splits a packed batch into per-text views", () => {
+    const vectors = unpackEmbeddings({
+      data: encodeFloats([1, 2, 3, 4, 5, 6]),
+      dimension: 3,
+      count: 2,
+    });
+    expect(vectors.map((v) => Array.from(v))).toEqual([
+      [1, 2, 3],
+      [4, 5, 6],
+    ]);
+  });
+
+  test("unpacks int8 batches with per-vector scales", () => {
+    const entries = unpackQuantizedEmbeddings({
+      data: Buffer.from(new Int8Array([127, -64, 0, 10, 20, -30])).toString(
+        "base64",
+      ),
+      encoding: "int8-base64",
+      dimension: 3,
+      count: 2,
+      scales: [0.5, 0.25],
+    });
+    expect(Array.from(entries[0].codes)).toEqual([127, -64, 0]);
+    expect(Array.from(dequantizeInt8(entries[0]))).toEqual([63.5, -32, 0]);
+    expect(Array.from(dequantizeInt8(entries[1]))).toEqual([2.5, 5, -7.5]);
+  });
+
+  test("unpacks binary batches and compares them by Hamming distance", () => {
+    const entries = unpackQuantizedEmbeddings({
+      data: Buffer.from([0b00000101, 0b1, 0b00000110, 0b0]).toString(
+        "base64",
+      ),
+      encoding: "binary-base64",
+      dimension: 9,
+      count: 2,
+    });
+    expect(entries).toHaveLength(2);
+    expect(hammingDistance(entries[0].bits, entries[1].bits)).toBe(3);
+    expect(hammingDistance(entries[0].bits, entries[0].bits)).toBe(0);
+  });
+
+  test("splits packed token ids by per-text counts", () => {
+    const data = Buffer.from(new Int32Array([1, 15043, 2, 7]).buffer).toString(
+      "base64",
+    );
+    const tokens = unpackTokens({
+      data,
+      encoding: "int32le-base64",
+      counts: [3, 0, 1],
+    });
+    expect(tokens.map((t) => Array.from(t))).toEqual([[1, 15043, 2], [], [7]]);
+  });
+
+  test("rejects malformed payloads", () => {
+    expect(() => decodeBase64("a$==")).toThrow("Invalid base64");
+    expect(() => decodeFloat32Base64("aGk=")).toThrow("multiple of 4");
+    expect(() =>
+      unpackQuantizedEmbeddings({ data: "", encoding: "fp8", count: 0 }),
+    ).toThrow("Unsupported embedding encoding");
+  });
+});
@@ -7,7 +7,15 @@ jest.mock("../src/utils/modelDownloader", () => ({
   ensureModelDownloaded: jest.fn().mockResolvedValue("/mock/model"),
 }));
 
+const mockTokenListeners = [];
+
 jest.mock("react-native", () => ({
+  NativeEventEmitter: jest.fn(() => ({
+    addListener: jest.fn((_event, listener) => {
+      mockTokenListeners.push(listener);
+      return { remove: jest.fn() };
+    }),
+  })),
   NativeModules: {
     LlamaTurboModule: {
       loadModel: jest.fn().mockResolvedValue(true),
@@ -46,4 +54,83 @@ describe("LLMService", () => {
     );
     expect(NativeModules.LlamaTurboModule.generate).toHaveBeenCalled();
   });
+
+  test("streams tokens for the matching request id", async () => {
+    llmService.isReady = true;
+    NativeModules.LlamaTurboModule.generate.mockImplementationOnce(
+      async (_prompt, options) => {
+        mockTokenListeners.forEach((listener) => {
+          listener({ requestId: "other", text: "ignored" });
+          listener({ requestId: options.requestId, text: "Hel" });
+          listener({ requestId: options.requestId, text: "lo" });
+        });
+        return { text: "Hello", tokens: 2, tokensPerSecond: 10 };
+      },
+    );
+
+    const chunks = [];
+    const summary = await llmService.generateStream("Hi", (t) =>
+      chunks.push(t),
+    );
+
+    expect(chunks).toEqual(["Hel", "lo"]);
+    expect(summary.text).toBe("Hello");
+    expect(NativeModules.LlamaTurboModule.generate).toHaveBeenCalledWith(
+      "Hi",
+      expect.objectContaining({ stream: true, requestId: expect.any(String) }),
+    );
+  });
+
+  test("unpacks batched embeddings into one vector per text", async () => {
+    llmService.isReady = true;
+    NativeModules.LlamaTurboModule.embedBatch = jest.fn().mockResolvedValue({
+      dimension: 2,
+      count: 2,
+      embeddings: [0.1, 0.2, 0.3, 0.4],
+      timings: [],
+    });
+
+    const vectors = await llmService.embedBatch(["a", "b"]);
+
+    expect(vectors).toEqual([
+      [0.1, 0.2],
+      [0.3, 0.4],
+    ]);
+    expect(NativeModules.LlamaTurboModule.embedBatch).toHaveBeenCalledTimes(1);
+  });
+
+  test("constrains JSON generation with the schema", async () => {
+    const schema = {
+      type: "object",
+      properties: { city: { type: "string" } },
+      required: ["city"],
+    };
+    NativeModules.LlamaTurboModule.generate.mockResolvedValueOnce({
+      text: '{"city": "Paris"}',
+    });
+
+    const { value } = await llmService.generateJSON("Where?", schema);
+
+    expect(value).toEqual({ city: "Paris" });
+    expect(NativeModules.LlamaTurboModule.generate).toHaveBeenCalledWith(
+      "Where?",
+      expect.objectContaining({ jsonSchema: schema }),
+    );
+  });
+
+  test("forwards memory trim events and reloads after an unload", () => {
+    const stages = [];
+    const subscription = llmService.onMemoryTrim((event) =>
+      stages.push(event.stage),
+    );
+    llmService.isReady = true;
+
+    mockTokenListeners.forEach((listener) =>
+      listener({ stage: "unloadModel", level: 80, unloaded: ["default"] }),
+    );
+    subscription.remove();
+
+    expect(stages).toEqual(["unloadModel"]);
+    expect(llmService.isReady).toBe(false);
+  });
 });
@@ -1,13 +1,32 @@
 #include "llama.h"
 #include "mobile_quant.h"
 #include <algorithm>
+#include <atomic>
+#include <cerrno>
 #include <chrono>
 #include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <deque>
+#include <fcntl.h>
 #include <functional>
 #include <jni.h>
+#include <malloc.h>
+#include <memory>
 #include <mutex>
+#include <random>
+#include <sched.h>
 #include <string>
+#include <stdexcept>
+#include <sys/mman.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
 #include <thread>
+#include <unordered_map>
+#include <unordered_set>
+#include <unistd.h>
 #include <vector>
 
 template <typename R>
@@ -23,6 +42,316 @@ R jniWithCtx(JNIEnv *env, jlong ctx_ptr, R defaultValue,
   }
 }
 
+// Invoked for every sampled token while a generation is running. The piece is
+// the detokenized text for the token and may hold an incomplete UTF-8 sequence.
+using TokenCallback = std::function<void(llama_token, const std::string &)>;
+
+// Sequence ids 1..kMaxEmbedSequences are used for batched embedding; sequence
+// 0 holds the chat conversation. The kMaxBatchSequences ids after those are
+// handed out to independent prompts decoded by the continuous batcher.
+constexpr int kMaxEmbedSequences = 16;
+constexpr int kMaxBatchSequences = 8;
+constexpr int kFirstBatchSequence = kMaxEmbedSequences + 1;
+
+// A prompt waiting to join the continuous batch.
+struct BatchRequest {
+  int64_t request_id = 0;
+  std::string prompt;
+  int max_tokens = 0;
+  float temperature = 0.0f;
+  uint32_t seed = 0;
+};
+
+// A prompt decoding in the continuous batch. Prompt tokens are fed in chunks
+// (prefill) until |n_fed| reaches |tokens.size()|; afterwards one sampled
+// token is fed per step.
+struct BatchSequence {
+  BatchRequest request;
+  llama_seq_id seq = 0;
+  std::vector<llama_token> tokens;
+  size_t n_fed = 0;
+  int n_generated = 0;
+  int logits_index = -1;
+  std::string text;
+  std::mt19937 rng;
+  bool done = false;
+  // "eos", "length", "cancelled" or "error" once done.
+  const char *finish_reason = "length";
+};
+
+// Text and finish reason of a sequence that left the batch.
+struct BatchResult {
+  std::string text;
+  const char *finish_reason = "length";
+};
+
+// Counters for prompt-prefix reuse across generate calls. Atomic so they can
+// be read without waiting for the context mutex.
+struct PrefixCacheStats {
+  std::atomic<int64_t> lookups{0};
+  std::atomic<int64_t> hits{0};
+  std::atomic<int64_t> tokens_reused{0};
+  std::atomic<int64_t> tokens_evaluated{0};
+};
+
+// Latency histogram with fixed bucket bounds, so recording is a bounded scan
+// and a few relaxed atomic adds with no allocation. Percentiles resolve to the
+// upper bound of the bucket holding the requested rank, clamped to the
+// largest sample seen.
+class LatencyHistogram {
+public:
+  static constexpr int kBuckets = 25;
+
+  void record(int64_t us) {
+    int b = 0;
+    while (b < kBuckets - 1 && us > kBoundsUs[b]) {
+      b++;
+    }
+    buckets_[b].fetch_add(1, std::memory_order_relaxed);
+    count_.fetch_add(1, std::memory_order_relaxed);
+    sum_us_.fetch_add(us, std::memory_order_relaxed);
+    int64_t prev = max_us_.load(std::memory_order_relaxed);
+    while (us > prev && !max_us_.compare_exchange_weak(
+                            prev, us, std::memory_order_relaxed)) {
+    }
+  }
+
+  int64_t count() const { return count_.load(std::memory_order_relaxed); }
+  int64_t sum_us() const { return sum_us_.load(std::memory_order_relaxed); }
+  int64_t max_us() const { return max_us_.load(std::memory_order_relaxed); }
+
+  int64_t percentile_us(double q) const {
+    const int64_t total = count();
+    if (total == 0) {
+      return 0;
+    }
+    const auto rank = static_cast<int64_t>(std::ceil(q * total));
+    int64_t seen = 0;
+    for (int b = 0; b < kBuckets; b++) {
+      seen += buckets_[b].load(std::memory_order_relaxed);
+      if (seen >= rank) {
+        return std::min(kBoundsUs[b], max_us());
+      }
+    }
+    return max_us();
+  }
+
+  void reset() {
+    for (auto &bucket : buckets_) {
+      bucket.store(0, std::memory_order_relaxed);
+    }
+    count_.store(0, std::memory_order_relaxed);
+    sum_us_.store(0, std::memory_order_relaxed);
+    max_us_.store(0, std::memory_order_relaxed);
+  }
+
+private:
+  // Upper bounds in microseconds; the last bucket is open-ended.
+  static constexpr int64_t kBoundsUs[kBuckets] = {
+      250,     500,     1000,    2000,    3000,     5000,    7500,
+      10000,   15000,   20000,   30000,   50000,    75000,   100000,
+      150000,  200000,  300000,  500000,  750000,   1000000, 2000000,
+      5000000, 10000000, 30000000, INT64_MAX};
+
+  std::atomic<int64_t> buckets_[kBuckets]{};
+  std::atomic<int64_t> count_{0};
+  std::atomic<int64_t> sum_us_{0};
+  std::atomic<int64_t> max_us_{0};
+};
+
+// Inference counters for getPerformanceMetrics. Everything is a relaxed atomic
+// so the decode loop records without locking or allocating and readers never
+// wait for the context mutex.
+struct InferenceMetrics {
+  std::atomic<int64_t> inference_count{0};
+  std::atomic<int64_t> total_inference_us{0};
+  std::atomic<int64_t> last_inference_us{0};
+  std::atomic<int64_t> prompt_tokens{0};
+  std::atomic<int64_t> prompt_us{0};
+  std::atomic<int64_t> decode_tokens{0};
+  std::atomic<int64_t> decode_us{0};
+  std::atomic<int64_t> trim_count{0};
+  std::atomic<int64_t> trimmed_tokens{0};
+  std::atomic<int64_t> lock_wait_us{0};
+  std::atomic<int64_t> lock_acquisitions{0};
+  std::atomic<int64_t> max_lock_wait_us{0};
+  std::atomic<int64_t> peak_native_heap_bytes{0};
+  std::atomic<int64_t> trim_us{0};
+  std::atomic<int64_t> kv_shifts{0};
+  std::atomic<int64_t> kv_shifted_tokens{0};
+  LatencyHistogram time_to_first_token;
+  LatencyHistogram request_latency;
+  LatencyHistogram token_latency;
+
+  static void update_max(std::atomic<int64_t> &target, int64_t value) {
+    int64_t prev = target.load(std::memory_order_relaxed);
+    while (value > prev && !target.compare_exchange_weak(
+                               prev, value, std::memory_order_relaxed)) {
+    }
+  }
+
+  void reset() {
+    for (auto *counter :
+         {&inference_count, &total_inference_us, &last_inference_us,
+          &prompt_tokens, &prompt_us, &decode_tokens, &decode_us, &trim_count,
+          &trimmed_tokens, &lock_wait_us, &lock_acquisitions,
+          &max_lock_wait_us, &peak_native_heap_bytes, &trim_us, &kv_shifts,
+          &kv_shifted_tokens}) {
+      counter->store(0, std::memory_order_relaxed);
+    }
+    time_to_first_token.reset();
+    request_latency.reset();
+    token_latency.reset();
+  }
+};
+
+// Number of values written by InferenceMetrics export; the layout is mirrored
+// by the index constants in InferenceMetricsReader.java.
+constexpr int kMetricsScalarFields = 17;
+constexpr int kMetricsHistogramFields = 6;
+constexpr int kMetricsFields =
+    kMetricsScalarFields + 3 * kMetricsHistogramFields;
+
+// Per-request results of speculative decoding. |baseline_us_per_token| is the
+// context's mean regular decode cost at the start of the request, or 0 when
+// nothing has been decoded yet.
+struct SpeculativeStats {
+  int64_t drafted = 0;
+  int64_t accepted = 0;
+  int64_t verifications = 0;
+  int64_t generated = 0;
+  int64_t draft_us = 0;
+  int64_t verify_us = 0;
+  int64_t decode_us = 0;
+  int64_t baseline_us_per_token = 0;
+};
+
+// On-disk layout of a saved conversation: this header, then the kv_cache_
+// tokens, the evaluated_ tokens, the message boundaries (uint64) and finally
+// the llama sequence-state blob for sequence 0.
+struct SessionHeader {
+  uint32_t magic;
+  uint32_t version;
+  int32_t n_vocab;
+  int32_t n_embd;
+  uint64_t n_tokens;
+  uint64_t n_evaluated;
+  uint64_t n_boundaries;
+  uint64_t state_size;
+};
+
+// How the weights are brought into memory, whether the context is primed
+// with a throwaway decode before the first request, and the element type of
+// the KV cache.
+struct LoadOptions {
+  bool use_mmap = true;
+  bool use_mlock = false;
+  bool warmup = false;
+  ggml_type kv_type = GGML_TYPE_F16;
+};
+
+// Maps the kvCacheType load option to a ggml type. Returns false for names
+// other than "f16", "q8_0" and "q4_0".
+static bool kvTypeFromName(const std::string &name, ggml_type &out) {
+  if (name == "f16") {
+    out = GGML_TYPE_F16;
+  } else if (name == "q8_0") {
+    out = GGML_TYPE_Q8_0;
+  } else if (name == "q4_0") {
+    out = GGML_TYPE_Q4_0;
+  } else {
+    return false;
+  }
+  return true;
+}
+
+// Element type of the V cache for a requested KV type. llama.cpp can only
+// read a quantized V cache through flash attention, so without it V stays
+// f16 and only K is quantized.
+static ggml_type kvValueType(ggml_type kv_type) {
+#ifdef GGML_USE_FLASH_ATTN
+  return kv_type;
+#else
+  return GGML_TYPE_F16;
+#endif
+}
+
+// How many more tokens fit in the memory of an f16 KV cache with the given
+// K and V types: about 1.9 for q8_0 and 3.6 for q4_0 when both are
+// quantized, 1.3 and 1.6 when only K is.
+static double kvCompression(ggml_type type_k, ggml_type type_v) {
+  // One q8_0/q4_0 block holds 32 values.
+  constexpr int64_t kBlock = 32;
+  const double f16 = 2.0 * ggml_row_size(GGML_TYPE_F16, kBlock);
+  return f16 / (ggml_row_size(type_k, kBlock) + ggml_row_size(type_v, kBlock));
+}
+
+// Reads an integer hyperparameter such as "<arch>.attention.head_count_kv"
+// from the GGUF metadata; |fallback| when it is missing.
+static int64_t modelMetaInt(const llama_model *model, const char *suffix,
+                            int64_t fallback) {
+  char arch[64];
+  if (llama_model_meta_val_str(model, "general.architecture", arch,
+                               sizeof(arch)) < 0) {
+    return fallback;
+  }
+  char value[32];
+  const std::string key = std::string(arch) + "." + suffix;
+  if (llama_model_meta_val_str(model, key.c_str(), value, sizeof(value)) <
+      0) {
+    return fallback;
+  }
+  return std::strtoll(value, nullptr, 10);
+}
+
+// Reports loading progress. |phase| is "weights", "context" or "warmup";
+// |progress| is the completed fraction of that phase and |layers| the number
+// of layers initialized so far (known once the weights are in place).
+using LoadProgressCallback =
+    std::function<void(const char *phase, float progress, int layers)>;
+
+// Wall time of each loading phase, in microseconds.
+struct LoadTimings {
+  int64_t weights_us = 0;
+  int64_t context_us = 0;
+  int64_t warmup_us = 0;
+};
+
+// Sampler chain settings for one generate call. Neutral values switch a
+// stage off. Seed 0 derives the seed from the request id.
+struct SamplingParams {
+  float temperature = 0.7f;
+  int32_t top_k = 0;
+  float top_p = 1.0f;
+  float min_p = 0.0f;
+  float repeat_penalty = 1.0f;
+  float frequency_penalty = 0.0f;
+  float presence_penalty = 0.0f;
+  int32_t penalty_last_n = 64;
+  uint32_t seed = 0;
+  std::vector<std::string> stop;
+
+  // Whether anything beyond plain temperature sampling was asked for.
+  bool uses_chain() const {
+    return top_k > 0 || top_p < 1.0f || min_p > 0.0f ||
+           repeat_penalty != 1.0f || frequency_penalty != 0.0f ||
+           presence_penalty != 0.0f || seed != 0;
+  }
+};
+
+// How a generate call ended. |trim_bytes| counts the bytes at the end of the
+// detokenized output that belong to a matched stop string (and anything
+// after it in the same token). |held| is streamed text still held back
+// while it could have been the start of a stop string.
+struct GenerateOutcome {
+  const char *finish_reason = "length";
+  size_t trim_bytes = 0;
+  std::string held;
+};
+
+constexpr uint32_t kSessionMagic = 0x53454C4C; // "LLES"
+constexpr uint32_t kSessionVersion = 1;
+
 struct JStringGuard {
   JNIEnv *env;
   jstring js;
@@ -35,13 +364,632 @@ struct JStringGuard {
   }
 };
 
+static std::vector<std::string> toStringVector(JNIEnv *env,
+                                               jobjectArray strings) {
+  const jsize n = env->GetArrayLength(strings);
+  std::vector<std::string> out;
+  out.reserve(n);
+  for (jsize i = 0; i < n; i++) {
+    auto str = static_cast<jstring>(env->GetObjectArrayElement(strings, i));
+    if (str) {
+      JStringGuard g(env, str);
+      out.emplace_back(g.cstr ? g.cstr : "");
+    } else {
+      out.emplace_back();
+    }
+    env->DeleteLocalRef(str);
+  }
+  return out;
+}
+
+// Parses GBNF text into the rule vectors llama_grammar_init expects. The
+// format is the one llama.cpp's grammars use: `name ::= alternatives` rules,
+// "literals", [character classes] and [^negations], ( groups ), rule
+// references, the postfix operators *, + and ?, and # comments. Repetitions
+// are rewritten into generated helper rules. Throws std::invalid_argument
+// with the offending position on syntax errors.
+class GbnfParser {
+public:
+  explicit GbnfParser(const std::string &text) : src_(text) {}
+
+  void parse() {
+    const char *pos = parse_space(src_.c_str(), true);
+    while (*pos) {
+      pos = parse_rule(pos);
+    }
+    for (size_t i = 0; i < rules_.size(); i++) {
+      if (rules_[i].empty()) {
+        throw std::invalid_argument("Undefined rule: " + symbol_name(i));
+      }
+    }
+    if (symbol_ids_.find("root") == symbol_ids_.end()) {
+      throw std::invalid_argument("Grammar has no root rule");
+    }
+  }
+
+  const std::vector<std::vector<llama_grammar_element>> &rules() const {
+    return rules_;
+  }
+
+  uint32_t root_id() const { return symbol_ids_.at("root"); }
+
+private:
+  const std::string &src_;
+  std::unordered_map<std::string, uint32_t> symbol_ids_;
+  std::vector<std::vector<llama_grammar_element>> rules_;
+
+  [[noreturn]] void fail(const char *pos, const std::string &what) const {
+    throw std::invalid_argument(what + " at offset " +
+                                std::to_string(pos - src_.c_str()));
+  }
+
+  std::string symbol_name(size_t id) const {
+    for (const auto &entry : symbol_ids_) {
+      if (entry.second == id) {
+        return entry.first;
+      }
+    }
+    return std::to_string(id);
+  }
+
+  uint32_t symbol_id(const std::string &name) {
+    auto it = symbol_ids_.find(name);
+    if (it != symbol_ids_.end()) {
+      return it->second;
+    }
+    const auto id = static_cast<uint32_t>(symbol_ids_.size());
+    symbol_ids_.emplace(name, id);
+    if (rules_.size() <= id) {
+      rules_.resize(id + 1);
+    }
+    return id;
+  }
+
+  uint32_t generate_symbol_id(const std::string &base) {
+    return symbol_id(base + "_" + std::to_string(symbol_ids_.size()));
+  }
+
+  void add_rule(uint32_t id, std::vector<llama_grammar_element> rule) {
+    if (rules_.size() <= id) {
+      rules_.resize(id + 1);
+    }
+    rules_[id] = std::move(rule);
+  }
+
+  static bool is_word_char(char c) {
+    return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') ||
+           ('0' <= c && c <= '9') || c == '-' || c == '_';
+  }
+
+  const char *parse_space(const char *pos, bool newline_ok) const {
+    while (*pos == ' ' || *pos == '\t' || *pos == '#' ||
+           (newline_ok && (*pos == '\r' || *pos == '\n'))) {
+      if (*pos == '#') {
+        while (*pos && *pos != '\r' && *pos != '\n') {
+          pos++;
+        }
+      } else {
+        pos++;
+      }
+    }
+    return pos;
+  }
+
+  const char *parse_name(const char *pos) const {
+    const char *end = pos;
+    while (is_word_char(*end)) {
+      end++;
+    }
+    if (end == pos) {
+      fail(pos, "Expecting a rule name");
+    }
+    return end;
+  }
+
+  const char *parse_hex(const char *pos, int digits, uint32_t &value) const {
+    value = 0;
+    for (int i = 0; i < digits; i++, pos++) {
+      const char c = *pos;
+      value <<= 4;
+      if ('0' <= c && c <= '9') {
+        value += c - '0';
+      } else if ('a' <= c && c <= 'f') {
+        value += c - 'a' + 10;
+      } else if ('A' <= c && c <= 'F') {
+        value += c - 'A' + 10;
+      } else {
+        fail(pos, "Expecting a hex digit");
+      }
+    }
+    return pos;
+  }
+
+  // Reads one possibly escaped UTF-8 character into |value|.
+  const char *parse_char(const char *pos, uint32_t &value) const {
+    if (*pos == '\\') {
+      switch (pos[1]) {
+      case 'x':
+        return parse_hex(pos + 2, 2, value);
+      case 'u':
+        return parse_hex(pos + 2, 4, value);
+      case 'U':
+        return parse_hex(pos + 2, 8, value);
+      case 't':
+        value = '\t';
+        return pos + 2;
+      case 'r':
+        value = '\r';
+        return pos + 2;
+      case 'n':
+        value = '\n';
+        return pos + 2;
+      case '\\':
+      case '"':
+      case '[':
+      case ']':
+        value = static_cast<unsigned char>(pos[1]);
+        return pos + 2;
+      default:
+        fail(pos, "Unknown escape");
+      }
+    }
+    if (!*pos) {
+      fail(pos, "Unexpected end of input");
+    }
+    const auto first = static_cast<unsigned char>(*pos);
+    const int len = first < 0x80 ? 1 : (first & 0xE0) == 0xC0 ? 2
+                                   : (first & 0xF0) == 0xE0   ? 3
+                                                              : 4;
+    value = len == 1 ? first : first & (0xFF >> (len + 1));
+    pos++;
+    for (int i = 1; i < len && *pos; i++, pos++) {
+      value = (value << 6) | (static_cast<unsigned char>(*pos) & 0x3F);
+    }
+    return pos;
+  }
+
+  const char *parse_sequence(const char *pos, const std::string &rule_name,
+                             std::vector<llama_grammar_element> &out,
+                             bool is_nested) {
+    size_t last_sym_start = out.size();
+    while (*pos) {
+      if (*pos == '"') {
+        pos++;
+        last_sym_start = out.size();
+        while (*pos != '"') {
+          uint32_t c;
+          pos = parse_char(pos, c);
+          out.push_back({LLAMA_GRETYPE_CHAR, c});
+        }
+        pos = parse_space(pos + 1, is_nested);
+      } else if (*pos == '[') {
+        pos++;
+        llama_gretype start_type = LLAMA_GRETYPE_CHAR;
+        if (*pos == '^') {
+          pos++;
+          start_type = LLAMA_GRETYPE_CHAR_NOT;
+        }
+        last_sym_start = out.size();
+        while (*pos != ']') {
+          uint32_t c;
+          pos = parse_char(pos, c);
+          out.push_back({last_sym_start < out.size() ? LLAMA_GRETYPE_CHAR_ALT
+                                                     : start_type,
+                         c});
+          if (pos[0] == '-' && pos[1] != ']') {
+            uint32_t upper;
+            pos = parse_char(pos + 1, upper);
+            out.push_back({LLAMA_GRETYPE_CHAR_RNG_UPPER, upper});
+          }
+        }
+        pos = parse_space(pos + 1, is_nested);
+      } else if (is_word_char(*pos)) {
+        const char *name_end = parse_name(pos);
+        const uint32_t ref = symbol_id(std::string(pos, name_end - pos));
+        pos = parse_space(name_end, is_nested);
+        last_sym_start = out.size();
+        out.push_back({LLAMA_GRETYPE_RULE_REF, ref});
+      } else if (*pos == '(') {
+        pos = parse_space(pos + 1, true);
+        const uint32_t sub_rule_id = generate_symbol_id(rule_name);
+        pos = parse_alternates(pos, rule_name, sub_rule_id, true);
+        last_sym_start = out.size();
+        out.push_back({LLAMA_GRETYPE_RULE_REF, sub_rule_id});
+        if (*pos != ')') {
+          fail(pos, "Expecting ')'");
+        }
+        pos = parse_space(pos + 1, is_nested);
+      } else if (*pos == '*' || *pos == '+' || *pos == '?') {
+        if (last_sym_start == out.size()) {
+          fail(pos, "Expecting an item before the operator");
+        }
+        // S* -> S' ::= S S' |
+        // S+ -> S' ::= S S' | S
+        // S? -> S' ::= S |
+        const uint32_t sub_rule_id = generate_symbol_id(rule_name);
+        std::vector<llama_grammar_element> sub_rule(
+            out.begin() + last_sym_start, out.end());
+        if (*pos == '*' || *pos == '+') {
+          sub_rule.push_back({LLAMA_GRETYPE_RULE_REF, sub_rule_id});
+        }
+        sub_rule.push_back({LLAMA_GRETYPE_ALT, 0});
+        if (*pos == '+') {
+          sub_rule.insert(sub_rule.end(), out.begin() + last_sym_start,
+                          out.end());
+        }
+        sub_rule.push_back({LLAMA_GRETYPE_END, 0});
+        add_rule(sub_rule_id, std::move(sub_rule));
+        out.resize(last_sym_start);
+        out.push_back({LLAMA_GRETYPE_RULE_REF, sub_rule_id});
+        pos = parse_space(pos + 1, is_nested);
+      } else {
+        break;
+      }
+    }
+    return pos;
+  }
+
+  const char *parse_alternates(const char *pos, const std::string &rule_name,
+                               uint32_t rule_id, bool is_nested) {
+    std::vector<llama_grammar_element> rule;
+    pos = parse_sequence(pos, rule_name, rule, is_nested);
+    while (*pos == '|') {
+      rule.push_back({LLAMA_GRETYPE_ALT, 0});
+      pos = parse_space(pos + 1, true);
+      pos = parse_sequence(pos, rule_name, rule, is_nested);
+    }
+    rule.push_back({LLAMA_GRETYPE_END, 0});
+    add_rule(rule_id, std::move(rule));
+    return pos;
+  }
+
+  const char *parse_rule(const char *pos) {
+    const char *name_end = parse_name(pos);
+    const std::string name(pos, name_end - pos);
+    pos = parse_space(name_end, false);
+    const uint32_t rule_id = symbol_id(name);
+    if (std::strncmp(pos, "::=", 3) != 0) {
+      fail(pos, "Expecting ::=");
+    }
+    pos = parse_space(pos + 3, true);
+    pos = parse_alternates(pos, name, rule_id, false);
+    if (*pos == '\r') {
+      pos += pos[1] == '\n' ? 2 : 1;
+    } else if (*pos == '\n') {
+      pos++;
+    } else if (*pos) {
+      fail(pos, "Expecting newline or end");
+    }
+    return parse_space(pos, true);
+  }
+};
+
+// A compiled grammar constraining one generation. Candidates the grammar
+// cannot accept next are masked to -inf before sampling, and complete()
+// reports when end-of-generation is the only continuation left, so the
+// caller can stop without decoding another token. The scratch candidate
+// array is sized once per vocabulary and reused for every step.
+class GrammarConstraint {
+public:
+  explicit GrammarConstraint(const std::string &gbnf) {
+    GbnfParser parser(gbnf);
+    parser.parse();
+    std::vector<const llama_grammar_element *> rules;
+    rules.reserve(parser.rules().size());
+    for (const auto &rule : parser.rules()) {
+      rules.push_back(rule.data());
+    }
+    grammar_ = llama_grammar_init(rules.data(), rules.size(), parser.root_id());
+    if (!grammar_) {
+      throw std::invalid_argument("Grammar could not be compiled");
+    }
+  }
+
+  ~GrammarConstraint() {
+    if (grammar_)
+      llama_grammar_free(grammar_);
+  }
+
+  GrammarConstraint(const GrammarConstraint &) = delete;
+  GrammarConstraint &operator=(const GrammarConstraint &) = delete;
+
+  // Whether the grammar accepts |token| as the next token.
+  bool allows(llama_context *ctx, llama_token token) {
+    llama_token_data single{token, 0.0f, 0.0f};
+    llama_token_data_array candidates{&single, 1, false};
+    llama_sample_grammar(ctx, &candidates, grammar_);
+    return std::isfinite(single.logit);
+  }
+
+  // Sets the logits of every token the grammar rejects to -inf and returns
+  // how many tokens remain.
+  int mask(llama_context *ctx, float *logits, int n_vocab) {
+    fill(logits, n_vocab);
+    llama_token_data_array candidates{candidates_.data(), candidates_.size(),
+                                      false};
+    llama_sample_grammar(ctx, &candidates, grammar_);
+    int allowed = 0;
+    for (const auto &candidate : candidates_) {
+      logits[candidate.id] = candidate.logit;
+      allowed += std::isfinite(candidate.logit) ? 1 : 0;
+    }
+    return allowed;
+  }
+
+  void accept(llama_context *ctx, llama_token token) {
+    llama_grammar_accept_token(ctx, grammar_, token);
+  }
+
+  // True once |eos| is the only token the grammar still accepts. The full
+  // vocabulary is only scanned when end-of-generation is allowed at all.
+  bool complete(llama_context *ctx, int n_vocab, llama_token eos) {
+    if (!allows(ctx, eos)) {
+      return false;
+    }
+    fill(nullptr, n_vocab);
+    llama_token_data_array candidates{candidates_.data(), candidates_.size(),
+                                      false};
+    llama_sample_grammar(ctx, &candidates, grammar_);
+    for (const auto &candidate : candidates_) {
+      if (candidate.id != eos && std::isfinite(candidate.logit)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+private:
+  llama_grammar *grammar_ = nullptr;
+  std::vector<llama_token_data> candidates_;
+
+  void fill(const float *logits, int n_vocab) {
+    candidates_.resize(n_vocab);
+    for (int i = 0; i < n_vocab; i++) {
+      candidates_[i] = {static_cast<llama_token>(i), logits ? logits[i] : 0.0f,
+                        0.0f};
+    }
+  }
+};
+
+// Configurable sampler chain. Stages run in llama.cpp's order: repetition,
+// frequency and presence penalties over the last penalty_last_n tokens, then
+// top-k, top-p, min-p, temperature and a seeded draw. Greedy decoding skips
+// the truncation stages. The candidate, history and count buffers are sized
+// to the vocabulary on first use and reused by every later call, so
+// sampling a token allocates nothing.
+class SamplerChain {
+public:
+  void reset(const SamplingParams &params, int n_vocab, uint32_t seed) {
+    params_ = &params;
+    candidates_.resize(n_vocab);
+    counts_.assign(n_vocab, 0);
+    penalized_.assign(n_vocab, 0);
+    epoch_ = 0;
+    history_.assign(std::max(0, params.penalty_last_n), 0);
+    history_pos_ = 0;
+    history_len_ = 0;
+    rng_.seed(seed);
+  }
+
+  // Records a token of the context for the penalty window.
+  void accept(llama_token token) {
+    if (history_.empty()) {
+      return;
+    }
+    if (history_len_ == history_.size()) {
+      counts_[history_[history_pos_]]--;
+    } else {
+      history_len_++;
+    }
+    history_[history_pos_] = token;
+    counts_[token]++;
+    history_pos_ = (history_pos_ + 1) % history_.size();
+  }
+
+  llama_token sample(const float *logits) {
+    const SamplingParams &p = *params_;
+    const size_t n_vocab = candidates_.size();
+    for (size_t i = 0; i < n_vocab; i++) {
+      candidates_[i] = {static_cast<llama_token>(i), logits[i], 0.0f};
+    }
+    apply_penalties();
+
+    auto by_logit = [](const llama_token_data &a, const llama_token_data &b) {
+      return a.logit > b.logit;
+    };
+    if (p.temperature <= 0.0f) {
+      return std::min_element(candidates_.begin(), candidates_.end(), by_logit)
+          ->id;
+    }
+
+    size_t n = n_vocab;
+    if (p.top_k > 0 && static_cast<size_t>(p.top_k) < n) {
+      std::nth_element(candidates_.begin(), candidates_.begin() + p.top_k - 1,
+                       candidates_.end(), by_logit);
+      n = p.top_k;
+    }
+    if (p.top_p < 1.0f) {
+      n = top_p(n, by_logit);
+    }
+    if (p.min_p > 0.0f) {
+      const float threshold = max_logit(n) + std::log(p.min_p);
+      n = std::partition(candidates_.begin(), candidates_.begin() + n,
+                         [threshold](const llama_token_data &c) {
+                           return c.logit >= threshold;
+                         }) -
+          candidates_.begin();
+    }
+
+    const float max = max_logit(n);
+    double sum = 0.0;
+    for (size_t i = 0; i < n; i++) {
+      candidates_[i].p = std::exp((candidates_[i].logit - max) / p.temperature);
+      sum += candidates_[i].p;
+    }
+    std::uniform_real_distribution<double> dist(0.0, sum);
+    double target = dist(rng_);
+    for (size_t i = 0; i < n; i++) {
+      target -= candidates_[i].p;
+      if (target <= 0.0) {
+        return candidates_[i].id;
+      }
+    }
+    return candidates_[n - 1].id;
+  }
+
+private:
+  const SamplingParams *params_ = nullptr;
+  std::vector<llama_token_data> candidates_;
+  std::vector<int32_t> counts_;
+  std::vector<uint32_t> penalized_;
+  uint32_t epoch_ = 0;
+  std::vector<llama_token> history_;
+  size_t history_pos_ = 0;
+  size_t history_len_ = 0;
+  std::mt19937 rng_;
+
+  // candidates_ is still indexed by token id here. Each distinct token in
+  // the window is penalized once, tracked with an epoch stamp per token.
+  void apply_penalties() {
+    const SamplingParams &p = *params_;
+    if (history_len_ == 0 ||
+        (p.repeat_penalty == 1.0f && p.frequency_penalty == 0.0f &&
+         p.presence_penalty == 0.0f)) {
+      return;
+    }
+    epoch_++;
+    for (size_t i = 0; i < history_len_; i++) {
+      const llama_token token = history_[i];
+      if (penalized_[token] == epoch_) {
+        continue;
+      }
+      penalized_[token] = epoch_;
+      float &logit = candidates_[token].logit;
+      logit = logit <= 0.0f ? logit * p.repeat_penalty
+                            : logit / p.repeat_penalty;
+      logit -= counts_[token] * p.frequency_penalty + p.presence_penalty;
+    }
+  }
+
+  float max_logit(size_t n) const {
+    float max = -INFINITY;
+    for (size_t i = 0; i < n; i++) {
+      max = std::max(max, candidates_[i].logit);
+    }
+    return max;
+  }
+
+  // Keeps the smallest prefix of the first |n| candidates whose probability
+  // mass reaches top_p. The normalizer takes one pass; the candidates are
+  // then sorted in growing blocks, so a peaked distribution never pays for
+  // sorting the whole vocabulary.
+  template <typename Compare> size_t top_p(size_t n, Compare by_logit) {
+    const float max = max_logit(n);
+    double sum = 0.0;
+    for (size_t i = 0; i < n; i++) {
+      sum += std::exp(candidates_[i].logit - max);
+    }
+    double mass = 0.0;
+    size_t sorted = 0;
+    size_t block = std::min<size_t>(n, 64);
+    while (sorted < n) {
+      std::partial_sort(candidates_.begin() + sorted,
+                        candidates_.begin() + block,
+                        candidates_.begin() + n, by_logit);
+      for (size_t i = sorted; i < block; i++) {
+        mass += std::exp(candidates_[i].logit - max) / sum;
+        if (mass >= params_->top_p) {
+          return i + 1;
+        }
+      }
+      sorted = block;
+      block = std::min(n, block * 4);
+    }
+    return n;
+  }
+};
+
+// Watches the detokenized output for stop strings. Only the last
+// (longest stop - 1) bytes are kept between tokens, so each token costs a
+// search over the new bytes plus that short tail, and the buffers reserved
+// up front are reused for the whole generation. Text is released to the
+// caller only once it can no longer be the start of a stop string.
+class StopMatcher {
+public:
+  explicit StopMatcher(const std::vector<std::string> &stops) : stops_(stops) {
+    for (const auto &stop : stops_) {
+      max_len_ = std::max(max_len_, stop.size());
+    }
+    tail_.reserve(max_len_ + 64);
+    released_.reserve(max_len_ + 64);
+  }
+
+  bool active() const { return max_len_ > 0; }
+
+  // Appends |piece|. Returns true once a stop string has completed; the
+  // text before it is then in released() and trim_bytes() says how many
+  // trailing bytes of the output the stop string and anything after it
+  // take up.
+  bool feed(const std::string &piece) {
+    const size_t old_size = tail_.size();
+    tail_ += piece;
+    size_t match = std::string::npos;
+    for (const auto &stop : stops_) {
+      if (stop.empty()) {
+        continue;
+      }
+      const size_t from =
+          old_size + 1 > stop.size() ? old_size + 1 - stop.size() : 0;
+      const size_t at = tail_.find(stop, from);
+      if (at < match) {
+        match = at;
+      }
+    }
+    if (match != std::string::npos) {
+      released_.assign(tail_, 0, match);
+      trim_bytes_ = tail_.size() - match;
+      tail_.clear();
+      return true;
+    }
+    const size_t keep = std::min(tail_.size(), max_len_ - 1);
+    released_.assign(tail_, 0, tail_.size() - keep);
+    tail_.erase(0, tail_.size() - keep);
+    return false;
+  }
+
+  const std::string &released() const { return released_; }
+  const std::string &held() const { return tail_; }
+  size_t trim_bytes() const { return trim_bytes_; }
+
+private:
+  const std::vector<std::string> &stops_;
+  size_t max_len_ = 0;
+  size_t trim_bytes_ = 0;
+  std::string tail_;
+  std::string released_;
+};
+
 class LlamaContext {
 public:
   LlamaContext(const std::string &model_path, int n_ctx, int n_threads,
-               bool is_quantized) {
+               int n_threads_batch, bool is_quantized, const LoadOptions &options = LoadOptions(),
+               const LoadProgressCallback &on_progress = nullptr) {
+    using clock = std::chrono::steady_clock;
     std::lock_guard<std::mutex> lock(mutex_);
 
     llama_model_params model_params = llama_model_default_params();
+    model_params.use_mmap = options.use_mmap;
+    model_params.use_mlock = options.use_mlock;
+    if (on_progress) {
+      // llama.cpp reports the fraction of tensor data read or mapped.
+      model_params.progress_callback = [](float progress, void *user_data) {
+        (*static_cast<const LoadProgressCallback *>(user_data))("weights",
+                                                                progress, 0);
+        return true;
+      };
+      model_params.progress_callback_user_data =
+          const_cast<LoadProgressCallback *>(&on_progress);
+    }
 
     if (is_quantized) {
       model_params = apply_mobile_quant_optimizations(model_params);
@@ -54,33 +1002,78 @@ public:
     model_params.use_flash_attn = true;
 #endif
 
+    auto t0 = clock::now();
     model_ = llama_load_model_from_file(model_path.c_str(), model_params);
     if (!model_) {
       throw std::runtime_error("Failed to load model");
     }
+    load_timings_.weights_us = elapsed_us(t0);
+    const int n_layer = llama_n_layer(model_);
+    if (on_progress) {
+      on_progress("weights", 1.0f, n_layer);
+    }
 
     llama_context_params ctx_params = llama_context_default_params();
     ctx_params.n_ctx = n_ctx;
     ctx_params.n_threads = n_threads;
-    ctx_params.n_threads_batch = n_threads;
+    ctx_params.n_threads_batch = n_threads_batch;
+    ctx_params.n_seq_max = kFirstBatchSequence + kMaxBatchSequences;
+    ctx_params.type_k = options.kv_type;
+    ctx_params.type_v = kvValueType(options.kv_type);
+    ctx_params.pooling_type = LLAMA_POOLING_TYPE_MEAN;
 
     if (is_quantized && n_ctx > 4096) {
       ctx_params.use_sparse_attention = true;
     }
 
+    t0 = clock::now();
     ctx_ = llama_new_context_with_model(model_, ctx_params);
     if (!ctx_) {
       llama_free_model(model_);
       throw std::runtime_error("Failed to create context");
     }
+    load_timings_.context_us = elapsed_us(t0);
+    if (on_progress) {
+      on_progress("context", 1.0f, n_layer);
+    }
 
     kv_cache_.reserve(max_cache_size_);
+    type_k_ = ctx_params.type_k;
+    type_v_ = ctx_params.type_v;
+    // Per layer, each token stores one K and one V row of n_embd_gqa values;
+    // grouped-query attention shrinks n_embd by n_head_kv / n_head.
+    const int64_t n_embd = llama_n_embd(model_);
+    const int64_t n_head = modelMetaInt(model_, "attention.head_count", 1);
+    const int64_t n_head_kv =
+        modelMetaInt(model_, "attention.head_count_kv", n_head);
+    const int64_t n_embd_gqa =
+        n_head > 0 ? n_embd * n_head_kv / n_head : n_embd;
+    kv_bytes_per_token_ = static_cast<size_t>(n_layer) *
+                          (ggml_row_size(type_k_, n_embd_gqa) +
+                           ggml_row_size(type_v_, n_embd_gqa));
     is_quantized_ = is_quantized;
-    performance_stats_ = {0, 0, 0};
+    n_threads_ = n_threads;
+    n_threads_batch_ = n_threads_batch;
+
+    if (options.warmup) {
+      // One decode faults in the mapped weights and lets the backend set up
+      // its compute buffers, so the first real request does not pay for it.
+      // The token is dropped again so the conversation starts empty.
+      t0 = clock::now();
+      llama_token bos = llama_token_bos(model_);
+      llama_eval(ctx_, &bos, 1, 0, n_threads);
+      llama_kv_cache_seq_rm(ctx_, 0, -1, -1);
+      load_timings_.warmup_us = elapsed_us(t0);
+      if (on_progress) {
+        on_progress("warmup", 1.0f, n_layer);
+      }
+    }
   }
 
   ~LlamaContext() {
     std::lock_guard<std::mutex> lock(mutex_);
+    if (batch_.n_tokens_alloc > 0)
+      llama_batch_free(batch_.batch);
     if (ctx_)
       llama_free(ctx_);
     if (model_)
@@ -88,12 +1081,26 @@ public:
   }
 
   std::vector<llama_token> tokenize(const std::string &text) {
-    std::lock_guard<std::mutex> lock(mutex_);
-    return llama_tokenize(ctx_, text, true);
+    auto lock = timed_lock();
+    return tokenize_unlocked(text);
+  }
+
+  // Tokenizes every text into |tokens|, back to back, and writes the count
+  // of each to |counts|. Tokenizing only reads the vocabulary, so this does
+  // not take mutex_ and is not held up by a running generation.
+  void tokenize_batch(const std::vector<std::string> &texts, bool add_bos,
+                      std::vector<llama_token> &tokens,
+                      std::vector<int32_t> &counts) const {
+    counts.resize(texts.size());
+    for (size_t i = 0; i < texts.size(); i++) {
+      auto ids = llama_tokenize(ctx_, texts[i], add_bos);
+      counts[i] = static_cast<int32_t>(ids.size());
+      tokens.insert(tokens.end(), ids.begin(), ids.end());
+    }
   }
 
   std::string detokenize(const std::vector<llama_token> &tokens) {
-    std::lock_guard<std::mutex> lock(mutex_);
+    auto lock = timed_lock();
     std::string result;
     for (auto token : tokens) {
       result += llama_token_to_piece(ctx_, token);
@@ -103,10 +1110,13 @@ public:
 
   std::vector<llama_token>
   generate(const std::vector<llama_token> &input_tokens, int max_tokens,
-           float temperature, bool use_sparse_attention) {
-    std::lock_guard<std::mutex> lock(mutex_);
-
-    auto start_time = std::chrono::high_resolution_clock::now();
+           const SamplingParams &sampling, bool use_sparse_attention,
+           const TokenCallback &on_token = nullptr, int64_t request_id = 0,
+           GrammarConstraint *grammar = nullptr,
+           GenerateOutcome *outcome = nullptr) {
+    using clock = std::chrono::steady_clock;
+    const auto start_time = clock::now();
+    auto lock = timed_lock();
 
     message_boundaries_.push_back(kv_cache_.size());
 
@@ -117,46 +1127,340 @@ public:
     std::vector<llama_token> generated_tokens;
     generated_tokens.reserve(max_tokens);
 
-    if (!kv_cache_.empty()) {
-      llama_eval(ctx_, kv_cache_.data(), kv_cache_.size(), 0, 4);
+    if (!kv_cache_.empty() && !is_aborted(request_id)) {
+      const auto prompt_start = clock::now();
+      const size_t reused = sync_kv_cache();
+      const auto evaluated = static_cast<int64_t>(kv_cache_.size() - reused);
+      prefix_stats_.lookups++;
+      if (reused > 0) {
+        prefix_stats_.hits++;
+        prefix_stats_.tokens_reused += static_cast<int64_t>(reused);
+      }
+      prefix_stats_.tokens_evaluated += evaluated;
+      metrics_.prompt_tokens.fetch_add(evaluated, std::memory_order_relaxed);
+      metrics_.prompt_us.fetch_add(elapsed_us(prompt_start),
+                                   std::memory_order_relaxed);
+    }
+
+    // The built-in sampler covers plain temperature sampling; anything else
+    // goes through the native chain, seeded with the tail of the context
+    // for the penalties.
+    const bool use_chain = grammar || sampling.uses_chain();
+    if (use_chain) {
+      sampler_.reset(sampling, llama_n_vocab(model_),
+                     sampling.seed != 0 ? sampling.seed
+                                        : static_cast<uint32_t>(request_id));
+      const size_t window =
+          std::min(kv_cache_.size(),
+                   static_cast<size_t>(std::max(0, sampling.penalty_last_n)));
+      for (size_t i = kv_cache_.size() - window; i < kv_cache_.size(); i++) {
+        sampler_.accept(kv_cache_[i]);
+      }
     }
+    StopMatcher stops(sampling.stop);
+    const char *finish_reason = "length";
 
+    auto token_start = clock::now();
     for (int i = 0; i < max_tokens; i++) {
+      // Cooperative cancellation: checked once per token so an abort frees
+      // the context within a single decode step.
+      if (is_aborted(request_id)) {
+        finish_reason = "cancelled";
+        break;
+      }
+
       llama_token next_token;
 
-      if (use_sparse_attention) {
-        next_token = llama_sample_token_sparse(ctx_, temperature);
+      if (grammar) {
+        next_token = sample_constrained(*grammar, sampler_);
+        if (next_token < 0) {
+          finish_reason = "grammar";
+          break;
+        }
+      } else if (use_chain) {
+        next_token = sampler_.sample(llama_get_logits(ctx_));
+      } else if (use_sparse_attention) {
+        next_token = llama_sample_token_sparse(ctx_, sampling.temperature);
       } else {
-        next_token = llama_sample_token(ctx_, temperature);
+        next_token = llama_sample_token(ctx_, sampling.temperature);
       }
 
       if (next_token == llama_token_eos(ctx_)) {
+        finish_reason = "eos";
         break;
       }
+      if (use_chain) {
+        sampler_.accept(next_token);
+      }
+      if (i == 0) {
+        metrics_.time_to_first_token.record(elapsed_us(start_time));
+      }
 
       generated_tokens.push_back(next_token);
       kv_cache_.push_back(next_token);
 
       trimCache();
 
-      llama_eval(ctx_, &next_token, 1, kv_cache_.size() - 1, 4);
+      // Stop strings are matched on the detokenized tail. While they are
+      // active the callback receives only text that can no longer turn into
+      // a stop string, so a stop is never partially streamed.
+      bool stopped = false;
+      if (stops.active()) {
+        stopped = stops.feed(llama_token_to_piece(ctx_, next_token));
+        if (on_token) {
+          on_token(next_token, stops.released());
+        }
+      } else if (on_token) {
+        on_token(next_token, llama_token_to_piece(ctx_, next_token));
+      }
+
+      // Once the grammar can only end, the structure is closed and the
+      // decode that would produce another token's logits is skipped. The
+      // token is evaluated by the next request's cache sync instead. The
+      // same holds after a stop string.
+      bool structure_complete = false;
+      if (grammar && !stopped) {
+        grammar->accept(ctx_, next_token);
+        structure_complete = grammar->complete(ctx_, llama_n_vocab(model_),
+                                               llama_token_eos(ctx_));
+      }
+      if (stopped) {
+        finish_reason = "stop";
+      } else if (structure_complete) {
+        finish_reason = "grammar";
+      } else {
+        sync_kv_cache();
+      }
+
+      // Sampling plus the single-token eval that produces the next logits.
+      const auto now = clock::now();
+      const int64_t token_us =
+          std::chrono::duration_cast<std::chrono::microseconds>(now -
+                                                                token_start)
+              .count();
+      token_start = now;
+      metrics_.token_latency.record(token_us);
+      metrics_.decode_tokens.fetch_add(1, std::memory_order_relaxed);
+      metrics_.decode_us.fetch_add(token_us, std::memory_order_relaxed);
+      if (stopped || structure_complete) {
+        break;
+      }
+    }
+
+    if (outcome) {
+      outcome->finish_reason = finish_reason;
+      outcome->trim_bytes = stops.trim_bytes();
+      outcome->held = stops.active() && std::strcmp(finish_reason, "stop") != 0
+                          ? stops.held()
+                          : std::string();
+    }
+
+    const int64_t duration_us = elapsed_us(start_time);
+    metrics_.inference_count.fetch_add(1, std::memory_order_relaxed);
+    metrics_.total_inference_us.fetch_add(duration_us,
+                                          std::memory_order_relaxed);
+    metrics_.last_inference_us.store(duration_us, std::memory_order_relaxed);
+    metrics_.request_latency.record(duration_us);
+    sample_native_heap();
+
+    return generated_tokens;
+  }
+
+  // Speculative variant of generate(). Each round the |draft| context
+  // greedily proposes up to |n_draft| tokens continuing this context's
+  // sequence, and this context scores all of them in one batched decode. A
+  // proposal is kept while it equals the token this model samples at that
+  // position, so the output follows this model's distribution; the first
+  // mismatch is replaced by this model's own sample and the rejected tail is
+  // dropped from the KV cache. When every proposal is kept the final logits
+  // row yields one extra token. The draft's own conversation state is
+  // replaced by this sequence; once the sequence no longer fits the draft's
+  // context, rounds fall back to regular decoding. Both models must share a
+  // vocabulary. Only the temperature and seed of |sampling| are used.
+  std::vector<llama_token>
+  generate_speculative(LlamaContext &draft,
+                       const std::vector<llama_token> &input_tokens,
+                       int max_tokens, const SamplingParams &sampling,
+                       int n_draft, SpeculativeStats &stats,
+                       const TokenCallback &on_token = nullptr,
+                       int64_t request_id = 0,
+                       GenerateOutcome *outcome = nullptr) {
+    using clock = std::chrono::steady_clock;
+    if (&draft == this) {
+      throw std::invalid_argument("Draft model must differ from main model");
+    }
+    const auto start_time = clock::now();
+    auto lock = timed_lock();
+    auto draft_lock = draft.timed_lock();
+    const int n_vocab = llama_n_vocab(model_);
+    if (llama_n_vocab(draft.model_) != n_vocab) {
+      throw std::invalid_argument("Draft model vocabulary does not match");
     }
+    n_draft = std::max(1, n_draft);
+
+    message_boundaries_.push_back(kv_cache_.size());
+    kv_cache_.insert(kv_cache_.end(), input_tokens.begin(), input_tokens.end());
+    trimCache();
 
-    auto end_time = std::chrono::high_resolution_clock::now();
-    auto duration = std::chrono::duration_cast<std::chrono::milliseconds>(
-        end_time - start_time);
+    std::vector<llama_token> generated_tokens;
+    generated_tokens.reserve(max_tokens);
+    const float temperature = sampling.temperature;
+    std::mt19937 rng(sampling.seed != 0 ? sampling.seed
+                                        : static_cast<uint32_t>(request_id));
+    const int64_t decoded =
+        metrics_.decode_tokens.load(std::memory_order_relaxed);
+    stats.baseline_us_per_token =
+        decoded > 0
+            ? metrics_.decode_us.load(std::memory_order_relaxed) / decoded
+            : 0;
+
+    if (kv_cache_.empty() || is_aborted(request_id)) {
+      if (outcome) {
+        outcome->finish_reason = kv_cache_.empty() ? "length" : "cancelled";
+      }
+      return generated_tokens;
+    }
+    const auto prompt_start = clock::now();
+    const size_t reused = sync_kv_cache();
+    prefix_stats_.lookups++;
+    if (reused > 0) {
+      prefix_stats_.hits++;
+      prefix_stats_.tokens_reused += static_cast<int64_t>(reused);
+    }
+    const auto evaluated = static_cast<int64_t>(kv_cache_.size() - reused);
+    prefix_stats_.tokens_evaluated += evaluated;
+    metrics_.prompt_tokens.fetch_add(evaluated, std::memory_order_relaxed);
+    metrics_.prompt_us.fetch_add(elapsed_us(prompt_start),
+                                 std::memory_order_relaxed);
+
+    const auto decode_start = clock::now();
+    llama_batch &batch = scratch_batch(n_draft);
+    const size_t draft_ctx = llama_n_ctx(draft.ctx_);
+    std::vector<llama_token> proposals;
+    proposals.reserve(n_draft);
+    std::vector<float> &last_logits = spec_logits_;
+    last_logits.resize(n_vocab);
+    const llama_token eos = llama_token_eos(ctx_);
+    bool finished = false;
+    const char *finish_reason = "length";
+
+    auto emit = [&](llama_token token) {
+      if (generated_tokens.empty()) {
+        metrics_.time_to_first_token.record(elapsed_us(start_time));
+      }
+      generated_tokens.push_back(token);
+      kv_cache_.push_back(token);
+      if (on_token) {
+        on_token(token, llama_token_to_piece(ctx_, token));
+      }
+    };
 
-    performance_stats_.total_inference_time += duration.count();
-    performance_stats_.inference_count++;
-    performance_stats_.last_inference_time = duration.count();
+    while (!finished &&
+           static_cast<int>(generated_tokens.size()) < max_tokens) {
+      if (is_aborted(request_id)) {
+        finish_reason = "cancelled";
+        break;
+      }
+      // Logits for the next position come from the last evaluated token.
+      sync_kv_cache();
+      std::copy(llama_get_logits(ctx_), llama_get_logits(ctx_) + n_vocab,
+                last_logits.begin());
+
+      // Draft: continue the same sequence greedily.
+      const int budget = std::min(
+          n_draft, max_tokens - static_cast<int>(generated_tokens.size()) - 1);
+      proposals.clear();
+      auto t0 = clock::now();
+      if (budget > 0 &&
+          kv_cache_.size() + static_cast<size_t>(budget) <= draft_ctx) {
+        draft.kv_cache_ = kv_cache_;
+        draft.sync_kv_cache();
+        for (int j = 0; j < budget; j++) {
+          const llama_token token = draft.sample_logits(
+              llama_get_logits(draft.ctx_), n_vocab, 0.0f, rng);
+          if (token == eos) {
+            break;
+          }
+          proposals.push_back(token);
+          if (j + 1 < budget) {
+            draft.kv_cache_.push_back(token);
+            draft.sync_kv_cache();
+          }
+        }
+      }
+      stats.draft_us += elapsed_us(t0);
+      stats.drafted += static_cast<int64_t>(proposals.size());
+
+      // Verify every proposal in a single decode of this model.
+      t0 = clock::now();
+      const auto base_pos = static_cast<llama_pos>(evaluated_.size());
+      batch.n_tokens = 0;
+      for (size_t j = 0; j < proposals.size(); j++) {
+        const int idx = batch.n_tokens++;
+        batch.token[idx] = proposals[j];
+        batch.pos[idx] = base_pos + static_cast<llama_pos>(j);
+        batch.n_seq_id[idx] = 1;
+        batch.seq_id[idx][0] = 0;
+        batch.logits[idx] = true;
+      }
+      if (batch.n_tokens > 0 && llama_decode(ctx_, batch) != 0) {
+        llama_kv_cache_seq_rm(ctx_, 0, base_pos, -1);
+        proposals.clear();
+        batch.n_tokens = 0;
+      }
+      stats.verifications++;
+
+      size_t accepted = 0;
+      llama_token next =
+          sample_logits(last_logits.data(), n_vocab, temperature, rng);
+      while (accepted < proposals.size() && next == proposals[accepted]) {
+        accepted++;
+        next = sample_logits(llama_get_logits_ith(ctx_, accepted - 1),
+                             n_vocab, temperature, rng);
+      }
+      if (accepted < proposals.size()) {
+        llama_kv_cache_seq_rm(
+            ctx_, 0, base_pos + static_cast<llama_pos>(accepted), -1);
+      }
+      evaluated_.insert(evaluated_.end(), proposals.begin(),
+                        proposals.begin() + accepted);
+      stats.verify_us += elapsed_us(t0);
+      stats.accepted += static_cast<int64_t>(accepted);
 
+      for (size_t j = 0; j < accepted; j++) {
+        emit(proposals[j]);
+      }
+      if (next == eos) {
+        finished = true;
+        finish_reason = "eos";
+      } else if (static_cast<int>(generated_tokens.size()) < max_tokens) {
+        emit(next);
+      }
+      trimCache();
+    }
+    if (outcome) {
+      outcome->finish_reason = finish_reason;
+    }
+    // Leave the last token evaluated so the next turn starts from warm
+    // logits, as the regular decode loop does.
+    sync_kv_cache();
+
+    stats.generated = static_cast<int64_t>(generated_tokens.size());
+    stats.decode_us = elapsed_us(decode_start);
+    const int64_t duration_us = elapsed_us(start_time);
+    metrics_.inference_count.fetch_add(1, std::memory_order_relaxed);
+    metrics_.total_inference_us.fetch_add(duration_us,
+                                          std::memory_order_relaxed);
+    metrics_.last_inference_us.store(duration_us, std::memory_order_relaxed);
+    metrics_.request_latency.record(duration_us);
+    sample_native_heap();
     return generated_tokens;
   }
 
   std::vector<float> embed(const std::string &text) {
-    std::lock_guard<std::mutex> lock(mutex_);
+    auto lock = timed_lock();
 
-    auto tokens = tokenize(text);
+    auto tokens = tokenize_unlocked(text);
     if (tokens.empty()) {
       return std::vector<float>(is_quantized_ ? 384 : 512, 0.0f);
     }
@@ -167,83 +1471,928 @@ public:
     return embedding;
   }
 
+  // Embeds every text under a single lock acquisition. Texts are packed into
+  // llama batches with one sequence id per text, so a batch of short chunks
+  // costs one decode instead of one per chunk. Returns the embeddings packed
+  // row-major (texts.size() x n_embd). |item_stats| receives three values per
+  // text: token count, tokenize time and its token-weighted share of the
+  // decode time, both in microseconds.
+  std::vector<float> embed_batch(const std::vector<std::string> &texts,
+                                 std::vector<int64_t> &item_stats) {
+    std::vector<float> packed(texts.size() * embedding_size(), 0.0f);
+    embed_batch_into(texts, item_stats, packed.data());
+    return packed;
+  }
+
+  // Same as embed_batch but writes straight into |out|, which must hold
+  // texts.size() * embedding_size() floats. Used to fill direct ByteBuffers
+  // without an intermediate copy.
+  void embed_batch_into(const std::vector<std::string> &texts,
+                        std::vector<int64_t> &item_stats, float *out) {
+    using clock = std::chrono::steady_clock;
+    auto lock = timed_lock();
+
+    const size_t n = texts.size();
+    const int n_embd = llama_n_embd(ctx_);
+    const int n_batch = llama_n_batch(ctx_);
+    // The governor may cap tokens per decode below n_batch; a single text
+    // still goes through in one decode so it is never split.
+    const int batch_cap = batch_limit();
+    std::fill(out, out + n * n_embd, 0.0f);
+    item_stats.assign(n * 3, 0);
+
+    std::vector<std::vector<llama_token>> tokenized(n);
+    for (size_t i = 0; i < n; i++) {
+      auto t0 = clock::now();
+      tokenized[i] = tokenize_unlocked(texts[i]);
+      if (static_cast<int>(tokenized[i].size()) > n_batch) {
+        tokenized[i].resize(n_batch);
+      }
+      item_stats[i * 3] = static_cast<int64_t>(tokenized[i].size());
+      item_stats[i * 3 + 1] =
+          std::chrono::duration_cast<std::chrono::microseconds>(clock::now() -
+                                                                t0)
+              .count();
+    }
+
+    llama_batch batch = llama_batch_init(n_batch, 0, 1);
+    llama_set_embeddings(ctx_, true);
+    auto restore = [&]() {
+      for (int seq = 1; seq <= kMaxEmbedSequences; seq++) {
+        llama_kv_cache_seq_rm(ctx_, seq, -1, -1);
+      }
+      llama_set_embeddings(ctx_, false);
+      llama_batch_free(batch);
+    };
+
+    size_t begin = 0;
+    while (begin < n) {
+      batch.n_tokens = 0;
+      size_t end = begin;
+      int batch_tokens = 0;
+      while (end < n && end - begin < kMaxEmbedSequences) {
+        const auto &toks = tokenized[end];
+        if (end > begin &&
+            batch_tokens + static_cast<int>(toks.size()) > batch_cap) {
+          break;
+        }
+        const llama_seq_id seq = static_cast<llama_seq_id>(1 + end - begin);
+        for (size_t p = 0; p < toks.size(); p++) {
+          const int idx = batch.n_tokens++;
+          batch.token[idx] = toks[p];
+          batch.pos[idx] = static_cast<llama_pos>(p);
+          batch.n_seq_id[idx] = 1;
+          batch.seq_id[idx][0] = seq;
+          batch.logits[idx] = true;
+        }
+        batch_tokens += static_cast<int>(toks.size());
+        end++;
+      }
+
+      auto t0 = clock::now();
+      if (batch.n_tokens > 0 && llama_decode(ctx_, batch) != 0) {
+        restore();
+        throw std::runtime_error("Embedding batch decode failed");
+      }
+      const int64_t eval_us =
+          std::chrono::duration_cast<std::chrono::microseconds>(clock::now() -
+                                                                t0)
+              .count();
+
+      for (size_t i = begin; i < end; i++) {
+        const auto len = static_cast<int64_t>(tokenized[i].size());
+        if (len == 0) {
+          continue;
+        }
+        const llama_seq_id seq = static_cast<llama_seq_id>(1 + i - begin);
+        const float *emb = llama_get_embeddings_seq(ctx_, seq);
+        if (emb) {
+          std::copy(emb, emb + n_embd, out + i * n_embd);
+        }
+        item_stats[i * 3 + 2] =
+            batch_tokens > 0 ? eval_us * len / batch_tokens : 0;
+        llama_kv_cache_seq_rm(ctx_, seq, -1, -1);
+      }
+      begin = end;
+    }
+
+    restore();
+    sample_native_heap();
+  }
+
+  size_t embedding_size() const { return llama_n_embd(ctx_); }
+
+  // Marks |request_id| as aborted. Only takes abort_mutex_, never the
+  // context mutex, so it can be called while a generation is decoding.
+  // Request ids are unique, so an abort that arrives before its generation
+  // starts still takes effect and never leaks into a later request. The
+  // mark stays until finish_request() so the caller can still report the
+  // request as cancelled.
+  void request_abort(int64_t request_id) {
+    if (request_id == 0) {
+      return;
+    }
+    {
+      std::lock_guard<std::mutex> lock(abort_mutex_);
+      aborted_.insert(request_id);
+    }
+    std::lock_guard<std::mutex> lock(batch_mutex_);
+    for (auto it = batch_pending_.begin(); it != batch_pending_.end(); ++it) {
+      if (it->request_id == request_id) {
+        batch_pending_.erase(it);
+        batch_dropped_.push_back(request_id);
+        return;
+      }
+    }
+  }
+
+  bool is_aborted(int64_t request_id) const {
+    if (request_id == 0) {
+      return false;
+    }
+    std::lock_guard<std::mutex> lock(abort_mutex_);
+    return aborted_.count(request_id) > 0;
+  }
+
+  // Forgets the abort mark of a request that has finished.
+  void finish_request(int64_t request_id) {
+    std::lock_guard<std::mutex> lock(abort_mutex_);
+    aborted_.erase(request_id);
+  }
+
+  // Queues an independent prompt for the continuous batcher. Only takes the
+  // queue mutex, so it can be called while a step is decoding.
+  void batch_submit(BatchRequest request) {
+    std::lock_guard<std::mutex> lock(batch_mutex_);
+    batch_pending_.push_back(std::move(request));
+  }
+
+  // Number of prompts queued or decoding in the batch.
+  size_t batch_outstanding() {
+    std::lock_guard<std::mutex> lock(batch_mutex_);
+    return batch_pending_.size() + batch_active_count_ + batch_dropped_.size();
+  }
+
+  // Runs one continuous-batching step: queued prompts join while sequence
+  // ids are free, every active sequence contributes its next tokens (a
+  // prefill chunk or the last sampled token) to a single llama_decode, and
+  // each sequence samples from its own logits with its own temperature and
+  // RNG. Sequences that hit EOS, their token limit, an abort, the end of the
+  // context or a failed decode leave the batch and their request ids are
+  // appended to |finished|; the text and finish reason are then available
+  // from batch_take_result().
+  void batch_step(std::vector<int64_t> &finished) {
+    auto lock = timed_lock();
+    const auto step_start = std::chrono::steady_clock::now();
+    // The batch sequences share the context's cells with the conversation
+    // in sequence 0, so a sequence only gets tokens while cells are free.
+    const size_t n_ctx = llama_n_ctx(ctx_);
+
+    {
+      std::lock_guard<std::mutex> queue_lock(batch_mutex_);
+      while (!batch_pending_.empty() &&
+             batch_active_.size() < static_cast<size_t>(kMaxBatchSequences)) {
+        BatchSequence sequence;
+        sequence.request = std::move(batch_pending_.front());
+        batch_pending_.pop_front();
+        sequence.seq = next_free_batch_seq();
+        sequence.tokens = tokenize_unlocked(sequence.request.prompt);
+        const BatchRequest &request = sequence.request;
+        sequence.rng.seed(request.seed != 0
+                              ? request.seed
+                              : static_cast<uint32_t>(request.request_id));
+        if (sequence.tokens.size() + evaluated_.size() >= n_ctx) {
+          // The prompt and one generated token can never fit.
+          sequence.done = true;
+        }
+        batch_active_.push_back(std::move(sequence));
+      }
+      batch_active_count_ = batch_active_.size();
+      for (auto &sequence : batch_active_) {
+        if (!sequence.done && is_aborted(sequence.request.request_id)) {
+          sequence.done = true;
+          sequence.finish_reason = "cancelled";
+        }
+      }
+      // Prompts cancelled before they joined finish with no text.
+      finished.insert(finished.end(), batch_dropped_.begin(),
+                      batch_dropped_.end());
+      batch_dropped_.clear();
+    }
+
+    const int n_batch = batch_limit();
+    llama_batch &batch = scratch_batch(n_batch);
+    size_t used_cells = evaluated_.size();
+    for (const auto &sequence : batch_active_) {
+      used_cells += sequence.n_fed;
+    }
+
+    // Decoding sequences first: one token each keeps their latency flat
+    // while prefill chunks soak up the remaining batch capacity.
+    for (int pass = 0; pass < 2; pass++) {
+      for (auto &sequence : batch_active_) {
+        sequence.logits_index = pass == 0 ? -1 : sequence.logits_index;
+        if (sequence.done || sequence.tokens.empty()) {
+          continue;
+        }
+        const bool prefill = sequence.n_fed < sequence.tokens.size() - 1 ||
+                             sequence.n_generated == 0;
+        if ((pass == 0) == prefill) {
+          continue;
+        }
+        if (used_cells >= n_ctx) {
+          sequence.done = true;
+          continue;
+        }
+        const size_t remaining = sequence.tokens.size() - sequence.n_fed;
+        const size_t room = static_cast<size_t>(n_batch - batch.n_tokens);
+        const size_t take = std::min({remaining, room, n_ctx - used_cells});
+        used_cells += take;
+        for (size_t k = 0; k < take; k++) {
+          const int idx = batch.n_tokens++;
+          batch.token[idx] = sequence.tokens[sequence.n_fed];
+          batch.pos[idx] = static_cast<llama_pos>(sequence.n_fed);
+          batch.n_seq_id[idx] = 1;
+          batch.seq_id[idx][0] = sequence.seq;
+          batch.logits[idx] = false;
+          sequence.n_fed++;
+        }
+        if (take > 0 && sequence.n_fed == sequence.tokens.size()) {
+          batch.logits[batch.n_tokens - 1] = true;
+          sequence.logits_index = batch.n_tokens - 1;
+        }
+      }
+    }
+
+    bool decode_failed = false;
+    if (batch.n_tokens > 0) {
+      decode_failed = llama_decode(ctx_, batch) != 0;
+    }
+
+    const int n_vocab = llama_n_vocab(model_);
+    int64_t sampled = 0;
+    for (auto &sequence : batch_active_) {
+      if (sequence.tokens.empty()) {
+        sequence.done = true;
+      }
+      if (decode_failed && !sequence.done) {
+        sequence.done = true;
+        sequence.finish_reason = "error";
+      }
+      if (sequence.done || sequence.logits_index < 0) {
+        continue;
+      }
+      const float *logits = llama_get_logits_ith(ctx_, sequence.logits_index);
+      const llama_token token = sample_logits(
+          logits, n_vocab, sequence.request.temperature, sequence.rng);
+      sampled++;
+      if (token == llama_token_eos(ctx_)) {
+        sequence.done = true;
+        sequence.finish_reason = "eos";
+        continue;
+      }
+      sequence.text += llama_token_to_piece(ctx_, token);
+      sequence.tokens.push_back(token);
+      sequence.n_generated++;
+      if (sequence.n_generated >= sequence.request.max_tokens) {
+        sequence.done = true;
+      }
+    }
+
+    if (sampled > 0) {
+      const int64_t step_us = elapsed_us(step_start);
+      metrics_.decode_tokens.fetch_add(sampled, std::memory_order_relaxed);
+      metrics_.decode_us.fetch_add(step_us, std::memory_order_relaxed);
+      metrics_.token_latency.record(step_us);
+    }
+
+    std::lock_guard<std::mutex> queue_lock(batch_mutex_);
+    for (auto it = batch_active_.begin(); it != batch_active_.end();) {
+      if (!it->done) {
+        ++it;
+        continue;
+      }
+      llama_kv_cache_seq_rm(ctx_, it->seq, -1, -1);
+      BatchResult &result = batch_results_[it->request.request_id];
+      result.text = std::move(it->text);
+      result.finish_reason = it->finish_reason;
+      finished.push_back(it->request.request_id);
+      it = batch_active_.erase(it);
+    }
+    batch_active_count_ = batch_active_.size();
+  }
+
+  // Returns and forgets the result of a sequence reported by batch_step().
+  // A prompt cancelled before it joined has no text.
+  BatchResult batch_take_result(int64_t request_id) {
+    std::lock_guard<std::mutex> lock(batch_mutex_);
+    auto it = batch_results_.find(request_id);
+    if (it == batch_results_.end()) {
+      BatchResult dropped;
+      dropped.finish_reason = "cancelled";
+      return dropped;
+    }
+    BatchResult result = std::move(it->second);
+    batch_results_.erase(it);
+    return result;
+  }
+
   void clear_kv_cache() {
-    std::lock_guard<std::mutex> lock(mutex_);
+    auto lock = timed_lock();
     kv_cache_.clear();
     message_boundaries_.clear();
+    evaluated_.clear();
+    llama_kv_cache_seq_rm(ctx_, 0, -1, -1);
+  }
+
+  // Drops the conversation before the last message boundary, keeping the
+  // pinned prefix and the latest message. Used to shed memory under
+  // pressure; returns the number of tokens discarded.
+  size_t compact_to_last_boundary() {
+    auto lock = timed_lock();
+    const size_t pinned = pinned_length();
+    size_t last = pinned;
+    for (auto boundary : message_boundaries_) {
+      if (boundary > last && boundary < kv_cache_.size()) {
+        last = boundary;
+      }
+    }
+    const size_t n_discard = last - pinned;
+    if (n_discard > 0) {
+      discard_history(n_discard);
+    }
+    return n_discard;
+  }
+
+  const PrefixCacheStats &prefix_cache_stats() const { return prefix_stats_; }
+
+  const LoadTimings &load_timings() const { return load_timings_; }
+
+  // Times a prefill of |prefill_tokens| tokens and |decode_tokens|
+  // single-token steps at each thread count in |candidates|, writing
+  // tokens/s to |prefill_tps| and |decode_tps|. Meant to run right after
+  // loading: sequence 0 is cleared afterwards and the thread counts in
+  // effect before the call are restored.
+  void calibrate_threads(const std::vector<int> &candidates,
+                         int prefill_tokens, int decode_tokens,
+                         std::vector<double> &prefill_tps,
+                         std::vector<double> &decode_tps) {
+    auto lock = timed_lock();
+    const int n_ctx = static_cast<int>(llama_n_ctx(ctx_));
+    decode_tokens = std::max(1, std::min(decode_tokens, n_ctx / 2));
+    prefill_tokens = std::max(
+        1, std::min({prefill_tokens, static_cast<int>(llama_n_batch(ctx_)),
+                     n_ctx - decode_tokens}));
+    // Any valid ids will do; only the amount of work matters.
+    const int n_vocab = llama_n_vocab(model_);
+    std::vector<llama_token> prompt(prefill_tokens);
+    for (int i = 0; i < prefill_tokens; i++) {
+      prompt[i] = static_cast<llama_token>((i * 7919 + 1) % n_vocab);
+    }
+
+    prefill_tps.assign(candidates.size(), 0.0);
+    decode_tps.assign(candidates.size(), 0.0);
+    for (size_t c = 0; c < candidates.size(); c++) {
+      const int threads = std::max(1, candidates[c]);
+      llama_set_n_threads(ctx_, threads, threads);
+      llama_kv_cache_seq_rm(ctx_, 0, -1, -1);
+
+      auto t0 = std::chrono::steady_clock::now();
+      if (llama_eval(ctx_, prompt.data(), prefill_tokens, 0, threads) != 0) {
+        continue;
+      }
+      int64_t us = std::max<int64_t>(1, elapsed_us(t0));
+      prefill_tps[c] = prefill_tokens * 1e6 / us;
+
+      // A failed step ends the run; only the tokens decoded before it count.
+      int decoded = 0;
+      t0 = std::chrono::steady_clock::now();
+      while (decoded < decode_tokens &&
+             llama_eval(ctx_, &prompt[decoded % prefill_tokens], 1,
+                        prefill_tokens + decoded, threads) == 0) {
+        decoded++;
+      }
+      us = std::max<int64_t>(1, elapsed_us(t0));
+      decode_tps[c] = decoded * 1e6 / us;
+    }
+
+    llama_kv_cache_seq_rm(ctx_, 0, -1, -1);
+    evaluated_.clear();
+    llama_set_n_threads(ctx_, n_threads_, n_threads_batch_);
+  }
+
+  // Writes the conversation state to |path| and returns the file size in
+  // bytes. The file is written next to its destination and renamed into
+  // place, so a crash never leaves a truncated session behind.
+  int64_t save_session(const std::string &path) {
+    auto lock = timed_lock();
+
+    const size_t state_size = llama_state_seq_get_size(ctx_, 0);
+    std::vector<uint8_t> state(state_size);
+    if (state_size > 0 &&
+        llama_state_seq_get_data(ctx_, state.data(), state_size, 0) !=
+            state_size) {
+      throw std::runtime_error("Failed to read KV state");
+    }
+
+    SessionHeader header{};
+    header.magic = kSessionMagic;
+    header.version = kSessionVersion;
+    header.n_vocab = llama_n_vocab(model_);
+    header.n_embd = llama_n_embd(ctx_);
+    header.n_tokens = kv_cache_.size();
+    header.n_evaluated = evaluated_.size();
+    header.n_boundaries = message_boundaries_.size();
+    header.state_size = state_size;
+
+    std::vector<uint64_t> boundaries(message_boundaries_.begin(),
+                                     message_boundaries_.end());
+
+    const std::string tmp_path = path + ".tmp";
+    FILE *file = std::fopen(tmp_path.c_str(), "wb");
+    if (!file) {
+      throw std::runtime_error("Failed to open session file");
+    }
+    bool ok =
+        std::fwrite(&header, sizeof(header), 1, file) == 1 &&
+        std::fwrite(kv_cache_.data(), sizeof(llama_token), kv_cache_.size(),
+                    file) == kv_cache_.size() &&
+        std::fwrite(evaluated_.data(), sizeof(llama_token), evaluated_.size(),
+                    file) == evaluated_.size() &&
+        std::fwrite(boundaries.data(), sizeof(uint64_t), boundaries.size(),
+                    file) == boundaries.size() &&
+        std::fwrite(state.data(), 1, state.size(), file) == state.size();
+    ok = std::fclose(file) == 0 && ok;
+    if (!ok || std::rename(tmp_path.c_str(), path.c_str()) != 0) {
+      std::remove(tmp_path.c_str());
+      throw std::runtime_error("Failed to write session file");
+    }
+
+    return static_cast<int64_t>(sizeof(header) +
+                                (kv_cache_.size() + evaluated_.size()) *
+                                    sizeof(llama_token) +
+                                boundaries.size() * sizeof(uint64_t) +
+                                state.size());
+  }
+
+  // Restores a conversation written by save_session. The file is memory
+  // mapped and the KV state is loaded straight from the mapping. Returns the
+  // number of restored tokens, or -1 if the file does not match this model.
+  int64_t restore_session(const std::string &path) {
+    auto lock = timed_lock();
+
+    int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+      return -1;
+    }
+    struct stat st {};
+    if (fstat(fd, &st) != 0 ||
+        static_cast<size_t>(st.st_size) < sizeof(SessionHeader)) {
+      close(fd);
+      return -1;
+    }
+    const size_t file_size = static_cast<size_t>(st.st_size);
+    void *mapped = mmap(nullptr, file_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (mapped == MAP_FAILED) {
+      return -1;
+    }
+    auto unmap = [&]() { munmap(mapped, file_size); };
+
+    const auto *bytes = static_cast<const uint8_t *>(mapped);
+    SessionHeader header;
+    std::memcpy(&header, bytes, sizeof(header));
+    const size_t expected =
+        sizeof(header) +
+        (header.n_tokens + header.n_evaluated) * sizeof(llama_token) +
+        header.n_boundaries * sizeof(uint64_t) + header.state_size;
+    if (header.magic != kSessionMagic || header.version != kSessionVersion ||
+        header.n_vocab != llama_n_vocab(model_) ||
+        header.n_embd != llama_n_embd(ctx_) || expected != file_size) {
+      unmap();
+      return -1;
+    }
+
+    const uint8_t *cursor = bytes + sizeof(header);
+    std::vector<llama_token> tokens(header.n_tokens);
+    std::memcpy(tokens.data(), cursor, header.n_tokens * sizeof(llama_token));
+    cursor += header.n_tokens * sizeof(llama_token);
+    std::vector<llama_token> evaluated(header.n_evaluated);
+    std::memcpy(evaluated.data(), cursor,
+                header.n_evaluated * sizeof(llama_token));
+    cursor += header.n_evaluated * sizeof(llama_token);
+    std::vector<uint64_t> boundaries(header.n_boundaries);
+    std::memcpy(boundaries.data(), cursor,
+                header.n_boundaries * sizeof(uint64_t));
+    cursor += header.n_boundaries * sizeof(uint64_t);
+
+    llama_kv_cache_seq_rm(ctx_, 0, -1, -1);
+    if (header.state_size > 0 &&
+        llama_state_seq_set_data(ctx_, cursor, header.state_size, 0) == 0) {
+      unmap();
+      evaluated_.clear();
+      throw std::runtime_error("Failed to load KV state");
+    }
+    unmap();
+
+    kv_cache_ = std::move(tokens);
+    evaluated_ = std::move(evaluated);
+    message_boundaries_.assign(boundaries.begin(), boundaries.end());
+    return static_cast<int64_t>(kv_cache_.size());
   }
 
   void add_message_boundary() {
-    std::lock_guard<std::mutex> lock(mutex_);
+    auto lock = timed_lock();
     message_boundaries_.push_back(kv_cache_.size());
   }
 
-  size_t kv_cache_size() const { return kv_cache_.size(); }
+  size_t kv_cache_size() const { return kv_cache_.size(); }
+
+  size_t kv_cache_max_size() const { return max_cache_size_; }
+
+  // KV cache memory: bytes held by the tokens currently cached, bytes
+  // allocated for the whole context, and bytes per token. Lock-free.
+  void kv_cache_bytes(int64_t out[3]) const {
+    out[0] = static_cast<int64_t>(kv_cache_.size() * kv_bytes_per_token_);
+    out[1] = static_cast<int64_t>(llama_n_ctx(ctx_) * kv_bytes_per_token_);
+    out[2] = static_cast<int64_t>(kv_bytes_per_token_);
+  }
+
+  ggml_type kv_type_k() const { return type_k_; }
+  ggml_type kv_type_v() const { return type_v_; }
+
+  // Token budget that takes as much memory as |f16_tokens| would in an
+  // f16 cache; the performance modes are sized in f16 tokens.
+  size_t scaled_cache_tokens(size_t f16_tokens) const {
+    return static_cast<size_t>(f16_tokens * kvCompression(type_k_, type_v_));
+  }
+
+  // Writes kMetricsFields values into |out|; see InferenceMetricsReader.java
+  // for the layout. Lock-free.
+  void export_metrics(int64_t *out) const {
+    const auto &m = metrics_;
+    auto load = [](const std::atomic<int64_t> &v) {
+      return v.load(std::memory_order_relaxed);
+    };
+    struct rusage usage {};
+    getrusage(RUSAGE_SELF, &usage);
+    int i = 0;
+    out[i++] = load(m.inference_count);
+    out[i++] = load(m.total_inference_us);
+    out[i++] = load(m.last_inference_us);
+    out[i++] = load(m.prompt_tokens);
+    out[i++] = load(m.prompt_us);
+    out[i++] = load(m.decode_tokens);
+    out[i++] = load(m.decode_us);
+    out[i++] = load(m.trim_count);
+    out[i++] = load(m.trimmed_tokens);
+    out[i++] = load(m.lock_wait_us);
+    out[i++] = load(m.lock_acquisitions);
+    out[i++] = load(m.max_lock_wait_us);
+    out[i++] = load(m.peak_native_heap_bytes);
+    out[i++] = static_cast<int64_t>(usage.ru_maxrss) * 1024;
+    out[i++] = load(m.trim_us);
+    out[i++] = load(m.kv_shifts);
+    out[i++] = load(m.kv_shifted_tokens);
+    for (const LatencyHistogram *h :
+         {&m.time_to_first_token, &m.request_latency, &m.token_latency}) {
+      out[i++] = h->count();
+      out[i++] = h->sum_us();
+      out[i++] = h->percentile_us(0.50);
+      out[i++] = h->percentile_us(0.95);
+      out[i++] = h->percentile_us(0.99);
+      out[i++] = h->max_us();
+    }
+  }
+
+  void reset_metrics() { metrics_.reset(); }
+
+  void adjust_cache_size(size_t new_size) {
+    auto lock = timed_lock();
+    max_cache_size_ = new_size;
+    trimCache();
+  }
+
+  // Applies a governor decision: thread counts for single-token decode and
+  // for prompt prefill, the cap on tokens per llama_decode, and the KV-cache
+  // budget. The budget is given in f16 tokens and scaled for the cache type,
+  // like the performance modes. Returns the token budget applied.
+  size_t apply_runtime_policy(int n_threads, int n_threads_batch,
+                              int max_batch_tokens, size_t f16_cache_tokens) {
+    auto lock = timed_lock();
+    n_threads_ = std::max(1, n_threads);
+    n_threads_batch_ = std::max(1, n_threads_batch);
+    llama_set_n_threads(ctx_, n_threads_, n_threads_batch_);
+    max_batch_tokens_ = std::max(1, max_batch_tokens);
+    max_cache_size_ = scaled_cache_tokens(f16_cache_tokens);
+    trimCache();
+    return max_cache_size_;
+  }
+
+  // Sets the decode and prefill thread counts chosen at load time.
+  void set_threads(int n_threads, int n_threads_batch) {
+    auto lock = timed_lock();
+    n_threads_ = std::max(1, n_threads);
+    n_threads_batch_ = std::max(1, n_threads_batch);
+    llama_set_n_threads(ctx_, n_threads_, n_threads_batch_);
+  }
+
+  // Pins the tokens of |text| (typically the system prompt) at the start of
+  // the conversation so trimming never evicts them. An empty text unpins.
+  void set_pinned_prefix(const std::string &text) {
+    auto lock = timed_lock();
+    pinned_prefix_ = text.empty() ? std::vector<llama_token>()
+                                  : tokenize_unlocked(text);
+  }
+
+  void enable_sparse_attention(bool enable) {
+    auto lock = timed_lock();
+    use_sparse_attention_ = enable;
+  }
+
+private:
+  llama_model *model_ = nullptr;
+  llama_context *ctx_ = nullptr;
+  std::vector<llama_token> kv_cache_;
+  // Tokens currently resident in the llama KV cache for sequence 0, in
+  // position order. kv_cache_ is the desired sequence; sync_kv_cache()
+  // reconciles the two.
+  std::vector<llama_token> evaluated_;
+  std::vector<size_t> message_boundaries_;
+  std::vector<llama_token> pinned_prefix_;
+  size_t max_cache_size_ = 512;
+  bool is_quantized_ = false;
+  ggml_type type_k_ = GGML_TYPE_F16;
+  ggml_type type_v_ = GGML_TYPE_F16;
+  size_t kv_bytes_per_token_ = 0;
+  bool use_sparse_attention_ = false;
+  // Threads for single-token decode steps and for multi-token prefill.
+  // Decode is memory-bound and often runs best on fewer threads than the
+  // compute-bound prefill.
+  int n_threads_ = 4;
+  int n_threads_batch_ = 4;
+  // Upper bound on tokens per llama_decode, set by the governor. The context
+  // was created with llama_n_batch() and can never exceed that.
+  int max_batch_tokens_ = INT32_MAX;
+  mutable std::mutex mutex_;
+  // Ids of aborted requests that have not finished yet.
+  mutable std::mutex abort_mutex_;
+  std::unordered_set<int64_t> aborted_;
+  InferenceMetrics metrics_;
+
+  // Continuous batching state. batch_mutex_ guards the queue and the
+  // results; batch_active_ itself is only touched under mutex_.
+  std::mutex batch_mutex_;
+  std::deque<BatchRequest> batch_pending_;
+  std::vector<BatchSequence> batch_active_;
+  size_t batch_active_count_ = 0;
+  std::vector<int64_t> batch_dropped_;
+  std::unordered_map<int64_t, BatchResult> batch_results_;
+  struct {
+    llama_batch batch{};
+    int n_tokens_alloc = 0;
+  } batch_;
+
+  int batch_limit() const {
+    return std::min(static_cast<int>(llama_n_batch(ctx_)), max_batch_tokens_);
+  }
+
+  // Empty batch of at least |n_tokens| single-sequence slots, owned by the
+  // context so it is freed on every path. Callers hold mutex_.
+  llama_batch &scratch_batch(int n_tokens) {
+    if (batch_.n_tokens_alloc < n_tokens) {
+      if (batch_.n_tokens_alloc > 0) {
+        llama_batch_free(batch_.batch);
+        batch_.n_tokens_alloc = 0;
+      }
+      batch_.batch = llama_batch_init(n_tokens, 0, 1);
+      batch_.n_tokens_alloc = n_tokens;
+    }
+    batch_.batch.n_tokens = 0;
+    return batch_.batch;
+  }
+
+  llama_seq_id next_free_batch_seq() const {
+    for (int seq = kFirstBatchSequence;
+         seq < kFirstBatchSequence + kMaxBatchSequences; seq++) {
+      bool used = false;
+      for (const auto &sequence : batch_active_) {
+        used = used || sequence.seq == seq;
+      }
+      if (!used) {
+        return static_cast<llama_seq_id>(seq);
+      }
+    }
+    return kFirstBatchSequence;
+  }
+
+  // Temperature sampling straight from a logits row; greedy when the
+  // temperature is not positive. Uses probs_scratch_ so nothing is allocated
+  // once the first call has sized it.
+  llama_token sample_logits(const float *logits, int n_vocab,
+                            float temperature, std::mt19937 &rng) {
+    if (temperature <= 0.0f) {
+      return static_cast<llama_token>(
+          std::max_element(logits, logits + n_vocab) - logits);
+    }
+    probs_scratch_.resize(n_vocab);
+    const float max_logit = *std::max_element(logits, logits + n_vocab);
+    double sum = 0.0;
+    for (int i = 0; i < n_vocab; i++) {
+      probs_scratch_[i] = std::exp((logits[i] - max_logit) / temperature);
+      sum += probs_scratch_[i];
+    }
+    std::uniform_real_distribution<double> dist(0.0, sum);
+    double target = dist(rng);
+    for (int i = 0; i < n_vocab; i++) {
+      target -= probs_scratch_[i];
+      if (target <= 0.0) {
+        return static_cast<llama_token>(i);
+      }
+    }
+    return static_cast<llama_token>(n_vocab - 1);
+  }
+
+  // Samples from the current logits under |grammar|. The unconstrained draw
+  // is kept when the grammar accepts it, which costs a single token check;
+  // only a rejected draw pays for masking the whole vocabulary and drawing
+  // again. With plain temperature sampling this is exact rejection sampling
+  // of the masked distribution. Returns -1 when the grammar accepts no token
+  // at all.
+  llama_token sample_constrained(GrammarConstraint &grammar,
+                                 SamplerChain &sampler) {
+    const int n_vocab = llama_n_vocab(model_);
+    const float *logits = llama_get_logits(ctx_);
+    const llama_token token = sampler.sample(logits);
+    if (grammar.allows(ctx_, token)) {
+      return token;
+    }
+    grammar_logits_.assign(logits, logits + n_vocab);
+    if (grammar.mask(ctx_, grammar_logits_.data(), n_vocab) == 0) {
+      return -1;
+    }
+    return sampler.sample(grammar_logits_.data());
+  }
+
+  std::vector<float> probs_scratch_;
+  std::vector<float> grammar_logits_;
+  SamplerChain sampler_;
+  std::vector<float> spec_logits_;
+  PrefixCacheStats prefix_stats_;
+  LoadTimings load_timings_;
+
+  static int64_t elapsed_us(std::chrono::steady_clock::time_point start) {
+    return std::chrono::duration_cast<std::chrono::microseconds>(
+               std::chrono::steady_clock::now() - start)
+        .count();
+  }
 
-  size_t kv_cache_max_size() const { return max_cache_size_; }
+  // Acquires mutex_ and records how long the caller waited for it.
+  std::unique_lock<std::mutex> timed_lock() {
+    const auto start = std::chrono::steady_clock::now();
+    std::unique_lock<std::mutex> lock(mutex_);
+    const int64_t waited = elapsed_us(start);
+    metrics_.lock_wait_us.fetch_add(waited, std::memory_order_relaxed);
+    metrics_.lock_acquisitions.fetch_add(1, std::memory_order_relaxed);
+    InferenceMetrics::update_max(metrics_.max_lock_wait_us, waited);
+    return lock;
+  }
 
-  PerformanceStats get_performance_stats() const { return performance_stats_; }
+  // Samples the allocator once per request, outside the decode loop.
+  void sample_native_heap() {
+    const struct mallinfo info = mallinfo();
+    InferenceMetrics::update_max(metrics_.peak_native_heap_bytes,
+                                 static_cast<int64_t>(info.uordblks));
+  }
 
-  void adjust_cache_size(size_t new_size) {
-    std::lock_guard<std::mutex> lock(mutex_);
-    max_cache_size_ = new_size;
-    trimCache();
+  // Brings the llama KV cache for sequence 0 in line with kv_cache_. Only the
+  // tokens after the longest common prefix with the resident sequence are
+  // evaluated, so a system prompt shared across turns is computed once.
+  // Returns the number of resident tokens reused. Callers must hold mutex_.
+  size_t sync_kv_cache() {
+    const size_t n = kv_cache_.size();
+    const size_t limit = std::min(n, evaluated_.size());
+    size_t common = 0;
+    while (common < limit && kv_cache_[common] == evaluated_[common]) {
+      common++;
+    }
+    // Re-evaluate at least the final token so its logits are current.
+    if (common == n && n > 0) {
+      common--;
+    }
+    if (common < evaluated_.size()) {
+      llama_kv_cache_seq_rm(ctx_, 0, static_cast<llama_pos>(common), -1);
+      evaluated_.resize(common);
+    }
+    if (common < n) {
+      llama_eval(ctx_, kv_cache_.data() + common, n - common, common,
+                 n - common > 1 ? n_threads_batch_ : n_threads_);
+      evaluated_.insert(evaluated_.end(), kv_cache_.begin() + common,
+                        kv_cache_.end());
+    }
+    return common;
   }
 
-  void enable_sparse_attention(bool enable) {
-    std::lock_guard<std::mutex> lock(mutex_);
-    use_sparse_attention_ = enable;
+  // Callers must hold mutex_.
+  std::vector<llama_token> tokenize_unlocked(const std::string &text) {
+    return llama_tokenize(ctx_, text, true);
   }
 
-private:
-  llama_model *model_ = nullptr;
-  llama_context *ctx_ = nullptr;
-  std::vector<llama_token> kv_cache_;
-  std::vector<size_t> message_boundaries_;
-  size_t max_cache_size_ = 512;
-  bool is_quantized_ = false;
-  bool use_sparse_attention_ = false;
-  mutable std::mutex mutex_;
-  PerformanceStats performance_stats_;
+  // Number of leading kv_cache_ tokens that match the pinned prefix and
+  // must survive trimming. Ignored when it would leave no room to trim.
+  size_t pinned_length() const {
+    const size_t limit = std::min(kv_cache_.size(), pinned_prefix_.size());
+    size_t n = 0;
+    while (n < limit && kv_cache_[n] == pinned_prefix_[n]) {
+      n++;
+    }
+    return n < max_cache_size_ ? n : 0;
+  }
 
+  // Keeps kv_cache_ within max_cache_size_ by discarding the oldest span
+  // after the pinned prefix, extended to the next message boundary when one
+  // is close enough. When that span is resident in the llama KV cache it is
+  // removed there too and the following cells are shifted down with
+  // llama_kv_cache_seq_add, so the remaining tokens are not evaluated again.
   void trimCache() {
     if (kv_cache_.size() <= max_cache_size_)
       return;
-
-    if (message_boundaries_.size() > 1) {
-      size_t trim_index = 0;
-      for (size_t i = 0; i < message_boundaries_.size() - 1; i++) {
-        if (kv_cache_.size() - message_boundaries_[i] <= max_cache_size_) {
-          trim_index = message_boundaries_[i];
-          break;
-        }
+    const auto start = std::chrono::steady_clock::now();
+
+    const size_t pinned = pinned_length();
+    const size_t excess = kv_cache_.size() - max_cache_size_;
+    size_t n_discard = excess;
+    for (size_t i = 0; i + 1 < message_boundaries_.size(); i++) {
+      const size_t boundary = message_boundaries_[i];
+      if (boundary > pinned && boundary - pinned >= excess) {
+        n_discard = boundary - pinned;
+        break;
       }
+    }
+    n_discard = std::min(n_discard, kv_cache_.size() - pinned);
+    discard_history(n_discard);
 
-      if (trim_index > 0) {
-        kv_cache_.erase(kv_cache_.begin(), kv_cache_.begin() + trim_index);
+    metrics_.trim_count.fetch_add(1, std::memory_order_relaxed);
+    metrics_.trimmed_tokens.fetch_add(static_cast<int64_t>(n_discard),
+                                      std::memory_order_relaxed);
+    metrics_.trim_us.fetch_add(elapsed_us(start), std::memory_order_relaxed);
+  }
 
-        std::vector<size_t> new_boundaries;
-        for (auto boundary : message_boundaries_) {
-          if (boundary > trim_index) {
-            new_boundaries.push_back(boundary - trim_index);
-          }
-        }
-        message_boundaries_ = new_boundaries;
-        return;
-      }
+  // Removes the |n_discard| tokens that follow the pinned prefix from
+  // kv_cache_, the resident llama sequence and the message boundaries,
+  // shifting the remaining positions down. Callers must hold mutex_.
+  void discard_history(size_t n_discard) {
+    const size_t pinned = pinned_length();
+    const size_t end = pinned + n_discard;
+
+    // Length of the resident sequence that still matches kv_cache_.
+    const size_t limit = std::min(evaluated_.size(), kv_cache_.size());
+    size_t resident = 0;
+    while (resident < limit && evaluated_[resident] == kv_cache_[resident]) {
+      resident++;
+    }
+    if (resident < evaluated_.size()) {
+      llama_kv_cache_seq_rm(ctx_, 0, static_cast<llama_pos>(resident), -1);
+      evaluated_.resize(resident);
+    }
+    if (resident >= end) {
+      llama_kv_cache_seq_rm(ctx_, 0, static_cast<llama_pos>(pinned),
+                            static_cast<llama_pos>(end));
+      llama_kv_cache_seq_add(ctx_, 0, static_cast<llama_pos>(end), -1,
+                             -static_cast<llama_pos>(n_discard));
+      evaluated_.erase(evaluated_.begin() + pinned, evaluated_.begin() + end);
+      metrics_.kv_shifts.fetch_add(1, std::memory_order_relaxed);
+      metrics_.kv_shifted_tokens.fetch_add(
+          static_cast<int64_t>(resident - end), std::memory_order_relaxed);
+    } else if (resident > pinned) {
+      // Only part of the discarded span was ever evaluated; drop it and let
+      // sync_kv_cache() evaluate the (not yet resident) tail.
+      llama_kv_cache_seq_rm(ctx_, 0, static_cast<llama_pos>(pinned), -1);
+      evaluated_.resize(pinned);
     }
 
-    size_t excess = kv_cache_.size() - max_cache_size_;
-    kv_cache_.erase(kv_cache_.begin(), kv_cache_.begin() + excess);
+    kv_cache_.erase(kv_cache_.begin() + pinned, kv_cache_.begin() + end);
+    std::vector<size_t> boundaries;
+    boundaries.reserve(message_boundaries_.size());
+    for (auto boundary : message_boundaries_) {
+      if (boundary <= pinned) {
+        boundaries.push_back(boundary);
+      } else if (boundary > end) {
+        boundaries.push_back(boundary - n_discard);
+      }
+    }
+    message_boundaries_ = std::move(boundaries);
   }
 };
 
 extern "C" JNIEXPORT jlong JNICALL
-Java_com_mongars_LlamaTurboModule_loadModel(JNIEnv *env, jobject thiz,
-                                                    jstring model_path,
-                                                    jint context_size,
-                                                    jint n_threads) {
+Java_com_mongars_LlamaTurboModule_loadModel(
+    JNIEnv *env, jobject thiz, jstring model_path, jint context_size,
+    jint n_threads, jint n_threads_batch, jboolean use_mmap,
+    jboolean use_mlock, jboolean warmup, jstring kv_cache_type,
+    jobject listener, jlongArray phase_times) {
   JStringGuard path(env, model_path);
+  JStringGuard kv_type_name(env, kv_cache_type);
   LlamaContext *ctx = nullptr;
   try {
     std::string model_path_str(path.cstr);
@@ -259,7 +2408,18 @@ Java_com_mongars_LlamaTurboModule_loadModel(JNIEnv *env, jobject thiz,
       }
     }
 
+    ggml_type kv_type;
+    if (!kvTypeFromName(kv_type_name.cstr, kv_type)) {
+      env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                    "Invalid KV cache type");
+      return 0;
+    }
+
+    // A quantized KV cache fits proportionally more tokens in the same
+    // memory, so the context limit grows with it.
     int max_ctx = is_quantized ? 8192 : 4096;
+    max_ctx = static_cast<int>(max_ctx *
+                               kvCompression(kv_type, kvValueType(kv_type)));
     if (context_size <= 0 || context_size > max_ctx) {
       env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
                     "Invalid context size");
@@ -268,13 +2428,46 @@ Java_com_mongars_LlamaTurboModule_loadModel(JNIEnv *env, jobject thiz,
 
     int hw_threads =
         std::max(1, static_cast<int>(std::thread::hardware_concurrency()));
-    if (n_threads <= 0 || n_threads > hw_threads) {
+    if (n_threads <= 0 || n_threads > hw_threads || n_threads_batch <= 0 ||
+        n_threads_batch > hw_threads) {
       env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
                     "Invalid thread count");
       return 0;
     }
 
-    ctx = new LlamaContext(path.cstr, context_size, n_threads, is_quantized);
+    LoadOptions options;
+    options.use_mmap = use_mmap;
+    options.use_mlock = use_mlock;
+    options.warmup = warmup;
+    options.kv_type = kv_type;
+
+    LoadProgressCallback on_progress;
+    jmethodID on_load_progress = nullptr;
+    if (listener) {
+      jclass listener_class = env->GetObjectClass(listener);
+      on_load_progress = env->GetMethodID(listener_class, "onProgress",
+                                          "(Ljava/lang/String;FI)V");
+      env->DeleteLocalRef(listener_class);
+      on_progress = [&](const char *phase, float progress, int layers) {
+        jstring phase_str = env->NewStringUTF(phase);
+        env->CallVoidMethod(listener, on_load_progress, phase_str, progress,
+                            layers);
+        env->DeleteLocalRef(phase_str);
+        if (env->ExceptionCheck()) {
+          env->ExceptionClear();
+        }
+      };
+    }
+
+    ctx = new LlamaContext(path.cstr, context_size, n_threads,
+                           n_threads_batch, is_quantized, options,
+                           on_progress);
+    if (phase_times && env->GetArrayLength(phase_times) >= 3) {
+      const LoadTimings &timings = ctx->load_timings();
+      jlong values[3] = {timings.weights_us, timings.context_us,
+                         timings.warmup_us};
+      env->SetLongArrayRegion(phase_times, 0, 3, values);
+    }
     return reinterpret_cast<jlong>(ctx);
   } catch (const std::exception &e) {
     delete ctx;
@@ -283,10 +2476,83 @@ Java_com_mongars_LlamaTurboModule_loadModel(JNIEnv *env, jobject thiz,
   }
 }
 
+// Compiles |grammar_text| into |out|; a null string leaves |out| empty.
+// Returns false with an IllegalArgumentException pending when the grammar
+// does not parse.
+static bool compileGrammar(JNIEnv *env, jstring grammar_text,
+                           std::unique_ptr<GrammarConstraint> &out) {
+  if (!grammar_text) {
+    return true;
+  }
+  JStringGuard g(env, grammar_text);
+  try {
+    out = std::make_unique<GrammarConstraint>(g.cstr ? g.cstr : "");
+    return true;
+  } catch (const std::exception &e) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                  e.what());
+    return false;
+  }
+}
+
+// Reads the fields of a com.mongars.SamplingParams object.
+static SamplingParams readSamplingParams(JNIEnv *env, jobject params) {
+  SamplingParams out;
+  if (!params) {
+    return out;
+  }
+  jclass cls = env->GetObjectClass(params);
+  auto f = [&](const char *name) {
+    return env->GetFloatField(params, env->GetFieldID(cls, name, "F"));
+  };
+  auto i = [&](const char *name) {
+    return env->GetIntField(params, env->GetFieldID(cls, name, "I"));
+  };
+  out.temperature = f("temperature");
+  out.top_k = i("topK");
+  out.top_p = f("topP");
+  out.min_p = f("minP");
+  out.repeat_penalty = f("repeatPenalty");
+  out.frequency_penalty = f("frequencyPenalty");
+  out.presence_penalty = f("presencePenalty");
+  out.penalty_last_n = i("penaltyLastN");
+  out.seed = static_cast<uint32_t>(i("seed"));
+  auto stop = static_cast<jobjectArray>(env->GetObjectField(
+      params, env->GetFieldID(cls, "stop", "[Ljava/lang/String;")));
+  if (stop) {
+    out.stop = toStringVector(env, stop);
+    env->DeleteLocalRef(stop);
+  }
+  env->DeleteLocalRef(cls);
+  return out;
+}
+
+// Stores |reason| in |reason_out|[0] when the caller passed an array.
+static void writeFinishReason(JNIEnv *env, jobjectArray reason_out,
+                              const char *reason) {
+  if (!reason_out || env->GetArrayLength(reason_out) < 1) {
+    return;
+  }
+  jstring value = env->NewStringUTF(reason);
+  env->SetObjectArrayElement(reason_out, 0, value);
+  env->DeleteLocalRef(value);
+}
+
+// Drops the bytes of a matched stop string from the end of |text|.
+static void trimStop(std::string &text, const GenerateOutcome &outcome) {
+  text.resize(text.size() - std::min(text.size(), outcome.trim_bytes));
+}
+
 extern "C" JNIEXPORT jstring JNICALL
 Java_com_mongars_LlamaTurboModule_generate(
     JNIEnv *env, jobject thiz, jlong ctx_ptr, jstring prompt, jint max_tokens,
-    jfloat temperature, jboolean use_sparse_attention) {
+    jobject sampling_params, jboolean use_sparse_attention, jlong request_id,
+    jstring grammar_text, jobjectArray finish_reason_out) {
+  std::unique_ptr<GrammarConstraint> grammar;
+  if (!compileGrammar(env, grammar_text, grammar)) {
+    return nullptr;
+  }
+  const SamplingParams sampling = readSamplingParams(env, sampling_params);
   return jniWithCtx<jstring>(
       env, ctx_ptr, env->NewStringUTF("Error: Model not loaded"),
       [&](LlamaContext *ctx) {
@@ -295,15 +2561,283 @@ Java_com_mongars_LlamaTurboModule_generate(
 
         ctx->add_message_boundary();
         auto in = ctx->tokenize(prompt_text);
-        auto out =
-            ctx->generate(in, max_tokens, temperature, use_sparse_attention);
+        GenerateOutcome outcome;
+        auto out = ctx->generate(in, max_tokens, sampling, use_sparse_attention,
+                                 nullptr, request_id, grammar.get(), &outcome);
+
+        // Constrained output is returned on its own so it parses as is.
+        if (!grammar) {
+          in.insert(in.end(), out.begin(), out.end());
+        }
+        std::string resp = ctx->detokenize(grammar ? out : in);
+        trimStop(resp, outcome);
+        writeFinishReason(env, finish_reason_out, outcome.finish_reason);
+        return env->NewStringUTF(resp.c_str());
+      });
+}
+
+// Returns the length of the longest prefix of |bytes| that does not end in the
+// middle of a UTF-8 sequence. Token pieces can split multi-byte characters, and
+// NewStringUTF rejects truncated sequences, so the tail is held back until the
+// next piece completes it.
+static size_t utf8CompletePrefix(const std::string &bytes) {
+  size_t n = bytes.size();
+  size_t i = n;
+  int back = 0;
+  while (i > 0 && back < 4) {
+    unsigned char c = static_cast<unsigned char>(bytes[i - 1]);
+    if ((c & 0xC0) != 0x80) {
+      size_t need = (c & 0x80) == 0      ? 1
+                    : (c & 0xE0) == 0xC0 ? 2
+                    : (c & 0xF0) == 0xE0 ? 3
+                    : (c & 0xF8) == 0xF0 ? 4
+                                         : 1;
+      return (n - (i - 1)) >= need ? n : i - 1;
+    }
+    i--;
+    back++;
+  }
+  return n;
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_mongars_LlamaTurboModule_generateStream(
+    JNIEnv *env, jobject thiz, jlong ctx_ptr, jstring prompt, jint max_tokens,
+    jobject sampling_params, jboolean use_sparse_attention, jlong request_id,
+    jobject listener, jstring grammar_text, jobjectArray finish_reason_out) {
+  std::unique_ptr<GrammarConstraint> grammar;
+  if (!compileGrammar(env, grammar_text, grammar)) {
+    return nullptr;
+  }
+  const SamplingParams sampling = readSamplingParams(env, sampling_params);
+  return jniWithCtx<jstring>(
+      env, ctx_ptr, env->NewStringUTF(""), [&](LlamaContext *ctx) {
+        JStringGuard g(env, prompt);
+        std::string prompt_text(g.cstr);
+
+        jclass listener_class = env->GetObjectClass(listener);
+        jmethodID on_token =
+            env->GetMethodID(listener_class, "onToken", "(Ljava/lang/String;)V");
+        jmethodID on_text =
+            env->GetMethodID(listener_class, "onText", "(Ljava/lang/String;)V");
+        env->DeleteLocalRef(listener_class);
+
+        std::string pending;
+        auto emit = [&](const std::string &text) {
+          jstring piece = env->NewStringUTF(text.c_str());
+          env->CallVoidMethod(listener, on_token, piece);
+          env->DeleteLocalRef(piece);
+          if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+          }
+        };
+
+        ctx->add_message_boundary();
+        auto in = ctx->tokenize(prompt_text);
+        GenerateOutcome outcome;
+        auto out = ctx->generate(
+            in, max_tokens, sampling, use_sparse_attention,
+            [&](llama_token, const std::string &piece) {
+              // Emit once per token, even when the piece is held back, so the
+              // listener can count tokens for its throughput summary.
+              pending += piece;
+              size_t complete = utf8CompletePrefix(pending);
+              emit(pending.substr(0, complete));
+              pending.erase(0, complete);
+            },
+            request_id, grammar.get(), &outcome);
+
+        // Text held back for a stop string that never completed belongs to
+        // the output after all. It is not a token of its own.
+        pending += outcome.held;
+        if (!pending.empty()) {
+          jstring text = env->NewStringUTF(
+              pending.substr(0, utf8CompletePrefix(pending)).c_str());
+          env->CallVoidMethod(listener, on_text, text);
+          env->DeleteLocalRef(text);
+          if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+          }
+        }
 
-        in.insert(in.end(), out.begin(), out.end());
-        std::string resp = ctx->detokenize(in);
+        std::string resp = ctx->detokenize(out);
+        trimStop(resp, outcome);
+        writeFinishReason(env, finish_reason_out, outcome.finish_reason);
         return env->NewStringUTF(resp.c_str());
       });
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_batchSubmit(
+    JNIEnv *env, jobject thiz, jlong ctx_ptr, jstring prompt, jint max_tokens,
+    jfloat temperature, jint seed, jlong request_id) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (!ctx) {
+    return;
+  }
+  JStringGuard g(env, prompt);
+  BatchRequest request;
+  request.request_id = request_id;
+  request.prompt = g.cstr ? g.cstr : "";
+  request.max_tokens = std::max(1, static_cast<int>(max_tokens));
+  request.temperature = temperature;
+  request.seed = static_cast<uint32_t>(seed);
+  ctx->batch_submit(std::move(request));
+}
+
+// Runs one continuous-batching step and returns the request ids of the
+// sequences that finished in it.
+extern "C" JNIEXPORT jlongArray JNICALL
+Java_com_mongars_LlamaTurboModule_batchStep(JNIEnv *env, jobject thiz,
+                                            jlong ctx_ptr) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  std::vector<int64_t> finished;
+  if (ctx) {
+    try {
+      ctx->batch_step(finished);
+    } catch (const std::exception &e) {
+      env->ThrowNew(env->FindClass("java/lang/RuntimeException"), e.what());
+      return nullptr;
+    }
+  }
+  jlongArray out = env->NewLongArray(static_cast<jsize>(finished.size()));
+  if (!finished.empty()) {
+    env->SetLongArrayRegion(out, 0, static_cast<jsize>(finished.size()),
+                            reinterpret_cast<const jlong *>(finished.data()));
+  }
+  return out;
+}
+
+// Returns the text of a finished sequence and stores its finish reason in
+// |reason_out|[0].
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_mongars_LlamaTurboModule_batchTakeResult(JNIEnv *env, jobject thiz,
+                                                  jlong ctx_ptr,
+                                                  jlong request_id,
+                                                  jobjectArray reason_out) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  BatchResult result =
+      ctx ? ctx->batch_take_result(request_id) : BatchResult();
+  result.text.resize(utf8CompletePrefix(result.text));
+  if (reason_out && env->GetArrayLength(reason_out) > 0) {
+    jstring reason = env->NewStringUTF(result.finish_reason);
+    env->SetObjectArrayElement(reason_out, 0, reason);
+    env->DeleteLocalRef(reason);
+  }
+  return env->NewStringUTF(result.text.c_str());
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_mongars_LlamaTurboModule_batchOutstanding(JNIEnv *env, jobject thiz,
+                                                   jlong ctx_ptr) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  return ctx ? static_cast<jint>(ctx->batch_outstanding()) : 0;
+}
+
+// Speculative generation with |draft_ptr| proposing tokens. |listener| may be
+// null; otherwise it receives onToken like generateStream. |stats| receives
+// drafted, accepted, verifications, generated, draft us, verify us, decode us
+// and the baseline us/token. The finish reason goes to |finish_reason_out|[0]
+// as for generate.
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_mongars_LlamaTurboModule_generateSpeculative(
+    JNIEnv *env, jobject thiz, jlong ctx_ptr, jlong draft_ptr, jstring prompt,
+    jint max_tokens, jobject sampling_params, jint n_draft, jlong request_id,
+    jobject listener, jlongArray stats_out, jobjectArray finish_reason_out) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  auto *draft = reinterpret_cast<LlamaContext *>(draft_ptr);
+  if (!ctx || !draft) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalStateException"),
+                  "Model not loaded");
+    return nullptr;
+  }
+  JStringGuard g(env, prompt);
+  std::string prompt_text(g.cstr);
+
+  TokenCallback on_token;
+  std::string pending;
+  jmethodID on_token_method = nullptr;
+  if (listener) {
+    jclass listener_class = env->GetObjectClass(listener);
+    on_token_method =
+        env->GetMethodID(listener_class, "onToken", "(Ljava/lang/String;)V");
+    env->DeleteLocalRef(listener_class);
+    on_token = [&](llama_token, const std::string &piece) {
+      pending += piece;
+      size_t complete = utf8CompletePrefix(pending);
+      jstring text = env->NewStringUTF(pending.substr(0, complete).c_str());
+      pending.erase(0, complete);
+      env->CallVoidMethod(listener, on_token_method, text);
+      env->DeleteLocalRef(text);
+      if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+      }
+    };
+  }
+
+  try {
+    SpeculativeStats stats;
+    GenerateOutcome outcome;
+    const SamplingParams sampling = readSamplingParams(env, sampling_params);
+    ctx->add_message_boundary();
+    auto in = ctx->tokenize(prompt_text);
+    auto out = ctx->generate_speculative(*draft, in, max_tokens, sampling,
+                                         n_draft, stats, on_token, request_id,
+                                         &outcome);
+    writeFinishReason(env, finish_reason_out, outcome.finish_reason);
+    if (stats_out && env->GetArrayLength(stats_out) >= 8) {
+      jlong values[8] = {stats.drafted,   stats.accepted,
+                         stats.verifications, stats.generated,
+                         stats.draft_us,  stats.verify_us,
+                         stats.decode_us, stats.baseline_us_per_token};
+      env->SetLongArrayRegion(stats_out, 0, 8, values);
+    }
+    std::string resp = ctx->detokenize(out);
+    resp.resize(utf8CompletePrefix(resp));
+    return env->NewStringUTF(resp.c_str());
+  } catch (const std::exception &e) {
+    env->ThrowNew(env->FindClass("java/lang/RuntimeException"), e.what());
+    return nullptr;
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_setPinnedPrefix(JNIEnv *env, jobject thiz,
+                                                  jlong ctx_ptr,
+                                                  jstring text) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx) {
+    JStringGuard g(env, text);
+    ctx->set_pinned_prefix(g.cstr ? g.cstr : "");
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_abort(JNIEnv *env, jobject thiz,
+                                        jlong ctx_ptr, jlong request_id) {
+  LlamaContext *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx) {
+    ctx->request_abort(request_id);
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_finishRequest(JNIEnv *env, jobject thiz,
+                                                jlong ctx_ptr,
+                                                jlong request_id) {
+  LlamaContext *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx) {
+    ctx->finish_request(request_id);
+  }
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_mongars_LlamaTurboModule_isAborted(JNIEnv *env, jobject thiz,
+                                            jlong ctx_ptr, jlong request_id) {
+  LlamaContext *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  return ctx && ctx->is_aborted(request_id) ? JNI_TRUE : JNI_FALSE;
+}
+
 extern "C" JNIEXPORT jfloatArray JNICALL
 Java_com_mongars_LlamaTurboModule_embed(JNIEnv *env, jobject thiz,
                                                 jlong ctx_ptr, jstring text) {
@@ -318,6 +2852,140 @@ Java_com_mongars_LlamaTurboModule_embed(JNIEnv *env, jobject thiz,
       });
 }
 
+extern "C" JNIEXPORT jfloatArray JNICALL
+Java_com_mongars_LlamaTurboModule_embedBatch(JNIEnv *env, jobject thiz,
+                                             jlong ctx_ptr, jobjectArray texts,
+                                             jlongArray item_stats) {
+  return jniWithCtx<jfloatArray>(
+      env, ctx_ptr, env->NewFloatArray(0), [&](LlamaContext *ctx) {
+        auto inputs = toStringVector(env, texts);
+
+        std::vector<int64_t> stats;
+        auto packed = ctx->embed_batch(inputs, stats);
+
+        if (item_stats && env->GetArrayLength(item_stats) >= (jsize)stats.size()) {
+          static_assert(sizeof(jlong) == sizeof(int64_t), "jlong size");
+          env->SetLongArrayRegion(item_stats, 0, (jsize)stats.size(),
+                                  reinterpret_cast<const jlong *>(stats.data()));
+        }
+
+        jfloatArray arr = env->NewFloatArray((jsize)packed.size());
+        env->SetFloatArrayRegion(arr, 0, packed.size(), packed.data());
+        return arr;
+      });
+}
+
+// Tokenizes |texts| and returns their token ids back to back; the number of
+// tokens of each text goes to |counts|.
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_mongars_LlamaTurboModule_tokenizeBatch(JNIEnv *env, jobject thiz,
+                                                jlong ctx_ptr,
+                                                jobjectArray texts,
+                                                jboolean add_bos,
+                                                jintArray counts) {
+  return jniWithCtx<jintArray>(
+      env, ctx_ptr, env->NewIntArray(0), [&](LlamaContext *ctx) {
+        auto inputs = toStringVector(env, texts);
+        std::vector<llama_token> tokens;
+        std::vector<int32_t> per_text;
+        ctx->tokenize_batch(inputs, add_bos, tokens, per_text);
+
+        static_assert(sizeof(jint) == sizeof(llama_token), "jint size");
+        if (counts && env->GetArrayLength(counts) >= (jsize)per_text.size()) {
+          env->SetIntArrayRegion(counts, 0, (jsize)per_text.size(),
+                                 reinterpret_cast<const jint *>(per_text.data()));
+        }
+        jintArray arr = env->NewIntArray((jsize)tokens.size());
+        env->SetIntArrayRegion(arr, 0, (jsize)tokens.size(),
+                               reinterpret_cast<const jint *>(tokens.data()));
+        return arr;
+      });
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_mongars_LlamaTurboModule_getEmbeddingSize(JNIEnv *env, jobject thiz,
+                                                   jlong ctx_ptr) {
+  LlamaContext *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  return ctx ? static_cast<jint>(ctx->embedding_size()) : 0;
+}
+
+// Fills the direct ByteBuffer |out| with float32 embeddings for |texts|,
+// row-major, in native byte order. Returns the number of floats written, or
+// -1 when the buffer is not direct or too small.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_mongars_LlamaTurboModule_embedBatchInto(
+    JNIEnv *env, jobject thiz, jlong ctx_ptr, jobjectArray texts, jobject out,
+    jlongArray item_stats) {
+  return jniWithCtx<jint>(env, ctx_ptr, -1, [&](LlamaContext *ctx) {
+    auto *dst = static_cast<float *>(env->GetDirectBufferAddress(out));
+    const jlong capacity = env->GetDirectBufferCapacity(out);
+    const jsize n = env->GetArrayLength(texts);
+    const size_t needed = static_cast<size_t>(n) * ctx->embedding_size();
+    if (!dst || capacity < 0 ||
+        static_cast<size_t>(capacity) < needed * sizeof(float)) {
+      return -1;
+    }
+
+    auto inputs = toStringVector(env, texts);
+
+    std::vector<int64_t> stats;
+    ctx->embed_batch_into(inputs, stats, dst);
+    if (item_stats && env->GetArrayLength(item_stats) >= (jsize)stats.size()) {
+      env->SetLongArrayRegion(item_stats, 0, (jsize)stats.size(),
+                              reinterpret_cast<const jlong *>(stats.data()));
+    }
+    return static_cast<jint>(needed);
+  });
+}
+
+extern "C" JNIEXPORT jlongArray JNICALL
+Java_com_mongars_LlamaTurboModule_getPrefixCacheStats(JNIEnv *env,
+                                                      jobject thiz,
+                                                      jlong ctx_ptr) {
+  jlongArray arr = env->NewLongArray(4);
+  LlamaContext *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx) {
+    const auto &stats = ctx->prefix_cache_stats();
+    const jlong values[4] = {stats.lookups.load(), stats.hits.load(),
+                             stats.tokens_reused.load(),
+                             stats.tokens_evaluated.load()};
+    env->SetLongArrayRegion(arr, 0, 4, values);
+  }
+  return arr;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_mongars_LlamaTurboModule_saveSession(JNIEnv *env, jobject thiz,
+                                              jlong ctx_ptr, jstring path) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (!ctx) {
+    return -1;
+  }
+  JStringGuard g(env, path);
+  try {
+    return ctx->save_session(g.cstr);
+  } catch (const std::exception &e) {
+    env->ThrowNew(env->FindClass("java/io/IOException"), e.what());
+    return -1;
+  }
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_mongars_LlamaTurboModule_restoreSession(JNIEnv *env, jobject thiz,
+                                                 jlong ctx_ptr, jstring path) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (!ctx) {
+    return -1;
+  }
+  JStringGuard g(env, path);
+  try {
+    return ctx->restore_session(g.cstr);
+  } catch (const std::exception &e) {
+    env->ThrowNew(env->FindClass("java/io/IOException"), e.what());
+    return -1;
+  }
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_com_mongars_LlamaTurboModule_clearKVCache(JNIEnv *env,
                                                        jobject thiz,
@@ -339,6 +3007,40 @@ Java_com_mongars_LlamaTurboModule_getKVCacheSize(JNIEnv *env,
   return 0;
 }
 
+extern "C" JNIEXPORT jint JNICALL
+Java_com_mongars_LlamaTurboModule_compactKVCache(JNIEnv *env, jobject thiz,
+                                                 jlong ctx_ptr) {
+  return jniWithCtx<jint>(env, ctx_ptr, 0, [](LlamaContext *ctx) {
+    return static_cast<jint>(ctx->compact_to_last_boundary());
+  });
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_getKVCacheBytes(JNIEnv *env, jobject thiz,
+                                                  jlong ctx_ptr,
+                                                  jlongArray out) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx && env->GetArrayLength(out) >= 3) {
+    int64_t values[3];
+    ctx->kv_cache_bytes(values);
+    jlong copy[3] = {values[0], values[1], values[2]};
+    env->SetLongArrayRegion(out, 0, 3, copy);
+  }
+}
+
+// Returns the element types of the K and V caches, e.g. "q8_0/f16".
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_mongars_LlamaTurboModule_getKVCacheType(JNIEnv *env, jobject thiz,
+                                                 jlong ctx_ptr) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (!ctx) {
+    return nullptr;
+  }
+  const std::string types = std::string(ggml_type_name(ctx->kv_type_k())) +
+                            "/" + ggml_type_name(ctx->kv_type_v());
+  return env->NewStringUTF(types.c_str());
+}
+
 extern "C" JNIEXPORT jint JNICALL
 Java_com_mongars_LlamaTurboModule_getKVCacheMaxSize(JNIEnv *env,
                                                             jobject thiz,
@@ -367,40 +3069,104 @@ Java_com_mongars_LlamaTurboModule_freeModel(JNIEnv *env, jobject thiz,
   delete ctx;
 }
 
-extern "C" JNIEXPORT jobject JNICALL
+// Fills |out| with the metrics layout described in InferenceMetricsReader.java
+// and returns the number of values written, or 0 if the array is too small.
+extern "C" JNIEXPORT jint JNICALL
 Java_com_mongars_LlamaTurboModule_getPerformanceMetrics(JNIEnv *env,
-                                                                jobject thiz,
-                                                                jlong ctx_ptr) {
-  if (ctx_ptr == 0) {
-    return nullptr;
+                                                        jobject thiz,
+                                                        jlong ctx_ptr,
+                                                        jlongArray out) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (!ctx || !out || env->GetArrayLength(out) < kMetricsFields) {
+    return 0;
   }
+  int64_t values[kMetricsFields];
+  ctx->export_metrics(values);
+  static_assert(sizeof(jlong) == sizeof(int64_t), "jlong must be 64-bit");
+  env->SetLongArrayRegion(out, 0, kMetricsFields,
+                          reinterpret_cast<const jlong *>(values));
+  return kMetricsFields;
+}
 
-  LlamaContext *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_resetPerformanceMetrics(JNIEnv *env,
+                                                          jobject thiz,
+                                                          jlong ctx_ptr) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx) {
+    ctx->reset_metrics();
+  }
+}
 
-  try {
-    auto stats = ctx->get_performance_stats();
-
-    jclass hashMapClass = env->FindClass("java/util/HashMap");
-    jmethodID hashMapInit = env->GetMethodID(hashMapClass, "<init>", "()V");
-    jobject hashMap = env->NewObject(hashMapClass, hashMapInit);
-    jmethodID hashMapPut = env->GetMethodID(
-        hashMapClass, "put",
-        "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-
-    env->CallObjectMethod(
-        hashMap, hashMapPut, env->NewStringUTF("totalInferenceTime"),
-        env->NewStringUTF(std::to_string(stats.total_inference_time).c_str()));
-    env->CallObjectMethod(
-        hashMap, hashMapPut, env->NewStringUTF("inferenceCount"),
-        env->NewStringUTF(std::to_string(stats.inference_count).c_str()));
-    env->CallObjectMethod(
-        hashMap, hashMapPut, env->NewStringUTF("lastInferenceTime"),
-        env->NewStringUTF(std::to_string(stats.last_inference_time).c_str()));
-
-    return hashMap;
-  } catch (const std::exception &e) {
-    return nullptr;
+// |cache_tokens| is in f16 tokens; returns the token budget applied for the
+// context's KV cache type, or 0 without a context.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_mongars_LlamaTurboModule_applyRuntimePolicy(
+    JNIEnv *env, jobject thiz, jlong ctx_ptr, jint n_threads,
+    jint n_threads_batch, jint max_batch_tokens, jint cache_tokens) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (!ctx) {
+    return 0;
+  }
+  return static_cast<jint>(ctx->apply_runtime_policy(
+      n_threads, n_threads_batch, max_batch_tokens,
+      static_cast<size_t>(std::max(1, cache_tokens))));
+}
+
+// Restricts the calling thread, and every thread it creates from now on, to
+// |cpus|. ggml spawns its worker threads from the thread that runs the
+// decode, so pinning the inference thread pins the whole pool. Returns 0 or
+// the errno of sched_setaffinity.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_mongars_LlamaTurboModule_setThreadAffinity(JNIEnv *env, jobject thiz,
+                                                    jintArray cpus) {
+  const jsize n = env->GetArrayLength(cpus);
+  std::vector<jint> ids(n);
+  env->GetIntArrayRegion(cpus, 0, n, ids.data());
+  cpu_set_t set;
+  CPU_ZERO(&set);
+  for (jint id : ids) {
+    if (id >= 0 && id < CPU_SETSIZE) {
+      CPU_SET(id, &set);
+    }
+  }
+  if (CPU_COUNT(&set) == 0) {
+    return EINVAL;
+  }
+  return sched_setaffinity(0, sizeof(set), &set) == 0 ? 0 : errno;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_setThreads(JNIEnv *env, jobject thiz,
+                                             jlong ctx_ptr, jint n_threads,
+                                             jint n_threads_batch) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  if (ctx) {
+    ctx->set_threads(n_threads, n_threads_batch);
+  }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_mongars_LlamaTurboModule_calibrateThreads(
+    JNIEnv *env, jobject thiz, jlong ctx_ptr, jintArray candidates,
+    jint prefill_tokens, jint decode_tokens, jdoubleArray prefill_tps,
+    jdoubleArray decode_tps) {
+  auto *ctx = reinterpret_cast<LlamaContext *>(ctx_ptr);
+  const jsize n = env->GetArrayLength(candidates);
+  if (!ctx || env->GetArrayLength(prefill_tps) < n ||
+      env->GetArrayLength(decode_tps) < n) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                  "Invalid calibration arguments");
+    return;
   }
+  std::vector<int> counts(n);
+  env->GetIntArrayRegion(candidates, 0, n, counts.data());
+  std::vector<double> prefill;
+  std::vector<double> decode;
+  ctx->calibrate_threads(counts, prefill_tokens, decode_tokens, prefill,
+                         decode);
+  env->SetDoubleArrayRegion(prefill_tps, 0, n, prefill.data());
+  env->SetDoubleArrayRegion(decode_tps, 0, n, decode.data());
 }
 
 extern "C" JNIEXPORT void JNICALL
@@ -418,14 +3184,16 @@ Java_com_mongars_LlamaTurboModule_adjustPerformanceMode(JNIEnv *env,
   env->ReleaseStringUTFChars(mode, mode_str);
 
   try {
+    // Budgets are in f16 tokens; a quantized cache keeps more history in
+    // the same memory.
     if (mode_text == "low-memory") {
-      ctx->adjust_cache_size(256);
+      ctx->adjust_cache_size(ctx->scaled_cache_tokens(256));
       ctx->enable_sparse_attention(true);
     } else if (mode_text == "power-saving") {
-      ctx->adjust_cache_size(512);
+      ctx->adjust_cache_size(ctx->scaled_cache_tokens(512));
       ctx->enable_sparse_attention(false);
     } else if (mode_text == "performance") {
-      ctx->adjust_cache_size(1024);
+      ctx->adjust_cache_size(ctx->scaled_cache_tokens(1024));
       ctx->enable_sparse_attention(false);
     }
   } catch (const std::exception &e) {
@@ -0,0 +1,210 @@
+package com.mongars;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * CpuTopology describes the cores of a heterogeneous (big.LITTLE) CPU as
+ * exposed under {@code /sys/devices/system/cpu}. Cores are grouped into
+ * clusters by their {@code cpu_capacity} when the kernel reports it and by
+ * {@code cpufreq/cpuinfo_max_freq} otherwise; cluster 0 is the slowest.
+ * Offline cores, and cores reporting neither value, are left out of the
+ * numbering with cluster -1. The sysfs root is a constructor argument so the
+ * parsing can run against a fake tree. Missing or unreadable files leave the
+ * corresponding value at -1.
+ */
+final class CpuTopology {
+    static final File SYSFS_ROOT = new File("/sys/devices/system/cpu");
+
+    static final String AFFINITY_PERFORMANCE = "performance-cores";
+    static final String AFFINITY_ALL = "all";
+    static final String AFFINITY_EFFICIENCY = "efficiency";
+
+    static final class Core {
+        final int id;
+        final boolean online;
+        /** Relative capacity (1024 for the fastest core), or -1. */
+        final int capacity;
+        final long maxFreqKHz;
+        /** Cluster index, 0 for the slowest, or -1 when unclassified. */
+        int cluster = -1;
+
+        Core(int id, boolean online, int capacity, long maxFreqKHz) {
+            this.id = id;
+            this.online = online;
+            this.capacity = capacity;
+            this.maxFreqKHz = maxFreqKHz;
+        }
+    }
+
+    private final File root;
+    private final List<Core> cores;
+    private final int clusterCount;
+
+    CpuTopology(File root) {
+        this.root = root;
+        List<Core> found = new ArrayList<>();
+        TreeSet<Integer> ids = parseCpuList(readLine(new File(root, "possible")));
+        if (ids.isEmpty()) {
+            File[] dirs = root.listFiles((dir, name) -> name.matches("cpu\\d+"));
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    ids.add(Integer.parseInt(dir.getName().substring(3)));
+                }
+            }
+        }
+        TreeSet<Integer> online = parseCpuList(readLine(new File(root, "online")));
+        for (int id : ids) {
+            File dir = new File(root, "cpu" + id);
+            boolean isOnline;
+            if (!online.isEmpty()) {
+                isOnline = online.contains(id);
+            } else {
+                // cpu0 usually has no "online" file because it cannot be
+                // taken offline.
+                String flag = readLine(new File(dir, "online"));
+                isOnline = flag == null || flag.equals("1");
+            }
+            found.add(new Core(id, isOnline, (int) readLong(new File(dir, "cpu_capacity")),
+                    readLong(new File(dir, "cpufreq/cpuinfo_max_freq"))));
+        }
+        this.cores = Collections.unmodifiableList(found);
+        this.clusterCount = assignClusters(found);
+    }
+
+    static CpuTopology system() {
+        return new CpuTopology(SYSFS_ROOT);
+    }
+
+    List<Core> cores() {
+        return cores;
+    }
+
+    int clusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Online cores for an affinity policy: {@link #AFFINITY_PERFORMANCE}
+     * keeps every cluster but the slowest, {@link #AFFINITY_EFFICIENCY} only
+     * the slowest and {@link #AFFINITY_ALL} everything. Unclassified cores
+     * only count for {@link #AFFINITY_ALL}. On a homogeneous CPU every policy
+     * yields all online cores.
+     */
+    int[] cpusFor(String policy) {
+        if (!isValidPolicy(policy)) {
+            throw new IllegalArgumentException("Unknown affinity policy: " + policy);
+        }
+        List<Integer> selected = new ArrayList<>();
+        for (Core core : cores) {
+            if (!core.online) {
+                continue;
+            }
+            boolean match = clusterCount <= 1 || AFFINITY_ALL.equals(policy)
+                    || (AFFINITY_PERFORMANCE.equals(policy) ? core.cluster > 0 : core.cluster == 0);
+            if (match) {
+                selected.add(core.id);
+            }
+        }
+        int[] result = new int[selected.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = selected.get(i);
+        }
+        return result;
+    }
+
+    /** Whether {@code policy} names one of the affinity policies. */
+    static boolean isValidPolicy(String policy) {
+        return AFFINITY_PERFORMANCE.equals(policy) || AFFINITY_ALL.equals(policy)
+                || AFFINITY_EFFICIENCY.equals(policy);
+    }
+
+    /** Current frequency of {@code core} in kHz, read fresh, or -1. */
+    long currentFreqKHz(Core core) {
+        return readLong(new File(root, "cpu" + core.id + "/cpufreq/scaling_cur_freq"));
+    }
+
+    /**
+     * Numbers the distinct capacities (or max frequencies when no online
+     * core reports a capacity) of the online cores in ascending order and
+     * returns how many there are. Cores without a known value keep -1.
+     */
+    private static int assignClusters(List<Core> cores) {
+        boolean useCapacity = false;
+        for (Core core : cores) {
+            useCapacity |= core.online && core.capacity > 0;
+        }
+        TreeSet<Long> keys = new TreeSet<>();
+        for (Core core : cores) {
+            long key = clusterKey(core, useCapacity);
+            if (key > 0) {
+                keys.add(key);
+            }
+        }
+        List<Long> ordered = new ArrayList<>(keys);
+        for (Core core : cores) {
+            long key = clusterKey(core, useCapacity);
+            core.cluster = key > 0 ? ordered.indexOf(key) : -1;
+        }
+        return keys.size();
+    }
+
+    private static long clusterKey(Core core, boolean useCapacity) {
+        if (!core.online) {
+            return -1;
+        }
+        return useCapacity ? core.capacity : core.maxFreqKHz;
+    }
+
+    /** Parses the kernel's cpu list format, e.g. "0-3,6,8-9". */
+    static TreeSet<Integer> parseCpuList(String text) {
+        TreeSet<Integer> ids = new TreeSet<>();
+        if (text == null || text.trim().isEmpty()) {
+            return ids;
+        }
+        for (String part : text.trim().split(",")) {
+            try {
+                int dash = part.indexOf('-');
+                if (dash < 0) {
+                    ids.add(Integer.parseInt(part.trim()));
+                } else {
+                    int from = Integer.parseInt(part.substring(0, dash).trim());
+                    int to = Integer.parseInt(part.substring(dash + 1).trim());
+                    for (int id = from; id <= to; id++) {
+                        ids.add(id);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Skip malformed entries.
+            }
+        }
+        return ids;
+    }
+
+    private static long readLong(File file) {
+        String line = readLine(file);
+        if (line == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(line);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readLine(File file) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line != null ? line.trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.mongars;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * EmbeddingCache keeps recently computed embeddings for one model so that
+ * repeated queries and memory chunks are not embedded again. Entries are
+ * keyed by a 64-bit digest of (model id, text) and stored in fixed-size slots
+ * of an off-heap arena, either as float32 or as float16 (half the memory,
+ * about three significant digits, which is plenty for cosine similarity).
+ * Eviction is LRU. When a backing file is given the arena is memory-mapped,
+ * so the cache survives process restarts; the slot keys live in the file
+ * and the index is rebuilt from them on open. A slot's key is written after
+ * its vector, so a crash mid-write leaves the slot empty. A cache that is
+ * dropped while an embed may still hold it must be {@link #invalidate}d
+ * first, so it cannot write into a file that a new instance has mapped.
+ * All methods are thread-safe.
+ */
+final class EmbeddingCache {
+    static final String PRECISION_FLOAT16 = "float16";
+    static final String PRECISION_FLOAT32 = "float32";
+
+    private static final int MAGIC = 0x454D4243; // "EMBC"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private final String modelId;
+    private final int dimension;
+    private final int capacity;
+    private final boolean half;
+    private final int slotBytes;
+    private final boolean persistent;
+    private final ByteBuffer arena;
+    private final LinkedHashMap<Long, Integer> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private boolean invalidated;
+
+    /**
+     * Creates a cache for {@code capacity} vectors of {@code dimension}
+     * values. With a non-null {@code file} the arena is mapped from it and
+     * any compatible contents are reused; an incompatible file is reset.
+     */
+    EmbeddingCache(String modelId, int dimension, int capacity, String precision, File file)
+            throws IOException {
+        this.modelId = modelId;
+        this.dimension = dimension;
+        this.capacity = Math.max(1, capacity);
+        this.half = !PRECISION_FLOAT32.equals(precision);
+        // Each slot starts with its 8-byte key; 0 marks an empty slot.
+        this.slotBytes = 8 + dimension * (half ? 2 : 4);
+        long size = HEADER_BYTES + (long) this.capacity * slotBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Embedding cache too large: " + size + " bytes");
+        }
+        this.persistent = file != null;
+        if (file == null) {
+            arena = ByteBuffer.allocateDirect((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader();
+        } else {
+            arena = map(file, (int) size);
+            if (!headerMatches()) {
+                for (int i = 0; i < size; i++) {
+                    arena.put(i, (byte) 0);
+                }
+                writeHeader();
+            }
+        }
+        for (int slot = 0; slot < this.capacity; slot++) {
+            long key = arena.getLong(slotOffset(slot));
+            if (key != 0) {
+                index.put(key, slot);
+            } else {
+                freeSlots.add(slot);
+            }
+        }
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    String modelId() {
+        return modelId;
+    }
+
+    /**
+     * Copies the cached vector for {@code text} into {@code out} at
+     * {@code offset} and returns true, or returns false on a miss.
+     */
+    synchronized boolean get(String text, float[] out, int offset) {
+        if (invalidated) {
+            return false;
+        }
+        long key = key(text);
+        Integer slot = index.get(key);
+        if (slot != null && arena.getLong(slotOffset(slot)) != key) {
+            // The slot was rewritten behind the index; never serve another
+            // text's vector.
+            index.remove(key);
+            freeSlots.add(slot);
+            slot = null;
+        }
+        if (slot == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        int base = slotOffset(slot) + 8;
+        for (int i = 0; i < dimension; i++) {
+            out[offset + i] = half
+                    ? halfToFloat(arena.getShort(base + i * 2))
+                    : arena.getFloat(base + i * 4);
+        }
+        return true;
+    }
+
+    /** Stores {@code dimension} values of {@code values} from {@code offset}. */
+    synchronized void put(String text, float[] values, int offset) {
+        if (invalidated) {
+            return;
+        }
+        long key = key(text);
+        Integer slot = index.get(key);
+        if (slot == null) {
+            if (freeSlots.isEmpty()) {
+                Iterator<Map.Entry<Long, Integer>> eldest = index.entrySet().iterator();
+                freeSlots.add(eldest.next().getValue());
+                eldest.remove();
+                evictions++;
+            }
+            slot = freeSlots.poll();
+            index.put(key, slot);
+        }
+        // Empty the slot while its payload changes; the key goes in last.
+        int start = slotOffset(slot);
+        arena.putLong(start, 0);
+        int base = start + 8;
+        for (int i = 0; i < dimension; i++) {
+            if (half) {
+                arena.putShort(base + i * 2, floatToHalf(values[offset + i]));
+            } else {
+                arena.putFloat(base + i * 4, values[offset + i]);
+            }
+        }
+        arena.putLong(start, key);
+    }
+
+    synchronized void clear() {
+        if (invalidated) {
+            return;
+        }
+        for (int slot : index.values()) {
+            arena.putLong(slotOffset(slot), 0);
+            freeSlots.add(slot);
+        }
+        index.clear();
+    }
+
+    /**
+     * Turns every later {@link #get}, {@link #put} and {@link #clear} into a
+     * no-op. Once this returns no write is in progress, so the backing file
+     * can be reopened or deleted.
+     */
+    synchronized void invalidate() {
+        invalidated = true;
+    }
+
+    synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long arenaBytes() {
+        return arena.capacity();
+    }
+
+    boolean isHalfPrecision() {
+        return half;
+    }
+
+    /** True when the arena is mapped from a backing file. */
+    boolean isPersistent() {
+        return persistent;
+    }
+
+    private long key(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            long key = ByteBuffer.wrap(hash).getLong();
+            return key != 0 ? key : 1;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_BYTES + slot * slotBytes;
+    }
+
+    private void writeHeader() {
+        arena.putInt(0, MAGIC);
+        arena.putInt(4, VERSION);
+        arena.putInt(8, dimension);
+        arena.putInt(12, capacity);
+        arena.putInt(16, half ? 2 : 4);
+        arena.putInt(20, modelId.hashCode());
+    }
+
+    private boolean headerMatches() {
+        return arena.getInt(0) == MAGIC
+                && arena.getInt(4) == VERSION
+                && arena.getInt(8) == dimension
+                && arena.getInt(12) == capacity
+                && arena.getInt(16) == (half ? 2 : 4)
+                && arena.getInt(20) == modelId.hashCode();
+    }
+
+    private static ByteBuffer map(File file, int size) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(size);
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /** IEEE 754 binary32 to binary16, round to nearest even. */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (exp == 0xff) {
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExp = exp - 127 + 15;
+        if (halfExp >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (halfExp <= 0) {
+            if (halfExp < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - halfExp;
+            int halfMantissa = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (halfMantissa & 1) != 0)) {
+                halfMantissa++;
+            }
+            return (short) (sign | halfMantissa);
+        }
+        int half = sign | (halfExp << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) half;
+    }
+
+    static float halfToFloat(short value) {
+        int h = value & 0xffff;
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mantissa = h & 0x3ff;
+        if (exp == 0) {
+            if (mantissa == 0) {
+                return Float.intBitsToFloat(sign);
+            }
+            // Subnormal: normalise into a binary32 exponent.
+            while ((mantissa & 0x400) == 0) {
+                mantissa <<= 1;
+                exp--;
+            }
+            exp++;
+            mantissa &= 0x3ff;
+        } else if (exp == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exp + 127 - 15) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,862 @@
+package com.mongars;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * HnswIndex is a hierarchical navigable small world graph over unit-length
+ * float32 vectors, so similarity is a plain dot product. The vectors and the
+ * level-0 adjacency lists, which dominate the footprint, live in two
+ * memory-mapped files that grow by doubling; the sparse upper levels, the
+ * string ids, optional chunk texts and tombstones are kept on the heap and
+ * written to a metadata file by {@link #save}. Nodes appended after the last
+ * save are dropped on reopen. To keep that true after a crash, level-0 lists
+ * of already saved nodes are never rewritten in the mapped file between
+ * saves: changes to them are buffered on the heap and written out by
+ * {@link #save}, and reopening drops any link to a node past the saved count
+ * in case the process died while saving. Removal only tombstones a node: it
+ * keeps routing searches but is never returned. Not thread-safe; callers
+ * serialize access.
+ */
+final class HnswIndex {
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSION = 3;
+
+    /**
+     * Shortlist size per requested hit when searching quantized codes. Sign
+     * bits order neighbours much more coarsely than int8, so binary needs a
+     * longer shortlist for the same recall.
+     */
+    private static final int RERANK_FACTOR_INT8 = 4;
+    private static final int RERANK_FACTOR_BINARY = 10;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** One search hit: external id, stored text (may be null) and cosine similarity. */
+    static final class Hit {
+        final String id;
+        final String text;
+        final float score;
+
+        Hit(String id, String text, float score) {
+            this.id = id;
+            this.text = text;
+            this.score = score;
+        }
+    }
+
+    private final File vectorFile;
+    private final File linkFile;
+    private final File metaFile;
+    private final File codeFile;
+    private final String quantization;
+    private final int codeBytes;
+    private final int dimension;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random();
+
+    private MappedByteBuffer vectorMap;
+    private MappedByteBuffer linkMap;
+    private FloatBuffer vectors;
+    private IntBuffer links0;
+    /** Quantized copy of every vector; null when quantization is none. */
+    private MappedByteBuffer codes;
+    private int capacity;
+    private int count;
+    /** Nodes covered by the metadata file; their mapped level-0 lists are frozen until the next save. */
+    private int savedCount;
+    /** Pending level-0 lists of saved nodes, indexed by node; null when unchanged. */
+    private int[][] pendingLinks0 = new int[0][];
+    private int live;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int[] levels = new int[0];
+    private int[][][] upperLinks = new int[0][][];
+    private String[] ids = new String[0];
+    private String[] texts = new String[0];
+    private final BitSet deleted = new BitSet();
+    private final Map<String, Integer> nodesById = new HashMap<>();
+
+    // Visit marks reused across searches.
+    private int[] visited = new int[0];
+    private int visitEpoch;
+
+    /**
+     * Opens the index stored as {@code base}.vec/.links/.meta, or creates an
+     * empty one. Throws if an existing index was built with another
+     * dimension. {@code quantization} ({@link VectorQuantizer} mode) only
+     * applies to a new index; an existing one keeps its own. In a quantized
+     * index searches walk the graph on the compact codes kept in
+     * {@code base}.codes and re-rank the shortlist with the float32 vectors,
+     * so only the codes and a few vectors per query need to be resident.
+     */
+    HnswIndex(File base, int dimension, int m, int efConstruction, String quantization)
+            throws IOException {
+        this.vectorFile = new File(base.getPath() + ".vec");
+        this.linkFile = new File(base.getPath() + ".links");
+        this.metaFile = new File(base.getPath() + ".meta");
+        this.codeFile = new File(base.getPath() + ".codes");
+        if (metaFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(metaFile)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not an index file: " + metaFile);
+                }
+                int version = in.readInt();
+                if (version < 1 || version > VERSION) {
+                    throw new IOException("Unsupported index version " + version);
+                }
+                int storedDimension = in.readInt();
+                if (dimension > 0 && storedDimension != dimension) {
+                    throw new IllegalArgumentException("Index has dimension " + storedDimension
+                            + ", requested " + dimension);
+                }
+                this.dimension = storedDimension;
+                this.m = in.readInt();
+                this.efConstruction = in.readInt();
+                this.quantization = version >= 3 ? in.readUTF() : VectorQuantizer.NONE;
+                this.codeBytes = VectorQuantizer.codeBytes(this.quantization, this.dimension);
+                this.maxLinks0 = 2 * this.m;
+                this.levelMultiplier = 1.0 / Math.log(Math.max(2, this.m));
+                readState(in, version);
+            }
+        } else {
+            if (dimension <= 0) {
+                throw new IllegalArgumentException("dimension is required for a new index");
+            }
+            this.dimension = dimension;
+            this.m = Math.max(2, m);
+            this.efConstruction = Math.max(this.m, efConstruction);
+            this.quantization = quantization != null ? quantization : VectorQuantizer.NONE;
+            if (!VectorQuantizer.isValid(this.quantization)) {
+                throw new IllegalArgumentException("Unknown quantization: " + quantization);
+            }
+            this.codeBytes = VectorQuantizer.codeBytes(this.quantization, dimension);
+            this.maxLinks0 = 2 * this.m;
+            this.levelMultiplier = 1.0 / Math.log(this.m);
+            remap(INITIAL_CAPACITY);
+        }
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int size() {
+        return live;
+    }
+
+    int nodeCount() {
+        return count;
+    }
+
+    int maxLevel() {
+        return maxLevel;
+    }
+
+    String quantization() {
+        return quantization;
+    }
+
+    /** Bytes per vector touched by the first search pass. */
+    int searchBytesPerVector() {
+        return codeBytes;
+    }
+
+    long mappedBytes() {
+        long bytes = (long) capacity * dimension * 4 + (long) capacity * (1 + maxLinks0) * 4;
+        return codes != null ? bytes + (long) capacity * codeBytes : bytes;
+    }
+
+    boolean contains(String id) {
+        return nodesById.containsKey(id);
+    }
+
+    /**
+     * Inserts {@code dimension} values of {@code vector} from {@code offset}
+     * under {@code id}, replacing any previous vector with that id. The
+     * vector is normalized on the way in. {@code text}, if not null, is
+     * stored alongside and returned with search hits.
+     */
+    void add(String id, String text, float[] vector, int offset) throws IOException {
+        Integer previous = nodesById.get(id);
+        if (previous != null) {
+            markDeleted(previous);
+        }
+        if (count == capacity) {
+            remap(capacity * 2);
+        }
+        int node = count;
+        float[] q = normalized(vector, offset);
+        vectors.position(node * dimension);
+        vectors.put(q);
+        writeCode(node, q);
+
+        int level = (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+        growNodeArrays(node + 1);
+        levels[node] = level;
+        ids[node] = id;
+        texts[node] = text;
+        upperLinks[node] = new int[level][];
+        for (int l = 0; l < level; l++) {
+            upperLinks[node][l] = new int[1 + m];
+        }
+        links0.put(node * (1 + maxLinks0), 0);
+        count++;
+        live++;
+        nodesById.put(id, node);
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+        int ep = entryPoint;
+        Scorer exact = candidate -> dot(q, candidate);
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedy(exact, ep, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            NodeHeap found = searchLayer(exact, ep, efConstruction, l);
+            int[] selected = selectNeighbors(found, l == 0 ? maxLinks0 : m);
+            setLinks(node, l, selected, selected.length);
+            for (int neighbor : selected) {
+                connect(neighbor, node, l);
+            }
+            ep = found.best();
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    boolean remove(String id) {
+        Integer node = nodesById.get(id);
+        if (node == null) {
+            return false;
+        }
+        markDeleted(node);
+        return true;
+    }
+
+    /**
+     * Returns up to {@code k} live nodes most similar to {@code query}, best
+     * first. {@code ef} is the size of the candidate list at level 0. In a
+     * quantized index the candidate list is widened by the re-rank factor
+     * of its mode and scores are exact after re-ranking.
+     */
+    List<Hit> search(float[] query, int k, int ef) {
+        List<Hit> hits = new ArrayList<>();
+        if (live == 0 || k <= 0) {
+            return hits;
+        }
+        float[] q = normalized(query, 0);
+        Scorer scorer = codes != null ? approximateScorer(q) : candidate -> dot(q, candidate);
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedy(scorer, ep, l);
+        }
+        // Tombstones still occupy candidate slots, so widen the beam by the
+        // share of deleted nodes.
+        int beam = Math.max(ef, k * rerankFactor());
+        beam += (int) ((long) beam * (count - live) / Math.max(1, count));
+        NodeHeap found = searchLayer(scorer, ep, beam, 0);
+        if (codes != null) {
+            for (int i = 0; i < found.size; i++) {
+                found.scores[i] = dot(q, found.nodes[i]);
+            }
+        }
+        found.sortDescending();
+        for (int i = 0; i < found.size && hits.size() < k; i++) {
+            int node = found.nodes[i];
+            if (!deleted.get(node)) {
+                hits.add(new Hit(ids[node], texts[node], found.scores[i]));
+            }
+        }
+        return hits;
+    }
+
+    /** Flushes the mapped files and writes the metadata atomically. */
+    void save() throws IOException {
+        for (int node = 0; node < pendingLinks0.length; node++) {
+            int[] links = pendingLinks0[node];
+            if (links != null) {
+                int base = node * (1 + maxLinks0);
+                for (int i = 0; i <= links[0]; i++) {
+                    links0.put(base + i, links[i]);
+                }
+            }
+        }
+        vectorMap.force();
+        linkMap.force();
+        if (codes != null) {
+            codes.force();
+        }
+        File tmp = new File(metaFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeUTF(quantization);
+            out.writeInt(capacity);
+            out.writeInt(count);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int node = 0; node < count; node++) {
+                out.writeUTF(ids[node]);
+                writeText(out, texts[node]);
+                out.writeBoolean(deleted.get(node));
+                out.writeInt(levels[node]);
+                for (int l = 0; l < levels[node]; l++) {
+                    int[] links = upperLinks[node][l];
+                    out.writeInt(links[0]);
+                    for (int i = 1; i <= links[0]; i++) {
+                        out.writeInt(links[i]);
+                    }
+                }
+            }
+        }
+        if (!tmp.renameTo(metaFile)) {
+            throw new IOException("Cannot write " + metaFile);
+        }
+        savedCount = count;
+        pendingLinks0 = new int[0][];
+    }
+
+    /** Deletes the files of the index stored as {@code base}. */
+    static void deleteFiles(File base) {
+        for (String suffix : new String[] {".vec", ".links", ".codes", ".meta"}) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(base.getPath() + suffix).delete();
+        }
+    }
+
+    private void readState(DataInputStream in, int version) throws IOException {
+        int storedCapacity = in.readInt();
+        count = in.readInt();
+        entryPoint = in.readInt();
+        maxLevel = in.readInt();
+        remap(storedCapacity);
+        growNodeArrays(count);
+        for (int node = 0; node < count; node++) {
+            ids[node] = in.readUTF();
+            texts[node] = version >= 2 ? readText(in) : null;
+            boolean gone = in.readBoolean();
+            int level = in.readInt();
+            levels[node] = level;
+            upperLinks[node] = new int[level][];
+            for (int l = 0; l < level; l++) {
+                int[] links = new int[1 + m];
+                links[0] = in.readInt();
+                for (int i = 1; i <= links[0]; i++) {
+                    links[i] = in.readInt();
+                }
+                upperLinks[node][l] = links;
+            }
+            if (gone) {
+                deleted.set(node);
+            } else {
+                nodesById.put(ids[node], node);
+                live++;
+            }
+        }
+        savedCount = count;
+        dropUnsavedLinks();
+    }
+
+    /**
+     * Removes level-0 links to nodes past {@link #count}. They are left
+     * behind when the process dies after save() wrote the mapped lists but
+     * before the metadata was renamed into place.
+     */
+    private void dropUnsavedLinks() {
+        for (int node = 0; node < count; node++) {
+            int base = node * (1 + maxLinks0);
+            int n = Math.min(links0.get(base), maxLinks0);
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                int neighbor = links0.get(base + 1 + i);
+                if (neighbor >= 0 && neighbor < count) {
+                    links0.put(base + 1 + kept++, neighbor);
+                }
+            }
+            links0.put(base, kept);
+        }
+    }
+
+    private void markDeleted(int node) {
+        if (!deleted.get(node)) {
+            deleted.set(node);
+            nodesById.remove(ids[node]);
+            texts[node] = null;
+            live--;
+        }
+    }
+
+    /** Length-prefixed UTF-8, -1 for null; writeUTF caps at 64 KB. */
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void remap(int newCapacity) throws IOException {
+        File dir = vectorFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        long vectorBytes = (long) newCapacity * dimension * 4;
+        long linkBytes = (long) newCapacity * (1 + maxLinks0) * 4;
+        if (vectorBytes > Integer.MAX_VALUE || linkBytes > Integer.MAX_VALUE) {
+            throw new IOException("Index full at " + capacity + " vectors");
+        }
+        vectorMap = mapFile(vectorFile, vectorBytes);
+        linkMap = mapFile(linkFile, linkBytes);
+        vectors = vectorMap.asFloatBuffer();
+        links0 = linkMap.asIntBuffer();
+        if (!VectorQuantizer.NONE.equals(quantization)) {
+            codes = mapFile(codeFile, (long) newCapacity * codeBytes);
+        }
+        capacity = newCapacity;
+    }
+
+    private static MappedByteBuffer mapFile(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+    }
+
+    private void growNodeArrays(int needed) {
+        if (levels.length >= needed) {
+            return;
+        }
+        int size = Math.max(needed, Math.max(16, levels.length * 2));
+        levels = Arrays.copyOf(levels, size);
+        upperLinks = Arrays.copyOf(upperLinks, size);
+        ids = Arrays.copyOf(ids, size);
+        texts = Arrays.copyOf(texts, size);
+    }
+
+    private float[] normalized(float[] vector, int offset) {
+        float[] q = new float[dimension];
+        double norm = 0;
+        for (int i = 0; i < dimension; i++) {
+            float v = vector[offset + i];
+            q[i] = v;
+            norm += v * v;
+        }
+        if (norm > 0) {
+            float inv = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < dimension; i++) {
+                q[i] *= inv;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Dot product of {@code q} with the stored vector of {@code node}. Four
+     * independent accumulators keep the loop free of a serial dependency so
+     * the compiler can vectorize it.
+     */
+    private float dot(float[] q, int node) {
+        int base = node * dimension;
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            s0 += q[i] * vectors.get(base + i);
+            s1 += q[i + 1] * vectors.get(base + i + 1);
+            s2 += q[i + 2] * vectors.get(base + i + 2);
+            s3 += q[i + 3] * vectors.get(base + i + 3);
+        }
+        for (; i < dimension; i++) {
+            s0 += q[i] * vectors.get(base + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private float dot(int a, int b) {
+        int baseA = a * dimension;
+        int baseB = b * dimension;
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            s0 += vectors.get(baseA + i) * vectors.get(baseB + i);
+            s1 += vectors.get(baseA + i + 1) * vectors.get(baseB + i + 1);
+            s2 += vectors.get(baseA + i + 2) * vectors.get(baseB + i + 2);
+            s3 += vectors.get(baseA + i + 3) * vectors.get(baseB + i + 3);
+        }
+        for (; i < dimension; i++) {
+            s0 += vectors.get(baseA + i) * vectors.get(baseB + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private int linkCount(int node, int level) {
+        if (level > 0) {
+            return upperLinks[node][level - 1][0];
+        }
+        int[] pending = node < pendingLinks0.length ? pendingLinks0[node] : null;
+        return pending != null ? pending[0] : links0.get(node * (1 + maxLinks0));
+    }
+
+    private int link(int node, int level, int i) {
+        if (level > 0) {
+            return upperLinks[node][level - 1][1 + i];
+        }
+        int[] pending = node < pendingLinks0.length ? pendingLinks0[node] : null;
+        return pending != null ? pending[1 + i] : links0.get(node * (1 + maxLinks0) + 1 + i);
+    }
+
+    private void setLinks(int node, int level, int[] neighbors, int n) {
+        if (level == 0 && node < savedCount) {
+            if (pendingLinks0.length < savedCount) {
+                pendingLinks0 = Arrays.copyOf(pendingLinks0, savedCount);
+            }
+            int[] pending = pendingLinks0[node];
+            if (pending == null) {
+                pending = new int[1 + maxLinks0];
+                pendingLinks0[node] = pending;
+            }
+            pending[0] = n;
+            System.arraycopy(neighbors, 0, pending, 1, n);
+        } else if (level == 0) {
+            int base = node * (1 + maxLinks0);
+            links0.put(base, n);
+            for (int i = 0; i < n; i++) {
+                links0.put(base + 1 + i, neighbors[i]);
+            }
+        } else {
+            int[] links = upperLinks[node][level - 1];
+            links[0] = n;
+            System.arraycopy(neighbors, 0, links, 1, n);
+        }
+    }
+
+    /** Adds {@code node} to the links of {@code target}, pruning if full. */
+    private void connect(int target, int node, int level) {
+        int max = level == 0 ? maxLinks0 : m;
+        int n = linkCount(target, level);
+        if (n < max) {
+            int[] links = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                links[i] = link(target, level, i);
+            }
+            links[n] = node;
+            setLinks(target, level, links, n + 1);
+            return;
+        }
+        vectors.position(target * dimension);
+        float[] base = new float[dimension];
+        vectors.get(base);
+        NodeHeap candidates = new NodeHeap(n + 1, false);
+        candidates.push(node, dot(base, node));
+        for (int i = 0; i < n; i++) {
+            int neighbor = link(target, level, i);
+            candidates.push(neighbor, dot(base, neighbor));
+        }
+        int[] selected = selectNeighbors(candidates, max);
+        setLinks(target, level, selected, selected.length);
+    }
+
+    /**
+     * The HNSW neighbor heuristic: take candidates best first and keep one
+     * only if it is closer to the query than to every neighbor kept so far,
+     * then top up with the best of the rest. This keeps links spread in
+     * different directions instead of clustering.
+     */
+    private int[] selectNeighbors(NodeHeap candidates, int max) {
+        candidates.sortDescending();
+        int[] selected = new int[Math.min(max, candidates.size)];
+        boolean[] taken = new boolean[candidates.size];
+        int n = 0;
+        for (int i = 0; i < candidates.size && n < selected.length; i++) {
+            int candidate = candidates.nodes[i];
+            float toQuery = candidates.scores[i];
+            boolean diverse = true;
+            for (int j = 0; j < n; j++) {
+                if (dot(candidate, selected[j]) > toQuery) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[n++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.size && n < selected.length; i++) {
+            if (!taken[i]) {
+                selected[n++] = candidates.nodes[i];
+            }
+        }
+        return selected;
+    }
+
+    private int greedy(Scorer scorer, int ep, int level) {
+        int current = ep;
+        float best = scorer.score(current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int n = linkCount(current, level);
+            for (int i = 0; i < n; i++) {
+                int candidate = link(current, level, i);
+                float score = scorer.score(candidate);
+                if (score > best) {
+                    best = score;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    private NodeHeap searchLayer(Scorer scorer, int ep, int ef, int level) {
+        if (visited.length < count) {
+            visited = new int[capacity];
+            visitEpoch = 0;
+        }
+        if (++visitEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitEpoch = 1;
+        }
+        NodeHeap candidates = new NodeHeap(ef * 2, true);
+        NodeHeap results = new NodeHeap(ef + 1, false);
+        float score = scorer.score(ep);
+        visited[ep] = visitEpoch;
+        candidates.push(ep, score);
+        results.push(ep, score);
+        while (candidates.size > 0) {
+            float candidateScore = candidates.topScore();
+            int candidate = candidates.pop();
+            if (results.size >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            int n = linkCount(candidate, level);
+            for (int i = 0; i < n; i++) {
+                int neighbor = link(candidate, level, i);
+                if (visited[neighbor] == visitEpoch) {
+                    continue;
+                }
+                visited[neighbor] = visitEpoch;
+                float s = scorer.score(neighbor);
+                if (results.size < ef || s > results.topScore()) {
+                    candidates.push(neighbor, s);
+                    results.push(neighbor, s);
+                    if (results.size > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private int rerankFactor() {
+        switch (quantization) {
+            case VectorQuantizer.INT8:
+                return RERANK_FACTOR_INT8;
+            case VectorQuantizer.BINARY:
+                return RERANK_FACTOR_BINARY;
+            default:
+                return 1;
+        }
+    }
+
+    /** Similarity of the current query to a node. */
+    private interface Scorer {
+        float score(int node);
+    }
+
+    private void writeCode(int node, float[] q) {
+        if (codes == null) {
+            return;
+        }
+        int base = node * codeBytes;
+        if (VectorQuantizer.INT8.equals(quantization)) {
+            byte[] code = new byte[dimension];
+            codes.putFloat(base, VectorQuantizer.quantizeInt8(q, 0, dimension, code, 0));
+            for (int i = 0; i < dimension; i++) {
+                codes.put(base + 4 + i, code[i]);
+            }
+        } else {
+            long[] bits = new long[VectorQuantizer.words(dimension)];
+            VectorQuantizer.packBits(q, 0, dimension, bits, 0);
+            for (int w = 0; w < bits.length; w++) {
+                codes.putLong(base + w * 8, bits[w]);
+            }
+        }
+    }
+
+    /**
+     * Scores nodes from their codes only. For int8 this approximates the dot
+     * product; for binary it is 1 - 2 * hamming / dimension, which orders
+     * nodes by how many signs they share with the query.
+     */
+    private Scorer approximateScorer(float[] q) {
+        if (VectorQuantizer.INT8.equals(quantization)) {
+            byte[] queryCode = new byte[dimension];
+            float queryScale = VectorQuantizer.quantizeInt8(q, 0, dimension, queryCode, 0);
+            return node -> {
+                int base = node * codeBytes;
+                return VectorQuantizer.dotInt8(queryCode, codes, base + 4, dimension)
+                        * queryScale * codes.getFloat(base);
+            };
+        }
+        long[] queryBits = new long[VectorQuantizer.words(dimension)];
+        VectorQuantizer.packBits(q, 0, dimension, queryBits, 0);
+        float inverse = 2f / dimension;
+        return node -> 1f - VectorQuantizer.hamming(queryBits, codes, node * codeBytes) * inverse;
+    }
+
+    /**
+     * Binary heap of (node, score) in parallel primitive arrays, ordered
+     * best-first ({@code maxFirst}) or worst-first. Grows as needed.
+     */
+    private static final class NodeHeap {
+        int[] nodes;
+        float[] scores;
+        int size;
+        private final boolean maxFirst;
+
+        NodeHeap(int capacity, boolean maxFirst) {
+            this.nodes = new int[Math.max(4, capacity)];
+            this.scores = new float[nodes.length];
+            this.maxFirst = maxFirst;
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!before(score, scores[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int node = nodes[size];
+            float score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!before(scores[child], score)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+            return top;
+        }
+
+        /** Node with the highest score, regardless of heap order. */
+        int best() {
+            int best = 0;
+            for (int i = 1; i < size; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            return nodes[best];
+        }
+
+        /** Sorts the backing arrays by descending score; the heap is spent. */
+        void sortDescending() {
+            for (int i = 1; i < size; i++) {
+                int node = nodes[i];
+                float score = scores[i];
+                int j = i - 1;
+                while (j >= 0 && scores[j] < score) {
+                    nodes[j + 1] = nodes[j];
+                    scores[j + 1] = scores[j];
+                    j--;
+                }
+                nodes[j + 1] = node;
+                scores[j + 1] = score;
+            }
+        }
+
+        private boolean before(float a, float b) {
+            return maxFirst ? a > b : a < b;
+        }
+    }
+}
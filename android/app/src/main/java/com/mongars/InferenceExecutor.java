@@ -0,0 +1,164 @@
+package com.mongars;
+
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InferenceExecutor runs every call that touches the native llama.cpp context
+ * on one dedicated thread, so that long decodes never occupy the shared
+ * native-modules thread used by the other TurboModules. Work is ordered by
+ * priority first and submission order second, which lets interactive chat
+ * requests overtake queued background work such as embedding. The queue is
+ * bounded; {@link #submit} returns false instead of accepting work that
+ * would only time out behind an ever-growing backlog. Tasks may carry a tag
+ * so that queued work can be withdrawn with {@link #removeQueued}, and a
+ * hook that settles their caller when {@link #shutdown} drops them.
+ */
+final class InferenceExecutor {
+    static final int PRIORITY_INTERACTIVE = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_BACKGROUND = 2;
+
+    private final ThreadPoolExecutor executor;
+    private final int capacity;
+    private final AtomicLong sequence = new AtomicLong();
+
+    InferenceExecutor(String threadName, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        };
+        // A single worker keeps the native context single-writer; the queue
+        // itself is unbounded, capacity is enforced in submit().
+        this.executor = new ThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Maps the {@code priority} option passed from JS to a queue priority.
+     * Unknown or missing values fall back to the supplied default.
+     */
+    static int parsePriority(String value, int fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        switch (value) {
+            case "interactive":
+                return PRIORITY_INTERACTIVE;
+            case "normal":
+                return PRIORITY_NORMAL;
+            case "background":
+                return PRIORITY_BACKGROUND;
+            default:
+                return fallback;
+        }
+    }
+
+    /**
+     * Queues the task. Returns false when the executor has been shut down or
+     * the queue already holds {@code capacity} pending tasks.
+     */
+    synchronized boolean submit(int priority, Runnable task) {
+        return submit(priority, null, task);
+    }
+
+    /**
+     * Queues a tagged task; see {@link #submit(int, Runnable)}.
+     */
+    synchronized boolean submit(int priority, String tag, Runnable task) {
+        return submit(priority, tag, task, null);
+    }
+
+    /**
+     * Queues a tagged task whose {@code onDropped} runs instead of it if the
+     * executor is shut down first, typically rejecting the task's promise.
+     * See {@link #submit(int, Runnable)}.
+     */
+    synchronized boolean submit(int priority, String tag, Runnable task, Runnable onDropped) {
+        if (executor.isShutdown() || executor.getQueue().size() >= capacity) {
+            return false;
+        }
+        executor.execute(new PrioritizedTask(priority, sequence.getAndIncrement(), tag, task, onDropped));
+        return true;
+    }
+
+    /**
+     * Removes the queued task carrying {@code tag} and returns it, or returns
+     * null when no such task is waiting (it may already be running).
+     */
+    synchronized Runnable removeQueued(String tag) {
+        if (tag == null) {
+            return null;
+        }
+        for (Runnable queued : executor.getQueue()) {
+            PrioritizedTask task = (PrioritizedTask) queued;
+            if (tag.equals(task.tag) && executor.getQueue().remove(task)) {
+                return task.delegate;
+            }
+        }
+        return null;
+    }
+
+    int pendingCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Drops all queued work, running the drop hook of each dropped task, runs
+     * {@code cleanup} once the current task has finished and then stops the
+     * worker thread.
+     */
+    synchronized void shutdown(Runnable cleanup) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        List<Runnable> dropped = new ArrayList<>();
+        executor.getQueue().drainTo(dropped);
+        executor.execute(new PrioritizedTask(Integer.MIN_VALUE, sequence.getAndIncrement(), null, cleanup, null));
+        executor.shutdown();
+        for (Runnable queued : dropped) {
+            Runnable onDropped = ((PrioritizedTask) queued).onDropped;
+            if (onDropped != null) {
+                onDropped.run();
+            }
+        }
+    }
+
+    private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final int priority;
+        final long order;
+        final String tag;
+        final Runnable delegate;
+        final Runnable onDropped;
+
+        PrioritizedTask(int priority, long order, String tag, Runnable delegate, Runnable onDropped) {
+            this.priority = priority;
+            this.order = order;
+            this.tag = tag;
+            this.delegate = delegate;
+            this.onDropped = onDropped;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull PrioritizedTask other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.mongars;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * InferenceGovernor watches battery level, charging state, power-save mode
+ * and (on Android 10+) thermal status, and maps them to one of three
+ * inference policies. Each policy scales the thread count of every loaded
+ * model and sets the per-decode batch cap and the KV-cache token budget.
+ * A new policy is only published when the level actually changes, and every
+ * decision is kept in a small history so it can be reported in metrics.
+ * Signals arrive on the main thread; {@link Listener} implementations must
+ * hand the work off themselves.
+ */
+final class InferenceGovernor {
+    static final String LEVEL_PERFORMANCE = "performance";
+    static final String LEVEL_BALANCED = "balanced";
+    static final String LEVEL_CONSERVE = "conserve";
+
+    private static final int HISTORY_SIZE = 8;
+
+    /** Settings applied to every loaded model for a given level. */
+    static final class Policy {
+        final String level;
+        final String reason;
+        final float threadScale;
+        final int batchTokens;
+        final int cacheTokens;
+        final long decidedAt;
+
+        Policy(String level, String reason, float threadScale, int batchTokens, int cacheTokens) {
+            this.level = level;
+            this.reason = reason;
+            this.threadScale = threadScale;
+            this.batchTokens = batchTokens;
+            this.cacheTokens = cacheTokens;
+            this.decidedAt = System.currentTimeMillis();
+        }
+
+        int threadsFor(int baseThreads) {
+            return Math.max(1, Math.round(baseThreads * threadScale));
+        }
+    }
+
+    interface Listener {
+        void onPolicyChanged(Policy policy);
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final ArrayDeque<Policy> history = new ArrayDeque<>();
+
+    private BroadcastReceiver receiver;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    private boolean enabled;
+    private float batteryPct = -1f;
+    private boolean charging;
+    private boolean powerSave;
+    private int thermalStatus;
+    private Policy current;
+    private long decisions;
+    private long lastDecisionElapsed;
+
+    InferenceGovernor(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listening for signals and publishes the policy for the current
+     * device state. Calling it again is a no-op.
+     */
+    void start() {
+        synchronized (this) {
+            if (enabled) {
+                return;
+            }
+            enabled = true;
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            receiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context ctx, Intent intent) {
+                    if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                        onBatteryChanged(intent);
+                    } else if (pm != null) {
+                        onPowerSaveChanged(pm.isPowerSaveMode());
+                    }
+                }
+            };
+            IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+            filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+            Intent sticky = context.registerReceiver(receiver, filter);
+            if (sticky != null) {
+                readBattery(sticky);
+            }
+            powerSave = pm != null && pm.isPowerSaveMode();
+            if (pm != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                thermalStatus = pm.getCurrentThermalStatus();
+                thermalListener = this::onThermalStatusChanged;
+                pm.addThermalStatusListener(thermalListener);
+            }
+        }
+        reevaluate();
+    }
+
+    synchronized void stop() {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException ignored) {
+            // Already unregistered.
+        }
+        receiver = null;
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (pm != null && thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            pm.removeThermalStatusListener(thermalListener);
+        }
+        thermalListener = null;
+        current = null;
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /** The policy in force, or null before the first decision. */
+    synchronized Policy current() {
+        return current;
+    }
+
+    synchronized long decisionCount() {
+        return decisions;
+    }
+
+    /** Most recent decisions, oldest first. */
+    synchronized List<Policy> history() {
+        return new ArrayList<>(history);
+    }
+
+    synchronized float batteryPct() {
+        return batteryPct;
+    }
+
+    synchronized boolean isCharging() {
+        return charging;
+    }
+
+    synchronized boolean isPowerSave() {
+        return powerSave;
+    }
+
+    synchronized int thermalStatus() {
+        return thermalStatus;
+    }
+
+    /** Milliseconds since the last policy change, or -1 if none yet. */
+    synchronized long msSinceLastDecision() {
+        return decisions > 0 ? SystemClock.elapsedRealtime() - lastDecisionElapsed : -1;
+    }
+
+    private void onBatteryChanged(Intent intent) {
+        synchronized (this) {
+            readBattery(intent);
+        }
+        reevaluate();
+    }
+
+    private void onPowerSaveChanged(boolean enabled) {
+        synchronized (this) {
+            powerSave = enabled;
+        }
+        reevaluate();
+    }
+
+    private void onThermalStatusChanged(int status) {
+        synchronized (this) {
+            thermalStatus = status;
+        }
+        reevaluate();
+    }
+
+    private void readBattery(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, BatteryManager.BATTERY_STATUS_UNKNOWN);
+        batteryPct = (level >= 0 && scale > 0) ? (level * 100f) / scale : -1f;
+        charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    private void reevaluate() {
+        Policy next;
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            next = decide();
+            if (current != null && current.level.equals(next.level)) {
+                return;
+            }
+            current = next;
+            decisions++;
+            lastDecisionElapsed = SystemClock.elapsedRealtime();
+            if (history.size() == HISTORY_SIZE) {
+                history.removeFirst();
+            }
+            history.addLast(next);
+        }
+        listener.onPolicyChanged(next);
+    }
+
+    /** Callers must hold the monitor. */
+    private Policy decide() {
+        // THERMAL_STATUS_SEVERE (3) and above means the device is about to
+        // throttle hard on its own; THERMAL_STATUS_MODERATE is 2.
+        boolean onBattery = !charging && batteryPct >= 0;
+        if (thermalStatus >= 3) {
+            return conserve("thermal status " + thermalStatus);
+        }
+        if (onBattery && batteryPct < 15f) {
+            return conserve("battery " + Math.round(batteryPct) + "%");
+        }
+        if (powerSave) {
+            return balanced("power save mode");
+        }
+        if (thermalStatus == 2) {
+            return balanced("thermal status " + thermalStatus);
+        }
+        if (onBattery && batteryPct < 30f) {
+            return balanced("battery " + Math.round(batteryPct) + "%");
+        }
+        return new Policy(LEVEL_PERFORMANCE, charging ? "charging" : "nominal", 1.0f, 512, 1024);
+    }
+
+    private static Policy balanced(String reason) {
+        return new Policy(LEVEL_BALANCED, reason, 0.5f, 256, 512);
+    }
+
+    private static Policy conserve(String reason) {
+        return new Policy(LEVEL_CONSERVE, reason, 0.25f, 128, 256);
+    }
+}
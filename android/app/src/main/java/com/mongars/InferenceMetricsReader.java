@@ -0,0 +1,103 @@
+package com.mongars;
+
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+
+/**
+ * InferenceMetricsReader turns the packed counters exported by the native
+ * context into the structured map resolved by
+ * {@link LlamaTurboModule#getPerformanceMetrics}. The native side only copies
+ * atomics into a {@code long[]}; naming, unit conversion and derived rates
+ * are done here. The index layout must match {@code export_metrics} in
+ * {@code llama_jni.cpp}. Durations arrive in microseconds and are reported in
+ * milliseconds.
+ */
+final class InferenceMetricsReader {
+    static final int FIELD_COUNT = 35;
+
+    private static final int INFERENCE_COUNT = 0;
+    private static final int TOTAL_INFERENCE_US = 1;
+    private static final int LAST_INFERENCE_US = 2;
+    private static final int PROMPT_TOKENS = 3;
+    private static final int PROMPT_US = 4;
+    private static final int DECODE_TOKENS = 5;
+    private static final int DECODE_US = 6;
+    private static final int TRIM_COUNT = 7;
+    private static final int TRIMMED_TOKENS = 8;
+    private static final int LOCK_WAIT_US = 9;
+    private static final int LOCK_ACQUISITIONS = 10;
+    private static final int MAX_LOCK_WAIT_US = 11;
+    private static final int PEAK_NATIVE_HEAP_BYTES = 12;
+    private static final int PEAK_RSS_BYTES = 13;
+    private static final int TRIM_US = 14;
+    private static final int KV_SHIFTS = 15;
+    private static final int KV_SHIFTED_TOKENS = 16;
+    private static final int TTFT_HISTOGRAM = 17;
+    private static final int REQUEST_HISTOGRAM = 23;
+    private static final int TOKEN_HISTOGRAM = 29;
+
+    private InferenceMetricsReader() {
+    }
+
+    static WritableMap toMap(long[] v) {
+        WritableMap metrics = new WritableNativeMap();
+        // Legacy keys, kept for existing callers.
+        metrics.putDouble("inferenceCount", v[INFERENCE_COUNT]);
+        metrics.putDouble("totalInferenceTime", v[TOTAL_INFERENCE_US] / 1000.0);
+        metrics.putDouble("lastInferenceTime", v[LAST_INFERENCE_US] / 1000.0);
+
+        WritableMap prompt = new WritableNativeMap();
+        prompt.putDouble("tokens", v[PROMPT_TOKENS]);
+        prompt.putDouble("timeMs", v[PROMPT_US] / 1000.0);
+        prompt.putDouble("tokensPerSecond", rate(v[PROMPT_TOKENS], v[PROMPT_US]));
+        metrics.putMap("promptEval", prompt);
+
+        WritableMap decode = new WritableNativeMap();
+        decode.putDouble("tokens", v[DECODE_TOKENS]);
+        decode.putDouble("timeMs", v[DECODE_US] / 1000.0);
+        decode.putDouble("tokensPerSecond", rate(v[DECODE_TOKENS], v[DECODE_US]));
+        metrics.putMap("decode", decode);
+
+        metrics.putMap("timeToFirstToken", histogram(v, TTFT_HISTOGRAM));
+        metrics.putMap("requestLatency", histogram(v, REQUEST_HISTOGRAM));
+        metrics.putMap("tokenLatency", histogram(v, TOKEN_HISTOGRAM));
+
+        WritableMap kvCache = new WritableNativeMap();
+        kvCache.putDouble("trims", v[TRIM_COUNT]);
+        kvCache.putDouble("trimmedTokens", v[TRIMMED_TOKENS]);
+        kvCache.putDouble("trimTimeMs", v[TRIM_US] / 1000.0);
+        // Trims that shifted the resident cache instead of forcing the kept
+        // tokens to be evaluated again, and how many tokens that preserved.
+        kvCache.putDouble("shifts", v[KV_SHIFTS]);
+        kvCache.putDouble("shiftedTokens", v[KV_SHIFTED_TOKENS]);
+        metrics.putMap("kvCache", kvCache);
+
+        WritableMap lock = new WritableNativeMap();
+        lock.putDouble("acquisitions", v[LOCK_ACQUISITIONS]);
+        lock.putDouble("totalWaitMs", v[LOCK_WAIT_US] / 1000.0);
+        lock.putDouble("maxWaitMs", v[MAX_LOCK_WAIT_US] / 1000.0);
+        metrics.putMap("lockWait", lock);
+
+        WritableMap memory = new WritableNativeMap();
+        memory.putDouble("peakNativeHeapBytes", v[PEAK_NATIVE_HEAP_BYTES]);
+        memory.putDouble("peakRssBytes", v[PEAK_RSS_BYTES]);
+        metrics.putMap("memory", memory);
+        return metrics;
+    }
+
+    private static WritableMap histogram(long[] v, int offset) {
+        long count = v[offset];
+        WritableMap histogram = new WritableNativeMap();
+        histogram.putDouble("count", count);
+        histogram.putDouble("meanMs", count > 0 ? v[offset + 1] / 1000.0 / count : 0);
+        histogram.putDouble("p50Ms", v[offset + 2] / 1000.0);
+        histogram.putDouble("p95Ms", v[offset + 3] / 1000.0);
+        histogram.putDouble("p99Ms", v[offset + 4] / 1000.0);
+        histogram.putDouble("maxMs", v[offset + 5] / 1000.0);
+        return histogram;
+    }
+
+    private static double rate(long tokens, long micros) {
+        return micros > 0 ? tokens * 1_000_000.0 / micros : 0;
+    }
+}
@@ -0,0 +1,329 @@
+package com.mongars;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * JsonSchemaGrammar turns a JSON schema into the GBNF grammar that
+ * {@link LlamaTurboModule#generate} constrains sampling with. It understands
+ * {@code type} (a name or a list of names), {@code properties} with
+ * {@code required}, {@code items} with {@code minItems}/{@code maxItems},
+ * {@code enum}, {@code const}, {@code anyOf} and {@code oneOf} (treated
+ * alike). An empty schema accepts any JSON value. Objects with properties
+ * are closed and written in declaration order, required properties first.
+ * String formats, patterns and numeric ranges are not enforced, and
+ * {@code $ref}/{@code allOf} are rejected. The root rule ends at the closing
+ * token of the value, so generation stops as soon as the value is complete.
+ */
+final class JsonSchemaGrammar {
+    private static final Map<String, String> PRIMITIVES = new LinkedHashMap<>();
+    private static final Map<String, String[]> DEPENDENCIES = new LinkedHashMap<>();
+
+    static {
+        PRIMITIVES.put("ws", "| \" \" | \"\\n\" [ \\t]*");
+        PRIMITIVES.put("json-char", "[^\"\\\\\\x00-\\x1F] | \"\\\\\" ([\"\\\\/bfnrt] | \"u\" "
+                + "[0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F])");
+        PRIMITIVES.put("json-string", "\"\\\"\" json-char* \"\\\"\"");
+        PRIMITIVES.put("json-integer", "\"-\"? (\"0\" | [1-9] [0-9]*)");
+        PRIMITIVES.put("json-number", "json-integer (\".\" [0-9]+)? ([eE] [-+]? [0-9]+)?");
+        PRIMITIVES.put("json-boolean", "\"true\" | \"false\"");
+        PRIMITIVES.put("json-null", "\"null\"");
+        PRIMITIVES.put("json-value", "json-object | json-array | json-string | json-number "
+                + "| json-boolean | json-null");
+        PRIMITIVES.put("json-object", "\"{\" ws ( json-string ws \":\" ws json-value ws "
+                + "( \",\" ws json-string ws \":\" ws json-value ws )* )? \"}\"");
+        PRIMITIVES.put("json-array", "\"[\" ws ( json-value ws ( \",\" ws json-value ws )* )? \"]\"");
+
+        DEPENDENCIES.put("json-string", new String[] {"json-char"});
+        DEPENDENCIES.put("json-number", new String[] {"json-integer"});
+        DEPENDENCIES.put("json-value", new String[] {"json-object", "json-array", "json-string",
+                "json-number", "json-boolean", "json-null"});
+        DEPENDENCIES.put("json-object", new String[] {"ws", "json-string", "json-value"});
+        DEPENDENCIES.put("json-array", new String[] {"ws", "json-value"});
+    }
+
+    private final Map<String, String> mRules = new LinkedHashMap<>();
+
+    private JsonSchemaGrammar() {
+    }
+
+    static String fromSchema(JSONObject schema) throws JSONException {
+        JsonSchemaGrammar grammar = new JsonSchemaGrammar();
+        String root = grammar.visit(schema, "root");
+        if (!"root".equals(root)) {
+            grammar.mRules.put("root", root);
+        }
+        StringBuilder out = new StringBuilder();
+        out.append("root ::= ").append(grammar.mRules.get("root")).append('\n');
+        for (Map.Entry<String, String> rule : grammar.mRules.entrySet()) {
+            if (!"root".equals(rule.getKey())) {
+                out.append(rule.getKey()).append(" ::= ").append(rule.getValue()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /** Returns a GBNF expression matching {@code schema}, adding the rules it needs. */
+    private String visit(JSONObject schema, String name) throws JSONException {
+        if (schema.has("$ref") || schema.has("allOf")) {
+            throw new IllegalArgumentException("Unsupported schema keyword at " + name + ": "
+                    + (schema.has("$ref") ? "$ref" : "allOf"));
+        }
+        if (schema.has("const")) {
+            return literal(jsonText(schema.get("const")));
+        }
+        JSONArray values = schema.optJSONArray("enum");
+        if (values != null) {
+            if (values.length() == 0) {
+                throw new IllegalArgumentException("Empty enum at " + name);
+            }
+            List<String> alternatives = new ArrayList<>();
+            for (int i = 0; i < values.length(); i++) {
+                alternatives.add(literal(jsonText(values.get(i))));
+            }
+            return group(alternatives);
+        }
+        JSONArray choices = schema.has("anyOf") ? schema.optJSONArray("anyOf") : schema.optJSONArray("oneOf");
+        if (choices != null) {
+            List<String> alternatives = new ArrayList<>();
+            for (int i = 0; i < choices.length(); i++) {
+                alternatives.add(visit(choices.getJSONObject(i), name + "-" + i));
+            }
+            return group(alternatives);
+        }
+        Object type = schema.opt("type");
+        if (type instanceof JSONArray) {
+            JSONArray types = (JSONArray) type;
+            List<String> alternatives = new ArrayList<>();
+            for (int i = 0; i < types.length(); i++) {
+                String t = types.getString(i);
+                alternatives.add(visitType(t, schema, name + "-" + t));
+            }
+            return group(alternatives);
+        }
+        if (type instanceof String) {
+            return visitType((String) type, schema, name);
+        }
+        if (schema.has("properties")) {
+            return visitType("object", schema, name);
+        }
+        if (schema.has("items")) {
+            return visitType("array", schema, name);
+        }
+        return primitive("json-value");
+    }
+
+    private String visitType(String type, JSONObject schema, String name) throws JSONException {
+        switch (type) {
+            case "string":
+            case "number":
+            case "integer":
+            case "boolean":
+            case "null":
+                return primitive("json-" + type);
+            case "object":
+                return object(schema, name);
+            case "array":
+                return array(schema, name);
+            default:
+                throw new IllegalArgumentException("Unsupported schema type at " + name + ": " + type);
+        }
+    }
+
+    private String object(JSONObject schema, String name) throws JSONException {
+        JSONObject properties = schema.optJSONObject("properties");
+        if (properties == null || properties.length() == 0) {
+            return primitive("json-object");
+        }
+        primitive("ws");
+        Set<String> required = new HashSet<>();
+        JSONArray requiredNames = schema.optJSONArray("required");
+        if (requiredNames != null) {
+            for (int i = 0; i < requiredNames.length(); i++) {
+                required.add(requiredNames.getString(i));
+            }
+        }
+        List<String> mandatory = new ArrayList<>();
+        List<String> optional = new ArrayList<>();
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String propertyName = name + "-" + ruleName(key);
+            String value = visit(properties.getJSONObject(key), propertyName);
+            String pair = rule(propertyName + "-kv", literal(jsonText(key)) + " ws \":\" ws " + value + " ws");
+            (required.contains(key) ? mandatory : optional).add(pair);
+        }
+
+        StringBuilder body = new StringBuilder("\"{\" ws ");
+        if (!mandatory.isEmpty()) {
+            body.append(String.join(" \",\" ws ", mandatory));
+            for (String pair : optional) {
+                body.append(" ( \",\" ws ").append(pair).append(" )?");
+            }
+        } else {
+            // Any in-order subset of the optional properties, without a
+            // leading comma before the first one present.
+            List<String> starts = new ArrayList<>();
+            for (int i = 0; i < optional.size(); i++) {
+                StringBuilder start = new StringBuilder(optional.get(i));
+                for (int j = i + 1; j < optional.size(); j++) {
+                    start.append(" ( \",\" ws ").append(optional.get(j)).append(" )?");
+                }
+                starts.add(start.toString());
+            }
+            body.append("( ").append(String.join(" | ", starts)).append(" )?");
+        }
+        body.append(" \"}\"");
+        return rule(name, body.toString());
+    }
+
+    private String array(JSONObject schema, String name) throws JSONException {
+        Object items = schema.opt("items");
+        String item = items instanceof JSONObject
+                ? visit((JSONObject) items, name + "-item")
+                : primitive("json-value");
+        int min = Math.max(0, schema.optInt("minItems", 0));
+        int max = schema.has("maxItems") ? schema.optInt("maxItems", -1) : -1;
+        if (max >= 0 && max < min) {
+            throw new IllegalArgumentException("maxItems is below minItems at " + name);
+        }
+        primitive("ws");
+        StringBuilder body = new StringBuilder("\"[\" ws ");
+        if (max != 0) {
+            String next = "\",\" ws " + item + " ws";
+            int leading = Math.max(min, 1);
+            StringBuilder sequence = new StringBuilder(item).append(" ws");
+            for (int i = 1; i < leading; i++) {
+                sequence.append(' ').append(next);
+            }
+            if (max < 0) {
+                sequence.append(" ( ").append(next).append(" )*");
+            } else {
+                String tail = "";
+                for (int i = leading; i < max; i++) {
+                    tail = " ( " + next + tail + " )?";
+                }
+                sequence.append(tail);
+            }
+            body.append(min == 0 ? "( " + sequence + " )?" : sequence);
+        }
+        body.append(" \"]\"");
+        return rule(name, body.toString());
+    }
+
+    /** Adds a shared primitive rule and the rules it refers to. */
+    private String primitive(String name) {
+        if (!mRules.containsKey(name)) {
+            mRules.put(name, PRIMITIVES.get(name));
+            String[] dependencies = DEPENDENCIES.get(name);
+            if (dependencies != null) {
+                for (String dependency : dependencies) {
+                    primitive(dependency);
+                }
+            }
+        }
+        return name;
+    }
+
+    /** Adds a rule under {@code name}, or a numbered variant when that name is taken. */
+    private String rule(String name, String body) {
+        String candidate = name;
+        for (int i = 1; mRules.containsKey(candidate) && !body.equals(mRules.get(candidate)); i++) {
+            candidate = name + "-" + i;
+        }
+        mRules.put(candidate, body);
+        return candidate;
+    }
+
+    private static String group(List<String> alternatives) {
+        return alternatives.size() == 1 ? alternatives.get(0) : "( " + String.join(" | ", alternatives) + " )";
+    }
+
+    private static String ruleName(String key) {
+        String sanitized = key.replaceAll("[^A-Za-z0-9-]", "-");
+        return sanitized.isEmpty() ? "property" : sanitized;
+    }
+
+    /** Compact JSON text of a schema constant. */
+    private static String jsonText(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return "null";
+        }
+        if (value instanceof String) {
+            return quote((String) value);
+        }
+        if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+            return value.toString();
+        }
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15) {
+                return Long.toString((long) d);
+            }
+            return value.toString();
+        }
+        throw new IllegalArgumentException("Unsupported constant: " + value);
+    }
+
+    private static String quote(String text) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    /**
+     * GBNF literal for {@code text}. Characters outside the BMP are written
+     * as escapes because JNI hands strings over in modified UTF-8, which
+     * encodes them as surrogate pairs.
+     */
+    private static String literal(String text) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (cp == '"' || cp == '\\') {
+                out.append('\\').appendCodePoint(cp);
+            } else if (cp < 0x20) {
+                out.append(String.format("\\x%02X", cp));
+            } else if (cp > 0xFFFF) {
+                out.append(String.format("\\U%08X", cp));
+            } else {
+                out.appendCodePoint(cp);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
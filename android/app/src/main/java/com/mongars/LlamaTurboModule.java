@@ -1,15 +1,34 @@
 package com.mongars;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Base64;
 import androidx.annotation.NonNull;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeArray;
 import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.module.annotations.ReactModule;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
  * LlamaTurboModule exposes llama.cpp based language model functionality to React
@@ -27,23 +46,157 @@ public class LlamaTurboModule extends ReactContextBaseJavaModule {
      */
     public static final String NAME = "LlamaTurboModule";
 
+    /** Upper bound on queued inference requests before new ones are rejected. */
+    private static final int MAX_PENDING_REQUESTS = 32;
+
+    /**
+     * Continuous-batching steps run per executor task before the driver
+     * re-queues itself, so interactive work can interleave with a long batch.
+     */
+    private static final int BATCH_STEPS_PER_SLICE = 16;
+
+    /** Default disk budget for saved conversation snapshots. */
+    private static final long DEFAULT_SESSION_BUDGET_BYTES = 512L * 1024 * 1024;
+
+    /** Prompt used by {@link #ragGenerate} when the caller gives no template. */
+    private static final String DEFAULT_RAG_TEMPLATE =
+            "Use the following context to answer the question.\n\n{context}\n\nQuestion: {query}\nAnswer:";
+
+    /** Default number of vectors the embedding cache keeps per model. */
+    private static final int DEFAULT_EMBEDDING_CACHE_ENTRIES = 4096;
+    private static final int TOKEN_CACHE_TOKENS = 64 * 1024;
+
+    /**
+     * Session id of the snapshot taken under memory pressure. It never names
+     * a caller's conversation, because the KV cache may no longer match the
+     * conversation that was last saved or restored.
+     */
+    private static final String TRIM_SESSION_ID = "memory-trim";
+
     // Native methods are implemented in the accompanying C++ file.
-    private native long nativeLoadModel(String modelPath, int contextSize, int maxThreads);
-    private native String nativeGenerate(long ctxPtr, String prompt, int maxTokens, float temperature, boolean useSparseAttention);
+    private native long nativeLoadModel(String modelPath, int contextSize, int decodeThreads,
+                                        int prefillThreads, boolean useMmap, boolean useMlock, boolean warmup,
+                                        String kvCacheType, ModelLoadEmitter listener, long[] phaseTimes);
+    private native String nativeGenerate(long ctxPtr, String prompt, int maxTokens, SamplingParams sampling, boolean useSparseAttention, long requestToken, String grammar, String[] finishReason);
+    private native String nativeGenerateStream(long ctxPtr, String prompt, int maxTokens, SamplingParams sampling, boolean useSparseAttention, long requestToken, TokenStreamEmitter listener, String grammar, String[] finishReason);
+    private native String nativeGenerateSpeculative(long ctxPtr, long draftCtxPtr, String prompt, int maxTokens, SamplingParams params, int draftTokens, long requestToken, TokenStreamEmitter listener, long[] stats, String[] finishReason);
+    private native void nativeBatchSubmit(long ctxPtr, String prompt, int maxTokens, float temperature, int seed, long requestToken);
+    private native long[] nativeBatchStep(long ctxPtr);
+    private native String nativeBatchTakeResult(long ctxPtr, long requestToken, String[] finishReason);
+    private native int nativeBatchOutstanding(long ctxPtr);
+    private native void nativeSetPinnedPrefix(long ctxPtr, String text);
+    private native void nativeAbort(long ctxPtr, long requestToken);
+    private native boolean nativeIsAborted(long ctxPtr, long requestToken);
+    private native void nativeFinishRequest(long ctxPtr, long requestToken);
     private native float[] nativeEmbed(long ctxPtr, String text);
+    private native float[] nativeEmbedBatch(long ctxPtr, String[] texts, long[] itemStats);
+    private native int nativeEmbedBatchInto(long ctxPtr, String[] texts, ByteBuffer out, long[] itemStats);
+    private native int nativeGetEmbeddingSize(long ctxPtr);
+    private native int[] nativeTokenizeBatch(long ctxPtr, String[] texts, boolean addBos, int[] counts);
     private native void nativeClearKVCache(long ctxPtr);
     private native void nativeAddMessageBoundary(long ctxPtr);
     private native int nativeGetKVCacheSize(long ctxPtr);
     private native int nativeGetKVCacheMaxSize(long ctxPtr);
-    private native WritableMap nativeGetPerformanceMetrics(long ctxPtr);
+    private native void nativeGetKVCacheBytes(long ctxPtr, long[] out);
+    private native int nativeCompactKVCache(long ctxPtr);
+    private native String nativeGetKVCacheType(long ctxPtr);
+    private native long[] nativeGetPrefixCacheStats(long ctxPtr);
+    private native long nativeSaveSession(long ctxPtr, String path);
+    private native long nativeRestoreSession(long ctxPtr, String path);
+    private native int nativeGetPerformanceMetrics(long ctxPtr, long[] out);
+    private native void nativeResetPerformanceMetrics(long ctxPtr);
     private native void nativeAdjustPerformanceMode(long ctxPtr, String mode);
+    private native int nativeApplyRuntimePolicy(long ctxPtr, int threads, int prefillThreads,
+                                                int maxBatchTokens, int cacheTokens);
+    private native void nativeSetThreads(long ctxPtr, int threads, int prefillThreads);
+    private native int nativeSetThreadAffinity(int[] cpus);
+    private native void nativeCalibrateThreads(long ctxPtr, int[] candidates, int prefillTokens, int decodeTokens,
+                                               double[] prefillTps, double[] decodeTps);
     private native void nativeFreeModel(long ctxPtr);
 
     /**
-     * Pointer to the internal llama.cpp context. A value of zero indicates that
-     * no model has been loaded.
+     * Loaded llama.cpp contexts keyed by handle. Methods without a handle
+     * argument operate on {@link ModelRegistry#DEFAULT_HANDLE}.
+     */
+    private final ModelRegistry mModels;
+
+    /**
+     * Source of the unique, increasing tokens that identify a generation to
+     * the native abort marks. Also used to derive request identifiers for
+     * streams started without an explicit requestId.
+     */
+    private final AtomicLong mRequestCounter = new AtomicLong();
+
+    /**
+     * Generations that can be cancelled, keyed by the JS requestId. Entries
+     * are added when the request is queued and removed once it settles.
+     */
+    private final Map<String, PendingRequest> mPendingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Parallel generations submitted to the native continuous batcher, keyed
+     * by request token. Each holds an acquisition on its model until it
+     * settles.
+     */
+    private final Map<Long, BatchedRequest> mBatchedRequests = new ConcurrentHashMap<>();
+
+    /** Context pointers whose batch driver is currently queued or running. */
+    private final Map<Long, Boolean> mBatchDrivers = new ConcurrentHashMap<>();
+
+    /**
+     * Direct buffer the native side writes embeddings into. Reused across
+     * calls and only touched on the inference thread.
+     */
+    private ByteBuffer mEmbeddingBuffer;
+
+    private final SessionStore mSessionStore;
+    private final ThreadCalibration mThreadCalibration;
+
+    /**
+     * CPU affinity of the inference thread, set by {@code loadModel}'s
+     * {@code affinity} option and only changed on that thread. The pinned
+     * set is empty while threads are not pinned.
+     */
+    private final CpuTopology mCpuTopology = CpuTopology.system();
+    private volatile String mAffinityPolicy;
+    private volatile int[] mPinnedCpus = new int[0];
+    private volatile String mAffinityError;
+
+    /**
+     * Embedding caches keyed by {@link #modelId}, created on first
+     * use with the settings below. Writes to the settings and the map are
+     * guarded by the map itself.
+     */
+    private final Map<String, EmbeddingCache> mEmbeddingCaches = new ConcurrentHashMap<>();
+    private volatile int mEmbeddingCacheCapacity = DEFAULT_EMBEDDING_CACHE_ENTRIES;
+    private volatile String mEmbeddingCachePrecision = EmbeddingCache.PRECISION_FLOAT16;
+    private volatile boolean mEmbeddingCachePersist;
+
+    /** Token caches keyed by {@link #modelId}, created on first use. */
+    private final Map<String, TokenCache> mTokenCaches = new ConcurrentHashMap<>();
+
+    /**
+     * Single-writer executor that owns every call into the native context.
+     * Status getters bypass it so they never wait behind a decode.
+     */
+    private final InferenceExecutor mExecutor =
+            new InferenceExecutor("llama-inference", MAX_PENDING_REQUESTS);
+
+    /**
+     * Adjusts threads, batch size and cache budget of every loaded model from
+     * battery, power-save and thermal signals.
+     */
+    private final InferenceGovernor mGovernor;
+
+    /**
+     * Sheds memory in stages when the system reports memory pressure. The
+     * highest stage requested while a shed is queued is kept in
+     * {@code mPendingTrimStage}, guarded by {@code mTrimLock}.
      */
-    private long mCtxPtr = 0;
+    private final MemoryTrimmer mMemoryTrimmer;
+    private final Object mTrimLock = new Object();
+    private int mPendingTrimStage;
+    private int mPendingTrimLevel;
 
     static {
         System.loadLibrary("llama_rn");
@@ -51,6 +204,15 @@ public class LlamaTurboModule extends ReactContextBaseJavaModule {
 
     public LlamaTurboModule(ReactApplicationContext reactContext) {
         super(reactContext);
+        mSessionStore = new SessionStore(
+                new File(reactContext.getFilesDir(), "llama_sessions"), DEFAULT_SESSION_BUDGET_BYTES);
+        mModels = new ModelRegistry(defaultModelBudget(reactContext), this::nativeFreeModel);
+        mThreadCalibration = new ThreadCalibration(reactContext);
+        mGovernor = new InferenceGovernor(reactContext, policy ->
+                mExecutor.submit(InferenceExecutor.PRIORITY_INTERACTIVE, () -> applyPolicy(policy)));
+        mGovernor.start();
+        mMemoryTrimmer = new MemoryTrimmer(reactContext, this::onTrimMemory);
+        mMemoryTrimmer.register();
     }
 
     @Override
@@ -59,18 +221,84 @@ public class LlamaTurboModule extends ReactContextBaseJavaModule {
         return NAME;
     }
 
+    @Override
+    public void invalidate() {
+        mGovernor.stop();
+        mMemoryTrimmer.unregister();
+        // Free the context on the inference thread so an in-flight decode
+        // finishes before the native memory is released.
+        mExecutor.shutdown(() -> {
+            for (BatchedRequest request : mBatchedRequests.values()) {
+                failBatched(request.model.ctxPtr, "GENERATE_ERROR", "Module invalidated");
+            }
+            mModels.unloadAll();
+        });
+        super.invalidate();
+    }
+
     /**
      * Load a language model from the given path. The options map can specify
      * contextSize and maxThreads. If options are omitted, sensible defaults are
      * used. This method resolves with a
      * status object containing metadata about the loaded model.
+     * Several models can stay resident at once: {@code handle} names the slot
+     * to load into (default "default") and replaces only the model already
+     * in that slot. Idle models in other slots are unloaded in LRU order if
+     * the new model would exceed the memory budget.
+     * Loading runs on the inference thread and reports progress as
+     * {@code llamaLoadProgress} events. {@code useMmap} (default true) maps
+     * the weights instead of reading them into memory, {@code useMlock}
+     * (default false) pins them in RAM, and {@code warmup} runs one decode
+     * before resolving so the first request does not pay the cold start.
+     * {@code prefillThreads} and {@code decodeThreads} set the thread counts
+     * for prompt evaluation and for single-token decode separately (both
+     * default to maxThreads). Without explicit counts, the counts calibrated
+     * for this device and model file on an earlier load are reused. When
+     * there are none and {@code calibrateThreads} is true, short prefill and
+     * decode bursts are timed at several thread counts and the fastest
+     * (fewest threads on a near tie) are kept and remembered; see
+     * {@link ThreadCalibration}.
+     * {@code affinity} pins the inference thread and the native worker
+     * threads it starts to a set of cores read from sysfs (see
+     * {@link CpuTopology}): "performance-cores" (every cluster but the
+     * slowest), "efficiency" (only the slowest) or "all". Pinning applies to
+     * every loaded model and caps the thread counts at the number of pinned
+     * cores; it is reported under {@code cpu} in the metrics.
+     * {@code kvCacheType} stores the KV cache as "f16" (default), "q8_0" or
+     * "q4_0", fitting roughly 2x or 4x the tokens in the same memory (1.3x
+     * and 1.6x on builds without flash attention, where only the K cache is
+     * quantized). The context size limit and the governor and
+     * performance-mode cache budgets grow accordingly; {@code kvCacheTokens}
+     * in the result is the token budget in effect.
+     * The result includes the time spent in each phase and the thread
+     * counts in use with where they came from.
      */
     @ReactMethod
     public void loadModel(String modelPath, ReadableMap options, Promise promise) {
+        int contextSize = 4096;
+        int maxThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        int priority = InferenceExecutor.PRIORITY_NORMAL;
+        String handle = null;
+        boolean useMmap = true;
+        boolean useMlock = false;
+        boolean warmup = false;
+        int prefillThreads = 0;
+        int decodeThreads = 0;
+        boolean calibrate = false;
+        String affinity = null;
+        String kvCacheType = "f16";
         try {
-            int contextSize = 4096;
-            int maxThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
             if (options != null) {
+                handle = readHandle(options);
+                if (options.hasKey("useMmap") && !options.isNull("useMmap")) {
+                    useMmap = options.getBoolean("useMmap");
+                }
+                if (options.hasKey("useMlock") && !options.isNull("useMlock")) {
+                    useMlock = options.getBoolean("useMlock");
+                }
+                if (options.hasKey("warmup") && !options.isNull("warmup")) {
+                    warmup = options.getBoolean("warmup");
+                }
                 if (options.hasKey("contextSize") && !options.isNull("contextSize")) {
                     double cs = options.getDouble("contextSize");
                     if (!Double.isNaN(cs) && cs > 0) {
@@ -83,148 +311,2173 @@ public class LlamaTurboModule extends ReactContextBaseJavaModule {
                         maxThreads = (int) Math.round(mt);
                     }
                 }
+                if (options.hasKey("prefillThreads") && !options.isNull("prefillThreads")) {
+                    prefillThreads = options.getInt("prefillThreads");
+                }
+                if (options.hasKey("decodeThreads") && !options.isNull("decodeThreads")) {
+                    decodeThreads = options.getInt("decodeThreads");
+                }
+                if (options.hasKey("calibrateThreads") && !options.isNull("calibrateThreads")) {
+                    calibrate = options.getBoolean("calibrateThreads");
+                }
+                if (options.hasKey("affinity") && !options.isNull("affinity")) {
+                    affinity = options.getString("affinity");
+                    if (!CpuTopology.isValidPolicy(affinity)) {
+                        throw new IllegalArgumentException("Unknown affinity policy: " + affinity);
+                    }
+                }
+                if (options.hasKey("kvCacheType") && !options.isNull("kvCacheType")) {
+                    kvCacheType = options.getString("kvCacheType");
+                    if (!"f16".equals(kvCacheType) && !"q8_0".equals(kvCacheType)
+                            && !"q4_0".equals(kvCacheType)) {
+                        throw new IllegalArgumentException("Unknown kvCacheType: " + kvCacheType);
+                    }
+                }
+                priority = readPriority(options, priority);
             }
-            int available = Math.max(1, Runtime.getRuntime().availableProcessors());
-            maxThreads = Math.min(available, Math.max(1, maxThreads));
-
-            if (modelPath == null || modelPath.isEmpty()) {
-                promise.reject("LOAD_ERROR", "Model path must be a non-empty string");
-                return;
-            }
-
-            // Free any previously loaded model to avoid leaks when reloading
-            if (mCtxPtr != 0) {
-                nativeFreeModel(mCtxPtr);
-                mCtxPtr = 0;
-            }
-
-            mCtxPtr = nativeLoadModel(modelPath, contextSize, maxThreads);
-            WritableMap result = new WritableNativeMap();
-            result.putString("status", "loaded");
-            result.putString("model", modelPath);
-            result.putInt("contextSize", contextSize);
-            promise.resolve(result);
         } catch (Exception e) {
             promise.reject("LOAD_ERROR", "Failed to load model: " + e.getMessage());
+            return;
+        }
+        final int available = Math.max(1, Runtime.getRuntime().availableProcessors());
+        final int threads = Math.min(available, Math.max(1, maxThreads));
+        final int requestedPrefill = prefillThreads > 0 ? Math.min(available, prefillThreads) : 0;
+        final int requestedDecode = decodeThreads > 0 ? Math.min(available, decodeThreads) : 0;
+        final boolean automatic = requestedPrefill == 0 && requestedDecode == 0;
+        final boolean tune = calibrate && automatic;
+        final String affinityPolicy = affinity;
+        final String kvType = kvCacheType;
+        final int ctxSize = contextSize;
+        final String slot = ModelRegistry.normalizeHandle(handle);
+        final boolean mmap = useMmap;
+        final boolean mlock = useMlock;
+        final boolean warm = warmup;
+
+        if (modelPath == null || modelPath.isEmpty()) {
+            promise.reject("LOAD_ERROR", "Model path must be a non-empty string");
+            return;
         }
+
+        enqueue(priority, promise, () -> {
+            try {
+                long start = System.nanoTime();
+                // Free any previously loaded model to avoid leaks when reloading
+                mModels.unload(slot);
+                long sizeBytes = new File(modelPath).length();
+                List<String> evicted = mModels.makeRoom(sizeBytes);
+
+                ModelLoadEmitter emitter = new ModelLoadEmitter(getReactApplicationContext(), slot, sizeBytes);
+                long[] phaseTimes = new long[3];
+                if (affinityPolicy != null) {
+                    pinInferenceThread(affinityPolicy);
+                }
+                // Threads beyond the pinned cores would only contend for them.
+                int cores = mPinnedCpus.length > 0 ? Math.min(available, mPinnedCpus.length) : available;
+                int prefill = Math.min(cores, requestedPrefill > 0 ? requestedPrefill : threads);
+                int decode = Math.min(cores, requestedDecode > 0 ? requestedDecode : threads);
+                String threadSource = requestedPrefill > 0 || requestedDecode > 0 ? "options" : "default";
+                String pinning = mPinnedCpus.length > 0 ? mAffinityPolicy : null;
+                ThreadCalibration.Result stored = automatic
+                        ? mThreadCalibration.load(modelPath, sizeBytes, pinning) : null;
+                if (stored != null) {
+                    prefill = Math.max(1, Math.min(cores, stored.prefillThreads));
+                    decode = Math.max(1, Math.min(cores, stored.decodeThreads));
+                    threadSource = "stored";
+                }
+                long ctxPtr = nativeLoadModel(modelPath, ctxSize, decode, prefill, mmap, mlock, warm, kvType,
+                        emitter, phaseTimes);
+                long calibrationStart = System.nanoTime();
+                WritableArray calibration = null;
+                String calibrationError = null;
+                if (tune && stored == null) {
+                    try {
+                        int[] candidates = ThreadCalibration.candidates(cores);
+                        double[] prefillTps = new double[candidates.length];
+                        double[] decodeTps = new double[candidates.length];
+                        nativeCalibrateThreads(ctxPtr, candidates, ThreadCalibration.PREFILL_TOKENS,
+                                ThreadCalibration.DECODE_TOKENS, prefillTps, decodeTps);
+                        int bestPrefill = ThreadCalibration.best(prefillTps);
+                        int bestDecode = ThreadCalibration.best(decodeTps);
+                        if (bestPrefill >= 0 && bestDecode >= 0) {
+                            prefill = candidates[bestPrefill];
+                            decode = candidates[bestDecode];
+                            threadSource = "calibrated";
+                            nativeSetThreads(ctxPtr, decode, prefill);
+                            mThreadCalibration.store(modelPath, sizeBytes, pinning,
+                                    new ThreadCalibration.Result(prefill, decode));
+                        }
+                        calibration = new WritableNativeArray();
+                        for (int i = 0; i < candidates.length; i++) {
+                            WritableMap point = new WritableNativeMap();
+                            point.putInt("threads", candidates[i]);
+                            point.putDouble("prefillTokensPerSecond", prefillTps[i]);
+                            point.putDouble("decodeTokensPerSecond", decodeTps[i]);
+                            calibration.pushMap(point);
+                        }
+                    } catch (Exception e) {
+                        // Keep the model loaded with the default counts.
+                        calibrationError = e.getMessage();
+                    }
+                }
+                long calibrationNanos = System.nanoTime() - calibrationStart;
+                ModelRegistry.Entry entry = mModels.register(slot, modelPath, ctxPtr, sizeBytes, decode, prefill);
+                InferenceGovernor.Policy policy = mGovernor.current();
+                if (policy != null) {
+                    applyPolicy(policy, entry);
+                }
+                WritableMap result = new WritableNativeMap();
+                result.putString("status", "loaded");
+                result.putString("model", modelPath);
+                result.putString("handle", slot);
+                result.putInt("contextSize", ctxSize);
+                result.putString("kvCacheType", nativeGetKVCacheType(ctxPtr));
+                long[] kvBytes = new long[3];
+                nativeGetKVCacheBytes(ctxPtr, kvBytes);
+                result.putDouble("kvCacheBytes", kvBytes[1]);
+                result.putInt("kvCacheTokens", nativeGetKVCacheMaxSize(ctxPtr));
+                WritableMap timings = new WritableNativeMap();
+                timings.putDouble("weightsMs", phaseTimes[0] / 1000.0);
+                timings.putDouble("contextMs", phaseTimes[1] / 1000.0);
+                timings.putDouble("warmupMs", phaseTimes[2] / 1000.0);
+                timings.putDouble("calibrationMs", calibration != null ? calibrationNanos / 1_000_000.0 : 0);
+                timings.putDouble("totalMs", (System.nanoTime() - start) / 1_000_000.0);
+                result.putMap("loadTimings", timings);
+                WritableMap threadCounts = new WritableNativeMap();
+                threadCounts.putInt("prefill", prefill);
+                threadCounts.putInt("decode", decode);
+                threadCounts.putString("source", threadSource);
+                if (calibration != null) {
+                    threadCounts.putArray("calibration", calibration);
+                }
+                if (calibrationError != null) {
+                    threadCounts.putString("calibrationError", calibrationError);
+                }
+                result.putMap("threads", threadCounts);
+                WritableArray unloaded = new WritableNativeArray();
+                for (String evictedHandle : evicted) {
+                    unloaded.pushString(evictedHandle);
+                }
+                result.putArray("unloaded", unloaded);
+                promise.resolve(result);
+            } catch (Exception e) {
+                promise.reject("LOAD_ERROR", "Failed to load model: " + e.getMessage());
+            }
+        });
     }
 
     /**
      * Generate a completion given the prompt and generation options. The
      * options map can specify maxTokens, temperature and useSparseAttention.
+     * topK, topP, minP, repeatPenalty, frequencyPenalty, presencePenalty
+     * (over the last penaltyLastN tokens) and seed configure the native
+     * sampler chain (see {@link SamplingParams}); {@code stop} is a string
+     * or an array of strings that ends generation as soon as one appears in
+     * the output, and is removed from the returned text. The result reports
+     * why decoding ended in {@code finishReason}.
+     * When {@code stream} is true, tokens are delivered as
+     * {@code llamaToken} events while decoding runs (buffered according to
+     * streamFlushTokens and streamFlushIntervalMs) and the promise resolves
+     * with a summary that includes time-to-first-token and tokens/sec.
+     * Requests run at interactive priority unless {@code priority} says
+     * otherwise. Generations started with a {@code requestId} can be stopped
+     * with {@link #cancel}; they then resolve with the partial text and
+     * {@code cancelled: true}. {@code handle} selects the loaded model.
+     * With {@code parallel: true} the prompt is decoded independently of the
+     * chat history in the native continuous batcher: concurrent parallel
+     * requests share each batched eval step, each with its own sequence,
+     * temperature and {@code seed}, and join or leave between steps.
+     * Parallel requests do not stream; they end with "length" when the
+     * shared context runs out, and reject when the batched eval fails.
+     * With {@code draftHandle} set to another loaded model, decoding is
+     * speculative: the draft proposes up to {@code draftTokens} (default 4)
+     * tokens per round and this model verifies them in one batched eval.
+     * The result then carries a {@code speculative} map with the acceptance
+     * rate and the measured speedup over regular decoding.
+     * {@code pinnedPrefix} pins the leading text of the conversation,
+     * normally the system prompt, so that trimming the context on overflow
+     * never evicts it; pass an empty string to unpin.
+     * {@code grammar} (GBNF text with a {@code root} rule) or
+     * {@code jsonSchema} (a schema object or its JSON text, converted by
+     * {@link JsonSchemaGrammar}) constrains sampling so that only tokens the
+     * grammar accepts can be drawn, and decoding stops as soon as the
+     * grammar can only end. The text then holds just the constrained
+     * output. Invalid grammars reject with GRAMMAR_ERROR; constraints are
+     * not available for parallel or speculative requests.
      */
     @ReactMethod
     public void generate(String prompt, ReadableMap options, Promise promise) {
-        if (mCtxPtr == 0) {
+        generate(prompt, options, promise, null);
+    }
+
+    /**
+     * {@link #generate} that merges the retrieval summary of {@code trace}
+     * into the result, if one is given.
+     */
+    private void generate(String prompt, ReadableMap options, Promise promise, RetrievalTrace trace) {
+        final String handle = options != null ? readHandle(options) : null;
+        if (!mModels.contains(handle)) {
             promise.reject("NO_MODEL", "Model not loaded");
             return;
         }
+        int maxTokens = 256;
+        float temperature = 0.7f;
+        boolean useSparseAttention = false;
+        boolean stream = false;
+        boolean parallel = false;
+        int seed = 0;
+        String draftHandle = null;
+        int draftTokens = 4;
+        String pinnedPrefix = null;
+        String requestId = null;
+        int flushTokens = 4;
+        int flushIntervalMs = 50;
+        int priority = InferenceExecutor.PRIORITY_INTERACTIVE;
+        String grammarText = null;
+        SamplingParams sampling;
         try {
-            int maxTokens = 256;
-            float temperature = 0.7f;
-            boolean useSparseAttention = false;
+            sampling = SamplingParams.fromOptions(options);
+            temperature = sampling.temperature;
+            seed = sampling.seed;
             if (options != null) {
                 if (options.hasKey("maxTokens")) {
                     maxTokens = options.getInt("maxTokens");
                 }
-                if (options.hasKey("temperature")) {
-                    temperature = (float) options.getDouble("temperature");
-                }
                 if (options.hasKey("useSparseAttention")) {
                     useSparseAttention = options.getBoolean("useSparseAttention");
                 }
+                if (options.hasKey("stream") && !options.isNull("stream")) {
+                    stream = options.getBoolean("stream");
+                }
+                if (options.hasKey("parallel") && !options.isNull("parallel")) {
+                    parallel = options.getBoolean("parallel");
+                }
+                if (options.hasKey("pinnedPrefix") && !options.isNull("pinnedPrefix")) {
+                    pinnedPrefix = options.getString("pinnedPrefix");
+                }
+                if (options.hasKey("draftHandle") && !options.isNull("draftHandle")) {
+                    draftHandle = options.getString("draftHandle");
+                }
+                if (options.hasKey("draftTokens") && !options.isNull("draftTokens")) {
+                    draftTokens = Math.max(1, Math.min(16, options.getInt("draftTokens")));
+                }
+                if (options.hasKey("requestId") && !options.isNull("requestId")) {
+                    requestId = options.getString("requestId");
+                }
+                if (options.hasKey("streamFlushTokens") && !options.isNull("streamFlushTokens")) {
+                    flushTokens = options.getInt("streamFlushTokens");
+                }
+                if (options.hasKey("streamFlushIntervalMs") && !options.isNull("streamFlushIntervalMs")) {
+                    flushIntervalMs = options.getInt("streamFlushIntervalMs");
+                }
+                priority = readPriority(options, priority);
+                if (options.hasKey("grammar") && !options.isNull("grammar")) {
+                    grammarText = options.getString("grammar");
+                }
             }
-            String resultText = nativeGenerate(mCtxPtr, prompt, maxTokens, temperature, useSparseAttention);
-            WritableMap result = new WritableNativeMap();
-            result.putString("text", resultText);
-            promise.resolve(result);
         } catch (Exception e) {
             promise.reject("GENERATE_ERROR", "Generation failed: " + e.getMessage());
+            return;
+        }
+        if (options != null && options.hasKey("jsonSchema") && !options.isNull("jsonSchema")) {
+            if (grammarText != null) {
+                promise.reject("GRAMMAR_ERROR", "Pass either grammar or jsonSchema, not both");
+                return;
+            }
+            try {
+                grammarText = JsonSchemaGrammar.fromSchema(readJsonSchema(options));
+            } catch (Exception e) {
+                promise.reject("GRAMMAR_ERROR", "Invalid JSON schema: " + e.getMessage());
+                return;
+            }
+        }
+        if (grammarText != null && (parallel || draftHandle != null)) {
+            promise.reject("GENERATE_ERROR", "Grammar constraints are not supported for "
+                    + (parallel ? "parallel" : "speculative") + " generation");
+            return;
+        }
+        if (sampling.hasChainOptions() && (parallel || draftHandle != null)) {
+            promise.reject("GENERATE_ERROR", (parallel ? "Parallel" : "Speculative")
+                    + " generation supports only temperature and seed");
+            return;
+        }
+        if (parallel && stream) {
+            promise.reject("GENERATE_ERROR", "Parallel generation does not support streaming");
+            return;
+        }
+        if (draftHandle != null) {
+            if (parallel) {
+                promise.reject("GENERATE_ERROR", "Parallel generation does not support a draft model");
+                return;
+            }
+            if (ModelRegistry.normalizeHandle(draftHandle).equals(ModelRegistry.normalizeHandle(handle))) {
+                promise.reject("GENERATE_ERROR", "draftHandle must name a different model");
+                return;
+            }
+            if (!mModels.contains(draftHandle)) {
+                promise.reject("NO_MODEL", "Draft model not loaded: " + draftHandle);
+                return;
+            }
+        }
+        final long requestToken = mRequestCounter.incrementAndGet();
+        if (stream && (requestId == null || requestId.isEmpty())) {
+            requestId = "stream-" + requestToken;
+        }
+        if (requestId != null && mPendingRequests.putIfAbsent(requestId,
+                new PendingRequest(handle, requestToken, promise)) != null) {
+            promise.reject("GENERATE_ERROR", "A request with id " + requestId + " is already running");
+            return;
+        }
+        if (parallel) {
+            submitBatched(handle, prompt, maxTokens, temperature, seed, requestToken, requestId, priority,
+                    promise, trace);
+            return;
+        }
+        final int tokens = maxTokens;
+        final SamplingParams params = sampling;
+        final boolean sparse = useSparseAttention;
+        final boolean streaming = stream;
+        final String id = requestId;
+        final int streamFlushTokens = flushTokens;
+        final int streamFlushIntervalMs = flushIntervalMs;
+        final String draft = draftHandle;
+        final String pinned = pinnedPrefix;
+        final int nDraft = draftTokens;
+        final String grammar = grammarText;
+
+        Runnable task = () -> {
+            try {
+                withModel(handle, promise, ctxPtr -> {
+                    try {
+                        if (pinned != null) {
+                            nativeSetPinnedPrefix(ctxPtr, pinned);
+                        }
+                        if (draft != null) {
+                            withModel(draft, promise, draftPtr -> {
+                                TokenStreamEmitter emitter = streaming
+                                        ? new TokenStreamEmitter(getReactApplicationContext(), id,
+                                                streamFlushTokens, streamFlushIntervalMs)
+                                        : null;
+                                long[] stats = new long[8];
+                                String[] finishReason = new String[1];
+                                String text = nativeGenerateSpeculative(ctxPtr, draftPtr, prompt, tokens, params,
+                                        nDraft, requestToken, emitter, stats, finishReason);
+                                WritableMap result;
+                                if (emitter != null) {
+                                    emitter.finish();
+                                    result = emitter.buildSummary(text);
+                                } else {
+                                    result = new WritableNativeMap();
+                                    result.putString("text", text);
+                                    if (id != null) {
+                                        result.putString("requestId", id);
+                                    }
+                                }
+                                if (id != null) {
+                                    result.putBoolean("cancelled", nativeIsAborted(ctxPtr, requestToken));
+                                }
+                                result.putString("finishReason", finishReason[0]);
+                                result.putMap("speculative", speculativeStats(stats));
+                                promise.resolve(RetrievalTrace.apply(trace, result));
+                            });
+                            return;
+                        }
+                        if (streaming) {
+                            TokenStreamEmitter emitter = new TokenStreamEmitter(
+                                    getReactApplicationContext(), id, streamFlushTokens, streamFlushIntervalMs);
+                            String[] finishReason = new String[1];
+                            String text = nativeGenerateStream(ctxPtr, prompt, tokens, params, sparse, requestToken,
+                                    emitter, grammar, finishReason);
+                            emitter.finish();
+                            WritableMap summary = emitter.buildSummary(text);
+                            summary.putBoolean("cancelled", nativeIsAborted(ctxPtr, requestToken));
+                            summary.putString("finishReason", finishReason[0]);
+                            promise.resolve(RetrievalTrace.apply(trace, summary));
+                            return;
+                        }
+                        String[] finishReason = new String[1];
+                        String resultText = nativeGenerate(ctxPtr, prompt, tokens, params, sparse, requestToken, grammar,
+                                finishReason);
+                        WritableMap result = new WritableNativeMap();
+                        result.putString("text", resultText);
+                        result.putString("finishReason", finishReason[0]);
+                        if (id != null) {
+                            result.putString("requestId", id);
+                            result.putBoolean("cancelled", nativeIsAborted(ctxPtr, requestToken));
+                        }
+                        promise.resolve(RetrievalTrace.apply(trace, result));
+                    } finally {
+                        finishRequest(ctxPtr, id, requestToken);
+                    }
+                });
+            } catch (IllegalArgumentException e) {
+                promise.reject("GRAMMAR_ERROR", "Invalid grammar: " + e.getMessage());
+            } catch (Exception e) {
+                promise.reject("GENERATE_ERROR", "Generation failed: " + e.getMessage());
+            } finally {
+                forgetPending(id, requestToken);
+            }
+        };
+        Runnable dropped = () -> {
+            forgetPending(id, requestToken);
+            promise.reject("GENERATE_ERROR", "Module invalidated");
+        };
+        if (!mExecutor.submit(priority, id, task, dropped)) {
+            forgetPending(id, requestToken);
+            rejectQueueFull(promise);
         }
     }
 
     /**
-     * Compute the embedding for the given text. Returns a float array. The
-     * values are returned as a WritableNativeArray for consumption in JS.
+     * Retrieval-augmented generation in one call. {@code query} is embedded
+     * with the model under {@code retrieval.embedHandle} (default: the
+     * generating model), the open {@link VectorIndexTurboModule} index
+     * {@code retrieval.index} is searched for the {@code retrieval.k}
+     * (default 4) nearest chunks scoring at least {@code retrieval.minScore},
+     * and their stored texts replace {context} in {@code retrieval.template}
+     * (the query replaces {query}), up to {@code retrieval.maxContextChars}
+     * characters. Generation then runs exactly as {@link #generate} with
+     * {@code options}. The query vector and chunks never cross the bridge.
+     * The result adds {@code sources} (id, score), {@code contextChars} and
+     * {@code timings} with embedMs, searchMs, assembleMs, generateMs and
+     * totalMs.
      */
     @ReactMethod
-    public void embed(String text, Promise promise) {
-        if (mCtxPtr == 0) {
+    public void ragGenerate(String query, ReadableMap retrieval, ReadableMap options, Promise promise) {
+        final long start = System.nanoTime();
+        if (retrieval == null || !retrieval.hasKey("index") || retrieval.isNull("index")) {
+            promise.reject("GENERATE_ERROR", "retrieval.index is required");
+            return;
+        }
+        final String text = query != null ? query : "";
+        String indexName;
+        String embedHandle;
+        int kValue = 4;
+        int efValue;
+        double minScoreValue = -1.0;
+        int maxChars = 4000;
+        String templateText = DEFAULT_RAG_TEMPLATE;
+        try {
+            indexName = retrieval.getString("index");
+            embedHandle = options != null ? readHandle(options) : null;
+            if (retrieval.hasKey("embedHandle") && !retrieval.isNull("embedHandle")) {
+                embedHandle = retrieval.getString("embedHandle");
+            }
+            if (retrieval.hasKey("k") && !retrieval.isNull("k")) {
+                kValue = Math.max(1, retrieval.getInt("k"));
+            }
+            efValue = retrieval.hasKey("ef") && !retrieval.isNull("ef")
+                    ? retrieval.getInt("ef") : Math.max(64, kValue);
+            if (retrieval.hasKey("minScore") && !retrieval.isNull("minScore")) {
+                minScoreValue = retrieval.getDouble("minScore");
+            }
+            if (retrieval.hasKey("maxContextChars") && !retrieval.isNull("maxContextChars")) {
+                maxChars = retrieval.getInt("maxContextChars");
+            }
+            if (retrieval.hasKey("template") && !retrieval.isNull("template")) {
+                templateText = retrieval.getString("template");
+            }
+        } catch (Exception e) {
+            promise.reject("GENERATE_ERROR", "Generation failed: " + e.getMessage());
+            return;
+        }
+        final String index = indexName;
+        final int k = kValue;
+        final int ef = efValue;
+        final double minScore = minScoreValue;
+        final int maxContextChars = maxChars;
+        final String template = templateText;
+        final VectorIndexTurboModule vectors =
+                getReactApplicationContext().getNativeModule(VectorIndexTurboModule.class);
+        if (vectors == null) {
+            promise.reject("NO_INDEX", "VectorIndexTurboModule is not available");
+            return;
+        }
+
+        embedTexts(embedHandle, new String[] {text}, new EmbeddingsCallback() {
+            @Override
+            public void onEmbeddings(float[] embedding, int dimension) {
+                final long embedded = System.nanoTime();
+                vectors.searchIndex(index, embedding, k, ef, new VectorIndexTurboModule.SearchCallback() {
+                    @Override
+                    public void onHits(List<HnswIndex.Hit> hits) {
+                        long searched = System.nanoTime();
+                        List<HnswIndex.Hit> used = new ArrayList<>();
+                        StringBuilder context = new StringBuilder();
+                        for (HnswIndex.Hit hit : hits) {
+                            if (hit.score < minScore || hit.text == null) {
+                                continue;
+                            }
+                            int separator = context.length() > 0 ? 2 : 0;
+                            if (context.length() + separator + hit.text.length() > maxContextChars) {
+                                continue;
+                            }
+                            if (separator > 0) {
+                                context.append("\n\n");
+                            }
+                            context.append(hit.text);
+                            used.add(hit);
+                        }
+                        String prompt = template.replace("{context}", context).replace("{query}", text);
+                        long assembled = System.nanoTime();
+                        RetrievalTrace trace = new RetrievalTrace(start, used, context.length(),
+                                (embedded - start) / 1_000_000.0,
+                                (searched - embedded) / 1_000_000.0,
+                                (assembled - searched) / 1_000_000.0);
+                        generate(prompt, options, promise, trace);
+                    }
+
+                    @Override
+                    public void onError(String code, String message) {
+                        promise.reject(code, message);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String code, String message) {
+                promise.reject(code, message);
+            }
+        });
+    }
+
+    /**
+     * Builds the per-request speculative decoding summary from the counters
+     * filled by nativeGenerateSpeculative.
+     */
+    private static WritableMap speculativeStats(long[] s) {
+        long drafted = s[0];
+        long accepted = s[1];
+        long verifications = s[2];
+        long generated = s[3];
+        long decodeUs = s[6];
+        long baselineUsPerToken = s[7];
+        WritableMap stats = new WritableNativeMap();
+        stats.putDouble("drafted", drafted);
+        stats.putDouble("accepted", accepted);
+        stats.putDouble("acceptanceRate", drafted > 0 ? (double) accepted / drafted : 0);
+        stats.putDouble("verifications", verifications);
+        stats.putDouble("tokensPerVerification", verifications > 0 ? (double) generated / verifications : 0);
+        stats.putDouble("draftMs", s[4] / 1000.0);
+        stats.putDouble("verifyMs", s[5] / 1000.0);
+        double tokensPerSecond = decodeUs > 0 ? generated * 1_000_000.0 / decodeUs : 0;
+        stats.putDouble("tokensPerSecond", tokensPerSecond);
+        if (baselineUsPerToken > 0 && tokensPerSecond > 0) {
+            double baseline = 1_000_000.0 / baselineUsPerToken;
+            stats.putDouble("baselineTokensPerSecond", baseline);
+            stats.putDouble("speedup", tokensPerSecond / baseline);
+        } else {
+            // No regular decode has run on this model yet to compare against.
+            stats.putNull("baselineTokensPerSecond");
+            stats.putNull("speedup");
+        }
+        return stats;
+    }
+
+    private void submitBatched(String handle, String prompt, int maxTokens, float temperature,
+                               int seed, long requestToken, String requestId, int priority,
+                               Promise promise, RetrievalTrace trace) {
+        ModelRegistry.Entry model = mModels.acquire(handle);
+        if (model == null) {
+            if (requestId != null) {
+                mPendingRequests.remove(requestId);
+            }
             promise.reject("NO_MODEL", "Model not loaded");
             return;
         }
+        mBatchedRequests.put(requestToken, new BatchedRequest(model, requestId, promise, trace));
+        nativeBatchSubmit(model.ctxPtr, prompt, maxTokens, temperature, seed, requestToken);
+        scheduleBatchDriver(model, priority);
+    }
+
+    /**
+     * Makes sure one driver task is queued for the model's batch. The driver
+     * holds its own reference on the model so the context outlives the last
+     * request it completes.
+     */
+    private void scheduleBatchDriver(ModelRegistry.Entry model, int priority) {
+        if (mBatchDrivers.putIfAbsent(model.ctxPtr, Boolean.TRUE) != null) {
+            return;
+        }
+        mModels.retain(model);
+        if (!mExecutor.submit(priority, () -> runBatchSlice(model, priority))) {
+            mBatchDrivers.remove(model.ctxPtr);
+            failBatched(model.ctxPtr, "QUEUE_FULL", "Inference queue is full ("
+                    + mExecutor.pendingCount() + " pending)");
+            mModels.release(model);
+        }
+    }
+
+    private void runBatchSlice(ModelRegistry.Entry model, int priority) {
+        long ctxPtr = model.ctxPtr;
         try {
-            float[] embedding = nativeEmbed(mCtxPtr, text);
-            WritableNativeArray result = convertToWritableArray(embedding);
-            promise.resolve(result);
+            for (int i = 0; i < BATCH_STEPS_PER_SLICE && nativeBatchOutstanding(ctxPtr) > 0; i++) {
+                for (long token : nativeBatchStep(ctxPtr)) {
+                    completeBatched(ctxPtr, token);
+                }
+            }
         } catch (Exception e) {
-            promise.reject("EMBED_ERROR", "Embedding failed: " + e.getMessage());
+            failBatched(ctxPtr, "GENERATE_ERROR", "Generation failed: " + e.getMessage());
         }
+        mBatchDrivers.remove(ctxPtr);
+        if (nativeBatchOutstanding(ctxPtr) > 0) {
+            scheduleBatchDriver(model, priority);
+        }
+        mModels.release(model);
     }
 
-    @ReactMethod
-    public void clearKVCache(Promise promise) {
-        if (mCtxPtr != 0) {
-            nativeClearKVCache(mCtxPtr);
+    private void completeBatched(long ctxPtr, long token) {
+        BatchedRequest request = mBatchedRequests.remove(token);
+        String[] finishReason = new String[1];
+        String text = nativeBatchTakeResult(ctxPtr, token, finishReason);
+        if (request == null) {
+            // Already rejected by failBatched.
+            nativeFinishRequest(ctxPtr, token);
+            return;
+        }
+        if ("error".equals(finishReason[0])) {
+            finishRequest(ctxPtr, request.requestId, token);
+            request.promise.reject("GENERATE_ERROR", "Generation failed: batch decode error");
+            mModels.release(request.model);
+            return;
+        }
+        WritableMap result = new WritableNativeMap();
+        result.putString("text", text);
+        result.putString("finishReason", finishReason[0]);
+        if (request.requestId != null) {
+            result.putString("requestId", request.requestId);
+            result.putBoolean("cancelled", nativeIsAborted(ctxPtr, token));
+        }
+        finishRequest(ctxPtr, request.requestId, token);
+        request.promise.resolve(RetrievalTrace.apply(request.trace, result));
+        mModels.release(request.model);
+    }
+
+    /**
+     * Forgets a request that has finished: drops it from
+     * {@link #mPendingRequests}, then clears its native abort mark. The order
+     * pairs with {@link #cancel}, which aborts first and checks the map
+     * second, so an abort racing the end of the request is always cleared.
+     */
+    private void finishRequest(long ctxPtr, String requestId, long token) {
+        forgetPending(requestId, token);
+        nativeFinishRequest(ctxPtr, token);
+    }
+
+    /** Removes {@code requestId} unless it now names a newer request. */
+    private void forgetPending(String requestId, long token) {
+        if (requestId == null) {
+            return;
+        }
+        PendingRequest pending = mPendingRequests.get(requestId);
+        if (pending != null && pending.token == token) {
+            mPendingRequests.remove(requestId, pending);
+        }
+    }
+
+    private void failBatched(long ctxPtr, String code, String message) {
+        for (Map.Entry<Long, BatchedRequest> entry : mBatchedRequests.entrySet()) {
+            BatchedRequest request = entry.getValue();
+            if (request.model.ctxPtr != ctxPtr || !mBatchedRequests.remove(entry.getKey(), request)) {
+                continue;
+            }
+            // The mark is cleared when the batch reports the sequence done.
+            nativeAbort(ctxPtr, entry.getKey());
+            forgetPending(request.requestId, entry.getKey());
+            request.promise.reject(code, message);
+            mModels.release(request.model);
         }
-        promise.resolve(null);
     }
 
+    /**
+     * Cancel the generation started with the given requestId. A request that
+     * is still queued is removed and resolves immediately with an empty,
+     * cancelled result. A running request is aborted cooperatively: the
+     * native decode loop stops within one token and the generate promise
+     * resolves with the text produced so far. Resolves true when a matching
+     * request was found.
+     */
     @ReactMethod
-    public void addMessageBoundary(Promise promise) {
-        if (mCtxPtr != 0) {
-            nativeAddMessageBoundary(mCtxPtr);
+    public void cancel(String requestId, Promise promise) {
+        PendingRequest pending = requestId != null ? mPendingRequests.get(requestId) : null;
+        if (pending == null) {
+            promise.resolve(false);
+            return;
         }
-        promise.resolve(null);
+        if (mExecutor.removeQueued(requestId) != null) {
+            mPendingRequests.remove(requestId);
+            WritableMap result = new WritableNativeMap();
+            result.putString("text", "");
+            result.putString("requestId", requestId);
+            result.putBoolean("cancelled", true);
+            pending.promise.resolve(result);
+        } else {
+            // Either decoding or about to start; the abort flag covers both.
+            ModelRegistry.Entry model = mModels.acquire(pending.handle);
+            if (model != null) {
+                try {
+                    nativeAbort(model.ctxPtr, pending.token);
+                    if (mPendingRequests.get(requestId) != pending) {
+                        // Finished meanwhile, so nothing will clear the mark.
+                        nativeFinishRequest(model.ctxPtr, pending.token);
+                    }
+                } finally {
+                    mModels.release(model);
+                }
+            }
+        }
+        promise.resolve(true);
     }
 
+    /**
+     * Count the tokens of each text with the vocabulary of the model under
+     * {@code options.handle}, so context budgets match what the model will
+     * actually see. {@code addBos} (default false) includes the BOS token a
+     * prompt starts with. Recent texts are answered from a per-model LRU
+     * cache, and the call never queues behind inference. Resolves with
+     * {@code counts}, their {@code total} and {@code cached}, the number of
+     * texts served from the cache.
+     */
     @ReactMethod
-    public void getKVCacheSize(Promise promise) {
-        int size = mCtxPtr != 0 ? nativeGetKVCacheSize(mCtxPtr) : 0;
-        int maxSize = mCtxPtr != 0 ? nativeGetKVCacheMaxSize(mCtxPtr) : 512;
-        WritableMap result = new WritableNativeMap();
-        result.putInt("size", size);
-        result.putInt("maxSize", maxSize);
-        promise.resolve(result);
+    public void countTokens(ReadableArray texts, ReadableMap options, Promise promise) {
+        withTokens(texts, options, promise, (tokens, cached) -> {
+            WritableArray counts = new WritableNativeArray();
+            long total = 0;
+            for (int[] ids : tokens) {
+                counts.pushInt(ids.length);
+                total += ids.length;
+            }
+            WritableMap result = new WritableNativeMap();
+            result.putArray("counts", counts);
+            result.putDouble("total", total);
+            result.putInt("cached", cached);
+            return result;
+        });
     }
 
+    /**
+     * Tokenize each text as {@link #countTokens} does. The ids of all texts
+     * are packed back to back as little-endian int32 in {@code data}
+     * (encoding "int32le-base64"); {@code counts} says how many belong to
+     * each text.
+     */
     @ReactMethod
-    public void getPerformanceMetrics(Promise promise) {
-        if (mCtxPtr == 0) {
+    public void tokenize(ReadableArray texts, ReadableMap options, Promise promise) {
+        withTokens(texts, options, promise, (tokens, cached) -> {
+            int total = 0;
+            for (int[] ids : tokens) {
+                total += ids.length;
+            }
+            ByteBuffer packed = ByteBuffer.allocate(total * 4).order(ByteOrder.LITTLE_ENDIAN);
+            WritableArray counts = new WritableNativeArray();
+            for (int[] ids : tokens) {
+                for (int id : ids) {
+                    packed.putInt(id);
+                }
+                counts.pushInt(ids.length);
+            }
+            WritableMap result = new WritableNativeMap();
+            result.putString("data", Base64.encodeToString(packed.array(), Base64.NO_WRAP));
+            result.putString("encoding", "int32le-base64");
+            result.putArray("counts", counts);
+            result.putInt("cached", cached);
+            return result;
+        });
+    }
+
+    private interface TokensResult {
+        WritableMap build(int[][] tokens, int cached);
+    }
+
+    /**
+     * Resolves the token ids of {@code texts} for {@link #countTokens} and
+     * {@link #tokenize}. Cache misses are tokenized in one native call on
+     * the calling thread: tokenizing only reads the vocabulary, so there is
+     * no need to wait for the inference executor.
+     */
+    private void withTokens(ReadableArray texts, ReadableMap options, Promise promise, TokensResult build) {
+        if (texts == null) {
+            promise.reject("TOKENIZE_ERROR", "texts must be an array of strings");
+            return;
+        }
+        final String handle = options != null ? readHandle(options) : null;
+        final boolean addBos = options != null && options.hasKey("addBos") && !options.isNull("addBos")
+                && options.getBoolean("addBos");
+        ModelRegistry.Entry model = mModels.acquire(handle);
+        if (model == null) {
             promise.reject("NO_MODEL", "Model not loaded");
             return;
         }
         try {
-            WritableMap metrics = nativeGetPerformanceMetrics(mCtxPtr);
-            promise.resolve(metrics);
+            String[] inputs = new String[texts.size()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = texts.isNull(i) ? "" : texts.getString(i);
+            }
+            TokenCache cache = mTokenCaches.computeIfAbsent(modelId(model),
+                    id -> new TokenCache(TOKEN_CACHE_TOKENS));
+            int[][] tokens = new int[inputs.length][];
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < inputs.length; i++) {
+                tokens[i] = cache.get(inputs[i], addBos);
+                if (tokens[i] == null) {
+                    missing.add(i);
+                }
+            }
+            if (!missing.isEmpty()) {
+                String[] batch = new String[missing.size()];
+                for (int j = 0; j < batch.length; j++) {
+                    batch[j] = inputs[missing.get(j)];
+                }
+                int[] counts = new int[batch.length];
+                int[] ids = nativeTokenizeBatch(model.ctxPtr, batch, addBos, counts);
+                int offset = 0;
+                for (int j = 0; j < batch.length; j++) {
+                    int[] textIds = Arrays.copyOfRange(ids, offset, offset + counts[j]);
+                    offset += counts[j];
+                    tokens[missing.get(j)] = textIds;
+                    cache.put(batch[j], addBos, textIds);
+                }
+            }
+            promise.resolve(build.build(tokens, inputs.length - missing.size()));
         } catch (Exception e) {
-            promise.reject("METRICS_ERROR", "Failed to get metrics: " + e.getMessage());
+            promise.reject("TOKENIZE_ERROR", "Tokenization failed: " + e.getMessage());
+        } finally {
+            mModels.release(model);
         }
     }
 
+    /**
+     * Compute the embedding for the given text. Returns a float array. The
+     * values are returned as a WritableNativeArray for consumption in JS.
+     * Embeddings are background work and yield to queued chat requests.
+     */
     @ReactMethod
-    public void adjustPerformanceMode(String mode, Promise promise) {
-        if (mCtxPtr != 0) {
-            nativeAdjustPerformanceMode(mCtxPtr, mode);
-        }
-        promise.resolve(null);
+    public void embed(String text, Promise promise) {
+        embedForModel(ModelRegistry.DEFAULT_HANDLE, text, promise);
     }
 
+    /**
+     * Same as {@link #embed} but runs against the model loaded under
+     * {@code handle}, e.g. a small embedding model kept next to the chat
+     * model. Texts already in the embedding cache resolve immediately
+     * without queueing behind inference.
+     */
     @ReactMethod
-    public void freeModel(Promise promise) {
-        if (mCtxPtr != 0) {
-            nativeFreeModel(mCtxPtr);
-            mCtxPtr = 0;
+    public void embedForModel(String handle, String text, Promise promise) {
+        ModelRegistry.Entry model = mModels.acquire(handle);
+        if (model == null) {
+            promise.reject("NO_MODEL", "Model not loaded");
+            return;
         }
-        promise.resolve(null);
-    }
-
-    private WritableNativeArray convertToWritableArray(float[] array) {
-        WritableNativeArray result = new WritableNativeArray();
-        for (float value : array) {
-            result.pushDouble(value);
+        final EmbeddingCache cache;
+        try {
+            cache = embeddingCache(model);
+            if (cache != null) {
+                float[] embedding = new float[cache.dimension()];
+                if (cache.get(text, embedding, 0)) {
+                    promise.resolve(convertToWritableArray(embedding));
+                    return;
+                }
+            }
+        } finally {
+            mModels.release(model);
         }
-        return result;
+        enqueue(InferenceExecutor.PRIORITY_BACKGROUND, promise, () -> {
+            try {
+                withModelEntry(handle, promise, current -> {
+                    float[] embedding = nativeEmbed(current.ctxPtr, text);
+                    if (cache != null && cacheMatches(cache, current, embedding.length)) {
+                        cache.put(text, embedding, 0);
+                    }
+                    promise.resolve(convertToWritableArray(embedding));
+                });
+            } catch (Exception e) {
+                promise.reject("EMBED_ERROR", "Embedding failed: " + e.getMessage());
+            }
+        });
     }
-}
 
+    /**
+     * Compute embeddings for many texts with a single native call. The texts
+     * are tokenized and evaluated together in llama batches under one lock
+     * acquisition. The promise resolves with {@code dimension}, {@code count}
+     * and one packed {@code embeddings} array of count x dimension values in
+     * input order, plus per-item {@code timings} (tokens, tokenizeMs, evalMs).
+     * With {@code format: "base64"} the native side fills a direct
+     * ByteBuffer in place and the vectors are returned as one base64 string
+     * of little-endian float32 values in {@code data}, which JS decodes
+     * straight into a Float32Array instead of receiving boxed doubles.
+     * {@code handle} selects the loaded model.
+     * Texts found in the embedding cache are not sent to the model; their
+     * timings are marked {@code cached} and {@code cacheHits} counts them.
+     * Pass {@code cache: false} to bypass the cache.
+     * {@code quantize: "int8"} returns count x dimension signed bytes in
+     * {@code data} (encoding "int8-base64") and one dequantization factor
+     * per vector in {@code scales}; {@code quantize: "binary"} returns the
+     * sign bits, ceil(dimension / 8) bytes per vector, bit i of a vector in
+     * byte i / 8 at position i % 8 (encoding "binary-base64").
+     */
+    @ReactMethod
+    public void embedBatch(ReadableArray texts, ReadableMap options, Promise promise) {
+        final long start = System.nanoTime();
+        final String handle = options != null ? readHandle(options) : null;
+        if (texts == null) {
+            promise.reject("EMBED_ERROR", "texts must be an array of strings");
+            return;
+        }
+        final String[] inputs = new String[texts.size()];
+        for (int i = 0; i < inputs.length; i++) {
+            String text = texts.isNull(i) ? null : texts.getString(i);
+            inputs[i] = text != null ? text : "";
+        }
+        int priority = options != null
+                ? readPriority(options, InferenceExecutor.PRIORITY_BACKGROUND)
+                : InferenceExecutor.PRIORITY_BACKGROUND;
+        final boolean packed = options != null && options.hasKey("format")
+                && !options.isNull("format") && "base64".equals(options.getString("format"));
+        boolean useCache = options == null || !options.hasKey("cache")
+                || options.isNull("cache") || options.getBoolean("cache");
+        final String quantize = options != null && options.hasKey("quantize") && !options.isNull("quantize")
+                ? options.getString("quantize") : VectorQuantizer.NONE;
+        if (!VectorQuantizer.isValid(quantize)) {
+            promise.reject("EMBED_ERROR", "Unknown quantize mode: " + quantize);
+            return;
+        }
+
+        ModelRegistry.Entry model = mModels.acquire(handle);
+        if (model == null) {
+            promise.reject("NO_MODEL", "Model not loaded");
+            return;
+        }
+        final EmbeddingCache cache;
+        final float[] vectors;
+        final boolean[] cached = new boolean[inputs.length];
+        try {
+            cache = useCache ? embeddingCache(model) : null;
+            int hits = 0;
+            if (cache != null) {
+                vectors = new float[inputs.length * cache.dimension()];
+                for (int i = 0; i < inputs.length; i++) {
+                    cached[i] = cache.get(inputs[i], vectors, i * cache.dimension());
+                    if (cached[i]) {
+                        hits++;
+                    }
+                }
+            } else {
+                vectors = null;
+            }
+            if (cache != null && hits == inputs.length) {
+                resolveEmbedBatch(vectors, cache.dimension(), cached, new long[inputs.length * 3],
+                        packed, quantize, start, promise);
+                return;
+            }
+        } finally {
+            mModels.release(model);
+        }
+
+        enqueue(priority, promise, () -> {
+            try {
+                withModelEntry(handle, promise, current ->
+                        embedBatchWith(current, inputs, cache, vectors, cached, packed, quantize, start,
+                                promise));
+            } catch (Exception e) {
+                promise.reject("EMBED_ERROR", "Batch embedding failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void embedBatchWith(ModelRegistry.Entry model, String[] inputs, EmbeddingCache cache,
+                                float[] vectors, boolean[] cached, boolean packed, String quantize,
+                                long start, Promise promise) {
+        int dimension = nativeGetEmbeddingSize(model.ctxPtr);
+        if (cache != null && !cacheMatches(cache, model, dimension)) {
+            // The handle was reloaded with another model since the lookup.
+            cache = null;
+            vectors = null;
+            cached = new boolean[inputs.length];
+        }
+        String[] missing = uncachedInputs(inputs, cached);
+        if (packed && VectorQuantizer.NONE.equals(quantize) && missing.length == inputs.length) {
+            // Nothing cached: keep the zero-copy path and fill the cache from
+            // the buffer afterwards.
+            long[] missStats = new long[inputs.length * 3];
+            ByteBuffer buffer = embeddingBuffer(inputs.length * dimension);
+            int written = inputs.length > 0
+                    ? nativeEmbedBatchInto(model.ctxPtr, inputs, buffer, missStats)
+                    : 0;
+            if (written < 0) {
+                throw new IllegalStateException("Embedding buffer rejected by native layer");
+            }
+            if (cache != null) {
+                buffer.asFloatBuffer().get(vectors, 0, written);
+                for (int i = 0; i < inputs.length; i++) {
+                    cache.put(inputs[i], vectors, i * dimension);
+                }
+            }
+            WritableMap result = new WritableNativeMap();
+            result.putString("data", encodeFloats(buffer, written));
+            result.putString("encoding", "float32le-base64");
+            finishEmbedBatch(result, dimension, cached, missStats, start, promise);
+            return;
+        }
+
+        long[] itemStats = new long[inputs.length * 3];
+        vectors = embedMissing(model.ctxPtr, inputs, missing, cache, vectors, cached, dimension, itemStats);
+        resolveEmbedBatch(vectors, dimension, cached, itemStats, packed, quantize, start, promise);
+    }
+
+    private static String[] uncachedInputs(String[] inputs, boolean[] cached) {
+        int missCount = 0;
+        for (boolean hit : cached) {
+            if (!hit) {
+                missCount++;
+            }
+        }
+        String[] missing = new String[missCount];
+        for (int i = 0, m = 0; i < inputs.length; i++) {
+            if (!cached[i]) {
+                missing[m++] = inputs[i];
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Embeds {@code missing}, the inputs not marked {@code cached}, in one
+     * native batch, scatters them into {@code vectors} (which already holds
+     * the cached rows, or is null without a cache) and stores them in the
+     * cache. Per-item stats land at the input positions of
+     * {@code itemStats}. Returns the complete row-major vectors.
+     */
+    private float[] embedMissing(long ctxPtr, String[] inputs, String[] missing, EmbeddingCache cache,
+                                 float[] vectors, boolean[] cached, int dimension, long[] itemStats) {
+        long[] missStats = new long[missing.length * 3];
+        float[] computed = missing.length > 0
+                ? nativeEmbedBatch(ctxPtr, missing, missStats)
+                : new float[0];
+        if (vectors == null) {
+            vectors = computed;
+        }
+        for (int i = 0, m = 0; i < inputs.length; i++) {
+            if (!cached[i]) {
+                if (cache != null) {
+                    System.arraycopy(computed, m * dimension, vectors, i * dimension, dimension);
+                    cache.put(inputs[i], computed, m * dimension);
+                }
+                System.arraycopy(missStats, m * 3, itemStats, i * 3, 3);
+                m++;
+            }
+        }
+        return vectors;
+    }
+
+    /** Receives embeddings computed on behalf of another native module. */
+    interface EmbeddingsCallback {
+        /** {@code vectors} holds one row of {@code dimension} values per text. */
+        void onEmbeddings(float[] vectors, int dimension);
+
+        void onError(String code, String message);
+    }
+
+    /**
+     * Embeds {@code texts} with the model under {@code handle} for other
+     * native modules, such as {@link VectorIndexTurboModule}, so vectors
+     * never cross the JS bridge. Uses the embedding cache like
+     * {@link #embedBatch} and runs at background priority. The callback is
+     * invoked on the inference thread, or on the caller's thread when every
+     * text was cached or the request could not be queued.
+     */
+    void embedTexts(String handle, String[] texts, EmbeddingsCallback callback) {
+        ModelRegistry.Entry model = mModels.acquire(handle);
+        if (model == null) {
+            callback.onError("NO_MODEL", "Model not loaded");
+            return;
+        }
+        final EmbeddingCache cache;
+        final float[] cachedVectors;
+        final boolean[] cached = new boolean[texts.length];
+        try {
+            cache = embeddingCache(model);
+            if (cache != null) {
+                cachedVectors = new float[texts.length * cache.dimension()];
+                int hits = 0;
+                for (int i = 0; i < texts.length; i++) {
+                    cached[i] = cache.get(texts[i], cachedVectors, i * cache.dimension());
+                    if (cached[i]) {
+                        hits++;
+                    }
+                }
+                if (hits == texts.length) {
+                    callback.onEmbeddings(cachedVectors, cache.dimension());
+                    return;
+                }
+            } else {
+                cachedVectors = null;
+            }
+        } finally {
+            mModels.release(model);
+        }
+        boolean queued = mExecutor.submit(InferenceExecutor.PRIORITY_BACKGROUND, null, () -> {
+            ModelRegistry.Entry current = mModels.acquire(handle);
+            if (current == null) {
+                callback.onError("NO_MODEL", "Model not loaded");
+                return;
+            }
+            float[] vectors;
+            int dimension;
+            try {
+                dimension = nativeGetEmbeddingSize(current.ctxPtr);
+                EmbeddingCache target = cache;
+                boolean[] hit = cached;
+                float[] rows = cachedVectors;
+                if (target != null && !cacheMatches(target, current, dimension)) {
+                    target = null;
+                    hit = new boolean[texts.length];
+                    rows = null;
+                }
+                vectors = embedMissing(current.ctxPtr, texts, uncachedInputs(texts, hit), target,
+                        rows, hit, dimension, new long[texts.length * 3]);
+            } catch (Exception e) {
+                callback.onError("EMBED_ERROR", "Embedding failed: " + e.getMessage());
+                return;
+            } finally {
+                mModels.release(current);
+            }
+            callback.onEmbeddings(vectors, dimension);
+        }, () -> callback.onError("EMBED_ERROR", "Module invalidated"));
+        if (!queued) {
+            callback.onError("QUEUE_FULL", "Inference queue is full ("
+                    + mExecutor.pendingCount() + " pending)");
+        }
+    }
+
+    private void resolveEmbedBatch(float[] vectors, int dimension, boolean[] cached, long[] itemStats,
+                                   boolean packed, String quantize, long start, Promise promise) {
+        WritableMap result = new WritableNativeMap();
+        if (VectorQuantizer.INT8.equals(quantize)) {
+            int count = cached.length;
+            byte[] codes = new byte[count * dimension];
+            WritableArray scales = new WritableNativeArray();
+            for (int i = 0; i < count; i++) {
+                scales.pushDouble(VectorQuantizer.quantizeInt8(vectors, i * dimension, dimension,
+                        codes, i * dimension));
+            }
+            result.putString("data", Base64.encodeToString(codes, Base64.NO_WRAP));
+            result.putString("encoding", "int8-base64");
+            result.putArray("scales", scales);
+        } else if (VectorQuantizer.BINARY.equals(quantize)) {
+            int count = cached.length;
+            int stride = (dimension + 7) / 8;
+            byte[] bits = new byte[count * stride];
+            for (int i = 0; i < count; i++) {
+                VectorQuantizer.packBits(vectors, i * dimension, dimension, bits, i * stride);
+            }
+            result.putString("data", Base64.encodeToString(bits, Base64.NO_WRAP));
+            result.putString("encoding", "binary-base64");
+        } else if (packed) {
+            ByteBuffer bytes = ByteBuffer.allocate(vectors.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.asFloatBuffer().put(vectors);
+            result.putString("data", encodeFloats(bytes, vectors.length));
+            result.putString("encoding", "float32le-base64");
+        } else {
+            result.putArray("embeddings", convertToWritableArray(vectors));
+        }
+        finishEmbedBatch(result, dimension, cached, itemStats, start, promise);
+    }
+
+    private static void finishEmbedBatch(WritableMap result, int dimension, boolean[] cached,
+                                         long[] itemStats, long start, Promise promise) {
+        WritableArray timings = new WritableNativeArray();
+        int hits = 0;
+        for (int i = 0; i < cached.length; i++) {
+            WritableMap timing = new WritableNativeMap();
+            timing.putInt("tokens", (int) itemStats[i * 3]);
+            timing.putDouble("tokenizeMs", itemStats[i * 3 + 1] / 1000.0);
+            timing.putDouble("evalMs", itemStats[i * 3 + 2] / 1000.0);
+            timing.putBoolean("cached", cached[i]);
+            timings.pushMap(timing);
+            if (cached[i]) {
+                hits++;
+            }
+        }
+
+        result.putInt("dimension", dimension);
+        result.putInt("count", cached.length);
+        result.putInt("cacheHits", hits);
+        result.putArray("timings", timings);
+        result.putDouble("totalMs", (System.nanoTime() - start) / 1_000_000.0);
+        promise.resolve(result);
+    }
+
+    /**
+     * Configure the embedding cache. {@code capacity} is the number of
+     * vectors kept per model (default 4096, 0 disables the cache),
+     * {@code precision} is "float16" (default) or "float32", and
+     * {@code persist} memory-maps each model's cache to a file under the app
+     * files directory so it survives restarts. Existing in-memory caches are
+     * dropped; persisted ones are reopened on next use if still compatible.
+     */
+    @ReactMethod
+    public void configureEmbeddingCache(ReadableMap options, Promise promise) {
+        synchronized (mEmbeddingCaches) {
+            if (options != null) {
+                if (options.hasKey("capacity") && !options.isNull("capacity")) {
+                    mEmbeddingCacheCapacity = Math.max(0, options.getInt("capacity"));
+                }
+                if (options.hasKey("precision") && !options.isNull("precision")) {
+                    String precision = options.getString("precision");
+                    if (!EmbeddingCache.PRECISION_FLOAT16.equals(precision)
+                            && !EmbeddingCache.PRECISION_FLOAT32.equals(precision)) {
+                        promise.reject("CACHE_ERROR", "Unknown precision: " + precision);
+                        return;
+                    }
+                    mEmbeddingCachePrecision = precision;
+                }
+                if (options.hasKey("persist") && !options.isNull("persist")) {
+                    mEmbeddingCachePersist = options.getBoolean("persist");
+                }
+            }
+            dropEmbeddingCaches(false);
+        }
+        promise.resolve(embeddingCacheMetrics());
+    }
+
+    /**
+     * Drop every cached embedding, including persisted ones: open caches
+     * are discarded and every file under the cache directory is deleted,
+     * also those of models not opened in this process.
+     */
+    @ReactMethod
+    public void clearEmbeddingCache(Promise promise) {
+        synchronized (mEmbeddingCaches) {
+            dropEmbeddingCaches(false);
+            File[] files = embeddingCacheDir().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        promise.resolve(null);
+    }
+
+    /**
+     * Measure the cost of handing an embedding of the given dimension to JS
+     * through the boxed {@link WritableNativeArray} path versus the packed
+     * direct-buffer path used by {@code embedBatch} with
+     * {@code format: "base64"}. Runs on synthetic data, so no model is
+     * required. Resolves with the mean microseconds per embedding for each
+     * path and the resulting speedup.
+     */
+    @ReactMethod
+    public void benchmarkEmbeddingTransfer(int dimension, int iterations, Promise promise) {
+        if (dimension <= 0 || iterations <= 0) {
+            promise.reject("BENCHMARK_ERROR", "dimension and iterations must be positive");
+            return;
+        }
+        enqueue(InferenceExecutor.PRIORITY_BACKGROUND, promise, () -> {
+            try {
+                float[] vector = new float[dimension];
+                for (int i = 0; i < dimension; i++) {
+                    vector[i] = (float) Math.sin(i);
+                }
+                // Warm up both paths so the JIT does not skew the first run.
+                convertToWritableArray(vector);
+                ByteBuffer buffer = embeddingBuffer(dimension);
+                buffer.asFloatBuffer().put(vector);
+                encodeFloats(buffer, dimension);
+
+                long boxedStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    convertToWritableArray(vector);
+                }
+                long boxedNs = System.nanoTime() - boxedStart;
+
+                long packedStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    ByteBuffer target = embeddingBuffer(dimension);
+                    target.asFloatBuffer().put(vector);
+                    encodeFloats(target, dimension);
+                }
+                long packedNs = System.nanoTime() - packedStart;
+
+                WritableMap result = new WritableNativeMap();
+                result.putInt("dimension", dimension);
+                result.putInt("iterations", iterations);
+                result.putDouble("boxedMicrosPerEmbedding", boxedNs / 1000.0 / iterations);
+                result.putDouble("packedMicrosPerEmbedding", packedNs / 1000.0 / iterations);
+                result.putDouble("speedup", packedNs > 0 ? (double) boxedNs / packedNs : 0);
+                promise.resolve(result);
+            } catch (Exception e) {
+                promise.reject("BENCHMARK_ERROR", "Benchmark failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Persist the current conversation (KV-cache state, token history and
+     * message boundaries) under the given id so it can be resumed after the
+     * model is freed or the process is killed. Older snapshots are evicted
+     * in LRU order once the session budget is exceeded.
+     */
+    @ReactMethod
+    public void saveSession(String conversationId, Promise promise) {
+        if (conversationId == null || conversationId.isEmpty()) {
+            promise.reject("SESSION_ERROR", "conversationId must be a non-empty string");
+            return;
+        }
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            try {
+                withModel(ModelRegistry.DEFAULT_HANDLE, promise, ctxPtr -> {
+                    long start = System.nanoTime();
+                    File file = mSessionStore.fileFor(conversationId);
+                    long bytes = nativeSaveSession(ctxPtr, file.getAbsolutePath());
+                    mSessionStore.touch(file);
+                    int evicted = mSessionStore.evict(file);
+                    WritableMap result = new WritableNativeMap();
+                    result.putString("conversationId", conversationId);
+                    result.putDouble("bytes", bytes);
+                    result.putInt("evicted", evicted);
+                    result.putDouble("durationMs", (System.nanoTime() - start) / 1_000_000.0);
+                    promise.resolve(result);
+                });
+            } catch (Exception e) {
+                promise.reject("SESSION_ERROR", "Failed to save session: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Restore a conversation saved with {@link #saveSession}. The snapshot is
+     * memory-mapped and loaded into the KV cache without re-evaluating the
+     * history. Resolves with {@code restored: false} when no compatible
+     * snapshot exists for the id (missing, or written by another model).
+     */
+    @ReactMethod
+    public void restoreSession(String conversationId, Promise promise) {
+        if (conversationId == null || conversationId.isEmpty()) {
+            promise.reject("SESSION_ERROR", "conversationId must be a non-empty string");
+            return;
+        }
+        enqueue(InferenceExecutor.PRIORITY_INTERACTIVE, promise, () -> {
+            try {
+                withModel(ModelRegistry.DEFAULT_HANDLE, promise, ctxPtr -> {
+                    long start = System.nanoTime();
+                    File file = mSessionStore.fileFor(conversationId);
+                    long tokens = file.exists() ? nativeRestoreSession(ctxPtr, file.getAbsolutePath()) : -1;
+                    if (tokens >= 0) {
+                        mSessionStore.touch(file);
+                    }
+                    WritableMap result = new WritableNativeMap();
+                    result.putString("conversationId", conversationId);
+                    result.putBoolean("restored", tokens >= 0);
+                    result.putDouble("tokens", Math.max(0, tokens));
+                    result.putDouble("durationMs", (System.nanoTime() - start) / 1_000_000.0);
+                    promise.resolve(result);
+                });
+            } catch (Exception e) {
+                promise.reject("SESSION_ERROR", "Failed to restore session: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Set the disk budget for saved sessions in bytes, evicting the least
+     * recently used snapshots immediately if the new budget is smaller.
+     */
+    @ReactMethod
+    public void setSessionBudget(double bytes, Promise promise) {
+        mSessionStore.setBudgetBytes((long) bytes);
+        promise.resolve(null);
+    }
+
+    /**
+     * Required by {@code NativeEventEmitter} for the streaming events. The
+     * events are emitted regardless of listener count, so this is a no-op.
+     */
+    @ReactMethod
+    public void addListener(String eventName) {
+        // Keep: required for RN built in Event Emitter Calls.
+    }
+
+    @ReactMethod
+    public void removeListeners(double count) {
+        // Keep: required for RN built in Event Emitter Calls.
+    }
+
+    @ReactMethod
+    public void clearKVCache(Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+            try {
+                if (model != null) {
+                    nativeClearKVCache(model.ctxPtr);
+                }
+            } finally {
+                mModels.release(model);
+            }
+            promise.resolve(null);
+        });
+    }
+
+    @ReactMethod
+    public void addMessageBoundary(Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+            try {
+                if (model != null) {
+                    nativeAddMessageBoundary(model.ctxPtr);
+                }
+            } finally {
+                mModels.release(model);
+            }
+            promise.resolve(null);
+        });
+    }
+
+    /**
+     * Report the KV cache in tokens ({@code size} cached, {@code maxSize}
+     * budget) and in memory: {@code bytes} held by the cached tokens,
+     * {@code allocatedBytes} reserved for the whole context,
+     * {@code bytesPerToken} and the element {@code type} of the K and V
+     * caches (e.g. "q8_0/f16").
+     */
+    @ReactMethod
+    public void getKVCacheSize(Promise promise) {
+        ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+        int size;
+        int maxSize;
+        long[] bytes = new long[3];
+        String type = null;
+        try {
+            size = model != null ? nativeGetKVCacheSize(model.ctxPtr) : 0;
+            maxSize = model != null ? nativeGetKVCacheMaxSize(model.ctxPtr) : 512;
+            if (model != null) {
+                nativeGetKVCacheBytes(model.ctxPtr, bytes);
+                type = nativeGetKVCacheType(model.ctxPtr);
+            }
+        } finally {
+            mModels.release(model);
+        }
+        WritableMap result = new WritableNativeMap();
+        result.putInt("size", size);
+        result.putInt("maxSize", maxSize);
+        result.putDouble("bytes", bytes[0]);
+        result.putDouble("allocatedBytes", bytes[1]);
+        result.putDouble("bytesPerToken", bytes[2]);
+        result.putString("type", type);
+        promise.resolve(result);
+    }
+
+    /**
+     * Report how much prompt evaluation the prefix cache saved. Each generate
+     * call counts as a lookup; a hit means some leading tokens were already
+     * resident in the KV cache and were not evaluated again. Like the other
+     * status getters this does not wait for the inference thread.
+     */
+    @ReactMethod
+    public void getPrefixCacheStats(Promise promise) {
+        ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+        long[] stats;
+        try {
+            stats = model != null ? nativeGetPrefixCacheStats(model.ctxPtr) : new long[4];
+        } finally {
+            mModels.release(model);
+        }
+        long lookups = stats[0];
+        long hits = stats[1];
+        WritableMap result = new WritableNativeMap();
+        result.putDouble("lookups", lookups);
+        result.putDouble("hits", hits);
+        result.putDouble("hitRate", lookups > 0 ? (double) hits / lookups : 0);
+        result.putDouble("tokensReused", stats[2]);
+        result.putDouble("tokensEvaluated", stats[3]);
+        promise.resolve(result);
+    }
+
+    /**
+     * Report inference metrics for the default model: prompt-eval and decode
+     * throughput, time-to-first-token, request and per-token latency
+     * percentiles, KV-cache trims, context lock waits and peak memory. Reads
+     * lock-free counters, so it never waits for a running decode.
+     */
+    @ReactMethod
+    public void getPerformanceMetrics(Promise promise) {
+        ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+        if (model == null) {
+            promise.reject("NO_MODEL", "Model not loaded");
+            return;
+        }
+        try {
+            long[] values = new long[InferenceMetricsReader.FIELD_COUNT];
+            if (nativeGetPerformanceMetrics(model.ctxPtr, values) != values.length) {
+                throw new IllegalStateException("Unexpected metrics layout");
+            }
+            WritableMap metrics = InferenceMetricsReader.toMap(values);
+            metrics.putMap("governor", governorMetrics());
+            metrics.putMap("embeddingCache", embeddingCacheMetrics());
+            metrics.putMap("tokenCache", tokenCacheMetrics());
+            metrics.putMap("cpu", cpuMetrics());
+            metrics.putMap("memoryTrim", mMemoryTrimmer.metrics());
+            promise.resolve(metrics);
+        } catch (Exception e) {
+            promise.reject("METRICS_ERROR", "Failed to get metrics: " + e.getMessage());
+        } finally {
+            mModels.release(model);
+        }
+    }
+
+    /**
+     * Zero the counters and histograms reported by
+     * {@link #getPerformanceMetrics}.
+     */
+    @ReactMethod
+    public void resetPerformanceMetrics(Promise promise) {
+        ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+        try {
+            if (model != null) {
+                nativeResetPerformanceMetrics(model.ctxPtr);
+            }
+        } finally {
+            mModels.release(model);
+        }
+        for (EmbeddingCache cache : mEmbeddingCaches.values()) {
+            cache.resetCounters();
+        }
+        for (TokenCache cache : mTokenCaches.values()) {
+            cache.resetCounters();
+        }
+        mMemoryTrimmer.resetCounters();
+        promise.resolve(null);
+    }
+
+    @ReactMethod
+    public void adjustPerformanceMode(String mode, Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+            try {
+                if (model != null) {
+                    nativeAdjustPerformanceMode(model.ctxPtr, mode);
+                }
+            } finally {
+                mModels.release(model);
+            }
+            promise.resolve(null);
+        });
+    }
+
+    /**
+     * Free every loaded model.
+     */
+    @ReactMethod
+    public void freeModel(Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            mModels.unloadAll();
+            promise.resolve(null);
+        });
+    }
+
+    /**
+     * Free the model loaded under {@code handle}. Resolves false if no model
+     * was loaded there.
+     */
+    @ReactMethod
+    public void unloadModel(String handle, Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise,
+                () -> promise.resolve(mModels.unload(handle)));
+    }
+
+    /**
+     * List the resident models, least recently used first, together with the
+     * memory budget used for LRU unloading.
+     */
+    @ReactMethod
+    public void listModels(Promise promise) {
+        WritableArray models = new WritableNativeArray();
+        for (ModelRegistry.Entry entry : mModels.snapshot()) {
+            WritableMap model = new WritableNativeMap();
+            model.putString("handle", entry.handle);
+            model.putString("path", entry.path);
+            model.putDouble("sizeBytes", entry.sizeBytes);
+            model.putDouble("loadedAt", entry.loadedAt);
+            model.putDouble("lastUsed", entry.lastUsed);
+            models.pushMap(model);
+        }
+        WritableMap result = new WritableNativeMap();
+        result.putArray("models", models);
+        result.putDouble("totalBytes", mModels.totalBytes());
+        result.putDouble("budgetBytes", mModels.getBudgetBytes());
+        promise.resolve(result);
+    }
+
+    /**
+     * Set the memory budget used when deciding which idle models to unload
+     * before loading another one.
+     */
+    @ReactMethod
+    public void setModelMemoryBudget(double bytes, Promise promise) {
+        mModels.setBudgetBytes((long) bytes);
+        promise.resolve(null);
+    }
+
+    /**
+     * Called by {@link MemoryTrimmer} on the main thread. Caches are dropped
+     * right away; the rest runs on the inference thread ahead of queued
+     * requests. Callbacks that arrive while a shed is queued only raise its
+     * stage.
+     */
+    private void onTrimMemory(int stage, int level) {
+        dropCaches(level);
+        synchronized (mTrimLock) {
+            boolean queued = mPendingTrimStage != MemoryTrimmer.STAGE_NONE;
+            mPendingTrimStage = Math.max(mPendingTrimStage, stage);
+            mPendingTrimLevel = Math.max(mPendingTrimLevel, level);
+            if (queued) {
+                return;
+            }
+            if (!mExecutor.submit(InferenceExecutor.PRIORITY_INTERACTIVE, this::shedMemory)) {
+                mPendingTrimStage = MemoryTrimmer.STAGE_NONE;
+                mPendingTrimLevel = 0;
+            }
+        }
+    }
+
+    /**
+     * Stage 1: drops the in-memory embedding and token caches. Persisted
+     * embedding caches are kept: their pages are file-backed, so the kernel
+     * can reclaim them without our help.
+     */
+    private void dropCaches(int level) {
+        int embeddingCaches;
+        synchronized (mEmbeddingCaches) {
+            embeddingCaches = dropEmbeddingCaches(true);
+        }
+        long tokenEntries = 0;
+        for (TokenCache cache : mTokenCaches.values()) {
+            tokenEntries += cache.size();
+            cache.clear();
+        }
+        WritableMap details = new WritableNativeMap();
+        details.putInt("embeddingCaches", embeddingCaches);
+        details.putDouble("tokenCacheEntries", tokenEntries);
+        mMemoryTrimmer.report(MemoryTrimmer.STAGE_DROP_CACHES, level, details);
+    }
+
+    /**
+     * Runs on the inference thread. The conversation is saved before it is
+     * compacted, and not compacted when the models are unloaded anyway.
+     */
+    private void shedMemory() {
+        int stage;
+        int level;
+        synchronized (mTrimLock) {
+            stage = mPendingTrimStage;
+            level = mPendingTrimLevel;
+            mPendingTrimStage = MemoryTrimmer.STAGE_NONE;
+            mPendingTrimLevel = 0;
+        }
+        mEmbeddingBuffer = null;
+        if (stage >= MemoryTrimmer.STAGE_SNAPSHOT) {
+            snapshotForTrim(level);
+        }
+        if (stage >= MemoryTrimmer.STAGE_COMPACT_KV && stage < MemoryTrimmer.STAGE_UNLOAD) {
+            ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+            if (model != null) {
+                try {
+                    int discarded = nativeCompactKVCache(model.ctxPtr);
+                    WritableMap details = new WritableNativeMap();
+                    details.putString("handle", model.handle);
+                    details.putInt("tokensDiscarded", discarded);
+                    details.putInt("kvCacheSize", nativeGetKVCacheSize(model.ctxPtr));
+                    mMemoryTrimmer.report(MemoryTrimmer.STAGE_COMPACT_KV, level, details);
+                } finally {
+                    mModels.release(model);
+                }
+            }
+        }
+        if (stage >= MemoryTrimmer.STAGE_UNLOAD) {
+            WritableArray unloaded = new WritableNativeArray();
+            double freedBytes = 0;
+            for (ModelRegistry.Entry entry : mModels.snapshot()) {
+                unloaded.pushString(entry.handle);
+                freedBytes += entry.sizeBytes;
+            }
+            for (BatchedRequest request : mBatchedRequests.values()) {
+                failBatched(request.model.ctxPtr, "GENERATE_ERROR", "Model unloaded under memory pressure");
+            }
+            mModels.unloadAll();
+            WritableMap details = new WritableNativeMap();
+            details.putArray("unloaded", unloaded);
+            details.putDouble("freedBytes", freedBytes);
+            mMemoryTrimmer.report(MemoryTrimmer.STAGE_UNLOAD, level, details);
+        }
+    }
+
+    /**
+     * Stage 3: saves the default model's conversation under
+     * {@link #TRIM_SESSION_ID} so it can be restored with
+     * {@link #restoreSession} after the model is reloaded.
+     */
+    private void snapshotForTrim(int level) {
+        ModelRegistry.Entry model = mModels.acquire(ModelRegistry.DEFAULT_HANDLE);
+        if (model == null) {
+            return;
+        }
+        WritableMap details = new WritableNativeMap();
+        try {
+            if (nativeGetKVCacheSize(model.ctxPtr) == 0) {
+                return;
+            }
+            details.putString("conversationId", TRIM_SESSION_ID);
+            File file = mSessionStore.fileFor(TRIM_SESSION_ID);
+            long bytes = nativeSaveSession(model.ctxPtr, file.getAbsolutePath());
+            mSessionStore.touch(file);
+            mSessionStore.evict(file);
+            details.putDouble("bytes", bytes);
+        } catch (Exception e) {
+            details.putString("error", e.getMessage());
+        } finally {
+            mModels.release(model);
+        }
+        mMemoryTrimmer.report(MemoryTrimmer.STAGE_SNAPSHOT, level, details);
+    }
+
+    /**
+     * Pins the inference thread to the cores of {@code policy}. Runs on the
+     * inference thread; a failure leaves the previous pinning in place and
+     * is reported in the metrics rather than failing the load.
+     */
+    private void pinInferenceThread(String policy) {
+        int[] cpus = mCpuTopology.cpusFor(policy);
+        if (cpus.length == 0) {
+            // No online core matched, e.g. sysfs is not readable.
+            mAffinityError = "No cores found for " + policy;
+            return;
+        }
+        int error = nativeSetThreadAffinity(cpus);
+        if (error != 0) {
+            mAffinityError = "sched_setaffinity failed with errno " + error;
+            return;
+        }
+        mAffinityPolicy = policy;
+        mPinnedCpus = cpus;
+        mAffinityError = null;
+    }
+
+    private WritableMap cpuMetrics() {
+        WritableMap cpu = new WritableNativeMap();
+        cpu.putString("affinity", mAffinityPolicy);
+        WritableArray pinned = new WritableNativeArray();
+        for (int id : mPinnedCpus) {
+            pinned.pushInt(id);
+        }
+        cpu.putArray("pinnedCpus", pinned);
+        cpu.putBoolean("pinned", mPinnedCpus.length > 0);
+        cpu.putString("affinityError", mAffinityError);
+        cpu.putInt("clusters", mCpuTopology.clusterCount());
+        WritableArray cores = new WritableNativeArray();
+        for (CpuTopology.Core core : mCpuTopology.cores()) {
+            WritableMap entry = new WritableNativeMap();
+            entry.putInt("cpu", core.id);
+            entry.putInt("cluster", core.cluster);
+            entry.putBoolean("online", core.online);
+            entry.putInt("capacity", core.capacity);
+            entry.putDouble("maxFreqKHz", core.maxFreqKHz);
+            entry.putDouble("curFreqKHz", mCpuTopology.currentFreqKHz(core));
+            cores.pushMap(entry);
+        }
+        cpu.putArray("cores", cores);
+        return cpu;
+    }
+
+    /**
+     * Forget the thread counts remembered by {@code calibrateThreads}, so
+     * the next calibrated load measures again. Resolves with the number of
+     * stored results removed.
+     */
+    @ReactMethod
+    public void clearThreadCalibration(Promise promise) {
+        promise.resolve(mThreadCalibration.clear());
+    }
+
+    /**
+     * Turn the automatic performance governor on or off. While it is off the
+     * settings last applied stay in place and {@link #adjustPerformanceMode}
+     * is the only thing that changes them. Enabling it applies the policy
+     * for the current battery and thermal state immediately.
+     */
+    @ReactMethod
+    public void setGovernorEnabled(boolean enabled, Promise promise) {
+        if (enabled) {
+            mGovernor.start();
+        } else {
+            mGovernor.stop();
+        }
+        promise.resolve(mGovernor.isEnabled());
+    }
+
+    /** Runs on the inference thread. */
+    private void applyPolicy(InferenceGovernor.Policy policy) {
+        for (ModelRegistry.Entry entry : mModels.snapshot()) {
+            applyPolicy(policy, entry);
+        }
+    }
+
+    private void applyPolicy(InferenceGovernor.Policy policy, ModelRegistry.Entry entry) {
+        ModelRegistry.Entry model = mModels.acquireIfCurrent(entry);
+        if (model == null) {
+            return;
+        }
+        try {
+            nativeApplyRuntimePolicy(model.ctxPtr, policy.threadsFor(model.threads),
+                    policy.threadsFor(model.prefillThreads), policy.batchTokens, policy.cacheTokens);
+        } finally {
+            mModels.release(model);
+        }
+    }
+
+    private WritableMap governorMetrics() {
+        WritableMap governor = new WritableNativeMap();
+        governor.putBoolean("enabled", mGovernor.isEnabled());
+        InferenceGovernor.Policy current = mGovernor.current();
+        governor.putString("level", current != null ? current.level : null);
+        governor.putString("reason", current != null ? current.reason : null);
+        governor.putDouble("decisions", mGovernor.decisionCount());
+        governor.putDouble("msSinceLastDecision", mGovernor.msSinceLastDecision());
+        governor.putDouble("batteryPct", mGovernor.batteryPct());
+        governor.putBoolean("charging", mGovernor.isCharging());
+        governor.putBoolean("powerSave", mGovernor.isPowerSave());
+        governor.putInt("thermalStatus", mGovernor.thermalStatus());
+        WritableArray history = new WritableNativeArray();
+        for (InferenceGovernor.Policy policy : mGovernor.history()) {
+            WritableMap decision = new WritableNativeMap();
+            decision.putString("level", policy.level);
+            decision.putString("reason", policy.reason);
+            decision.putDouble("threadScale", policy.threadScale);
+            decision.putInt("batchTokens", policy.batchTokens);
+            decision.putInt("cacheTokens", policy.cacheTokens);
+            decision.putDouble("decidedAt", policy.decidedAt);
+            history.pushMap(decision);
+        }
+        governor.putArray("history", history);
+        return governor;
+    }
+
+    /**
+     * Queues work on the inference thread, rejecting the promise when the
+     * queue is full rather than letting requests pile up behind a decode,
+     * and when the module is invalidated before the work runs.
+     */
+    private void enqueue(int priority, Promise promise, Runnable task) {
+        if (!mExecutor.submit(priority, null, task,
+                () -> promise.reject("INVALIDATED", "Module invalidated"))) {
+            rejectQueueFull(promise);
+        }
+    }
+
+    /** Native work that runs against an acquired model context. */
+    private interface ModelTask {
+        void run(long ctxPtr) throws Exception;
+    }
+
+    /** Like {@link ModelTask} for work that also needs the registry entry. */
+    private interface ModelEntryTask {
+        void run(ModelRegistry.Entry model) throws Exception;
+    }
+
+    /**
+     * Runs {@code task} with the model under {@code handle} acquired, so it
+     * cannot be unloaded underneath the call. Rejects with NO_MODEL if the
+     * handle is not loaded by the time the task runs.
+     */
+    private void withModel(String handle, Promise promise, ModelTask task) throws Exception {
+        withModelEntry(handle, promise, model -> task.run(model.ctxPtr));
+    }
+
+    private void withModelEntry(String handle, Promise promise, ModelEntryTask task) throws Exception {
+        ModelRegistry.Entry model = mModels.acquire(handle);
+        if (model == null) {
+            promise.reject("NO_MODEL", "Model not loaded");
+            return;
+        }
+        try {
+            task.run(model);
+        } finally {
+            mModels.release(model);
+        }
+    }
+
+    private void rejectQueueFull(Promise promise) {
+        promise.reject("QUEUE_FULL", "Inference queue is full ("
+                + mExecutor.pendingCount() + " pending)");
+    }
+
+    private static JSONObject readJsonSchema(ReadableMap options) throws JSONException {
+        if (options.getType("jsonSchema") == ReadableType.String) {
+            return new JSONObject(options.getString("jsonSchema"));
+        }
+        return new JSONObject(options.getMap("jsonSchema").toHashMap());
+    }
+
+    private static String readHandle(ReadableMap options) {
+        if (options.hasKey("handle") && !options.isNull("handle")) {
+            return options.getString("handle");
+        }
+        return null;
+    }
+
+    /**
+     * Half of the device RAM: leaves room for the app and the rest of the
+     * system while still fitting a chat model plus a small embedding model.
+     */
+    private static long defaultModelBudget(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return Long.MAX_VALUE;
+        }
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(info);
+        return info.totalMem > 0 ? info.totalMem / 2 : Long.MAX_VALUE;
+    }
+
+    private static int readPriority(ReadableMap options, int fallback) {
+        if (options.hasKey("priority") && !options.isNull("priority")) {
+            return InferenceExecutor.parsePriority(options.getString("priority"), fallback);
+        }
+        return fallback;
+    }
+
+    /**
+     * Identifies the weights behind an entry for the embedding and token
+     * caches: the same file at the same size yields the same vectors and
+     * token ids under any handle.
+     */
+    private static String modelId(ModelRegistry.Entry model) {
+        return model.path + ":" + model.sizeBytes;
+    }
+
+    private static boolean cacheMatches(EmbeddingCache cache, ModelRegistry.Entry model, int dimension) {
+        return cache.dimension() == dimension && cache.modelId().equals(modelId(model));
+    }
+
+    /**
+     * Returns the embedding cache for {@code model}, creating it on first
+     * use, or null when caching is disabled. If the persistent file cannot
+     * be mapped the model simply runs uncached.
+     */
+    private EmbeddingCache embeddingCache(ModelRegistry.Entry model) {
+        String modelId = modelId(model);
+        EmbeddingCache cache = mEmbeddingCaches.get(modelId);
+        if (cache != null) {
+            return cache;
+        }
+        synchronized (mEmbeddingCaches) {
+            if (mEmbeddingCacheCapacity <= 0) {
+                return null;
+            }
+            cache = mEmbeddingCaches.get(modelId);
+            if (cache == null) {
+                int dimension = nativeGetEmbeddingSize(model.ctxPtr);
+                if (dimension <= 0) {
+                    return null;
+                }
+                File file = mEmbeddingCachePersist
+                        ? new File(embeddingCacheDir(), Integer.toHexString(modelId.hashCode()) + ".bin")
+                        : null;
+                try {
+                    cache = new EmbeddingCache(modelId, dimension, mEmbeddingCacheCapacity,
+                            mEmbeddingCachePrecision, file);
+                } catch (IOException | IllegalArgumentException e) {
+                    return null;
+                }
+                mEmbeddingCaches.put(modelId, cache);
+            }
+        }
+        return cache;
+    }
+
+    private File embeddingCacheDir() {
+        return new File(getReactApplicationContext().getFilesDir(), "embedding_cache");
+    }
+
+    /**
+     * Removes embedding caches from the map, all of them or only the
+     * in-memory ones, and returns how many were removed. Each is invalidated
+     * first because an embed on the inference thread may still hold it and
+     * must not write into a file that the next instance maps. Callers hold
+     * the map lock.
+     */
+    private int dropEmbeddingCaches(boolean keepPersisted) {
+        int dropped = 0;
+        Iterator<EmbeddingCache> it = mEmbeddingCaches.values().iterator();
+        while (it.hasNext()) {
+            EmbeddingCache cache = it.next();
+            if (keepPersisted && cache.isPersistent()) {
+                continue;
+            }
+            cache.invalidate();
+            it.remove();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    private WritableMap embeddingCacheMetrics() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long entries = 0;
+        long bytes = 0;
+        for (EmbeddingCache cache : mEmbeddingCaches.values()) {
+            hits += cache.hits();
+            misses += cache.misses();
+            evictions += cache.evictions();
+            entries += cache.size();
+            bytes += cache.arenaBytes();
+        }
+        WritableMap metrics = new WritableNativeMap();
+        metrics.putBoolean("enabled", mEmbeddingCacheCapacity > 0);
+        metrics.putString("precision", mEmbeddingCachePrecision);
+        metrics.putBoolean("persistent", mEmbeddingCachePersist);
+        metrics.putInt("capacityPerModel", mEmbeddingCacheCapacity);
+        metrics.putInt("models", mEmbeddingCaches.size());
+        metrics.putDouble("entries", entries);
+        metrics.putDouble("arenaBytes", bytes);
+        metrics.putDouble("hits", hits);
+        metrics.putDouble("misses", misses);
+        metrics.putDouble("evictions", evictions);
+        metrics.putDouble("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+        return metrics;
+    }
+
+    private WritableMap tokenCacheMetrics() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long entries = 0;
+        long tokens = 0;
+        for (TokenCache cache : mTokenCaches.values()) {
+            hits += cache.hits();
+            misses += cache.misses();
+            evictions += cache.evictions();
+            entries += cache.size();
+            tokens += cache.tokenCount();
+        }
+        WritableMap metrics = new WritableNativeMap();
+        metrics.putInt("models", mTokenCaches.size());
+        metrics.putInt("maxTokensPerModel", TOKEN_CACHE_TOKENS);
+        metrics.putDouble("entries", entries);
+        metrics.putDouble("tokens", tokens);
+        metrics.putDouble("hits", hits);
+        metrics.putDouble("misses", misses);
+        metrics.putDouble("evictions", evictions);
+        metrics.putDouble("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+        return metrics;
+    }
+
+    /**
+     * Returns the shared direct buffer, grown to hold at least
+     * {@code floats} values and rewound for writing. Its contents are sent
+     * as float32le, which is also the layout the native layer writes on
+     * every Android ABI.
+     */
+    private ByteBuffer embeddingBuffer(int floats) {
+        int bytes = floats * 4;
+        if (mEmbeddingBuffer == null || mEmbeddingBuffer.capacity() < bytes) {
+            mEmbeddingBuffer = ByteBuffer.allocateDirect(Math.max(bytes, 4096))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mEmbeddingBuffer.clear();
+        return mEmbeddingBuffer;
+    }
+
+    private static String encodeFloats(ByteBuffer buffer, int floats) {
+        byte[] bytes = new byte[floats * 4];
+        buffer.position(0);
+        buffer.get(bytes, 0, bytes.length);
+        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    }
+
+    private WritableNativeArray convertToWritableArray(float[] array) {
+        WritableNativeArray result = new WritableNativeArray();
+        for (float value : array) {
+            result.pushDouble(value);
+        }
+        return result;
+    }
+
+    private static final class BatchedRequest {
+        final ModelRegistry.Entry model;
+        final String requestId;
+        final Promise promise;
+        final RetrievalTrace trace;
+
+        BatchedRequest(ModelRegistry.Entry model, String requestId, Promise promise,
+                       RetrievalTrace trace) {
+            this.model = model;
+            this.requestId = requestId;
+            this.promise = promise;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * Retrieval stages of a {@link #ragGenerate} call, folded into the
+     * generation result once it resolves.
+     */
+    private static final class RetrievalTrace {
+        final long startNs;
+        final List<HnswIndex.Hit> sources;
+        final int contextChars;
+        final double embedMs;
+        final double searchMs;
+        final double assembleMs;
+        final long generateStartNs = System.nanoTime();
+
+        RetrievalTrace(long startNs, List<HnswIndex.Hit> sources, int contextChars,
+                       double embedMs, double searchMs, double assembleMs) {
+            this.startNs = startNs;
+            this.sources = sources;
+            this.contextChars = contextChars;
+            this.embedMs = embedMs;
+            this.searchMs = searchMs;
+            this.assembleMs = assembleMs;
+        }
+
+        static WritableMap apply(RetrievalTrace trace, WritableMap result) {
+            if (trace == null) {
+                return result;
+            }
+            long now = System.nanoTime();
+            WritableArray sources = new WritableNativeArray();
+            for (HnswIndex.Hit hit : trace.sources) {
+                WritableMap source = new WritableNativeMap();
+                source.putString("id", hit.id);
+                source.putDouble("score", hit.score);
+                sources.pushMap(source);
+            }
+            result.putArray("sources", sources);
+            result.putInt("contextChars", trace.contextChars);
+            WritableMap timings = new WritableNativeMap();
+            timings.putDouble("embedMs", trace.embedMs);
+            timings.putDouble("searchMs", trace.searchMs);
+            timings.putDouble("assembleMs", trace.assembleMs);
+            timings.putDouble("generateMs", (now - trace.generateStartNs) / 1_000_000.0);
+            timings.putDouble("totalMs", (now - trace.startNs) / 1_000_000.0);
+            result.putMap("timings", timings);
+            return result;
+        }
+    }
+
+    private static final class PendingRequest {
+        final String handle;
+        final long token;
+        final Promise promise;
+
+        PendingRequest(String handle, long token, Promise promise) {
+            this.handle = handle;
+            this.token = token;
+            this.promise = promise;
+        }
+    }
+}
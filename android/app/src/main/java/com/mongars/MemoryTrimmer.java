@@ -0,0 +1,168 @@
+package com.mongars;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+/**
+ * MemoryTrimmer turns {@link ComponentCallbacks2#onTrimMemory} levels into
+ * shedding stages for {@link LlamaTurboModule}, so the process gives back
+ * inference memory before the system kills it. Stages are cumulative: a
+ * higher stage also runs every lower one.
+ * <ol>
+ *   <li>{@link #STAGE_DROP_CACHES}: in-memory embedding caches and token caches
+ *       (RUNNING_MODERATE, BACKGROUND).</li>
+ *   <li>{@link #STAGE_COMPACT_KV}: the conversation before the last message
+ *       boundary (RUNNING_LOW).</li>
+ *   <li>{@link #STAGE_SNAPSHOT}: the conversation is saved to disk
+ *       (RUNNING_CRITICAL, MODERATE).</li>
+ *   <li>{@link #STAGE_UNLOAD}: every model is freed (COMPLETE and
+ *       {@code onLowMemory}).</li>
+ * </ol>
+ * Every stage that runs is counted and reported to JavaScript as a
+ * {@code llamaMemoryTrim} event. Callbacks arrive on the main thread.
+ */
+final class MemoryTrimmer implements ComponentCallbacks2 {
+    static final String EVENT_MEMORY_TRIM = "llamaMemoryTrim";
+
+    static final int STAGE_NONE = 0;
+    static final int STAGE_DROP_CACHES = 1;
+    static final int STAGE_COMPACT_KV = 2;
+    static final int STAGE_SNAPSHOT = 3;
+    static final int STAGE_UNLOAD = 4;
+
+    private static final String[] STAGE_NAMES = {
+        null, "dropCaches", "compactKVCache", "snapshotSession", "unloadModel"
+    };
+
+    interface Listener {
+        /** Sheds memory up to and including {@code stage}. */
+        void onTrim(int stage, int level);
+    }
+
+    private final ReactApplicationContext reactContext;
+    private final Listener listener;
+    private final long[] stageCounts = new long[STAGE_NAMES.length];
+    private long callbacks;
+    private int lastLevel = -1;
+    private long lastTrimAt = -1;
+    private boolean registered;
+
+    MemoryTrimmer(ReactApplicationContext reactContext, Listener listener) {
+        this.reactContext = reactContext;
+        this.listener = listener;
+    }
+
+    synchronized void register() {
+        if (!registered) {
+            reactContext.getApplicationContext().registerComponentCallbacks(this);
+            registered = true;
+        }
+    }
+
+    synchronized void unregister() {
+        if (registered) {
+            reactContext.getApplicationContext().unregisterComponentCallbacks(this);
+            registered = false;
+        }
+    }
+
+    /** Shedding stage for a trim level; UI_HIDDEN alone sheds nothing. */
+    @SuppressWarnings("deprecation")
+    static int stageFor(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            return STAGE_UNLOAD;
+        }
+        if (level >= TRIM_MEMORY_MODERATE) {
+            return STAGE_SNAPSHOT;
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            return STAGE_DROP_CACHES;
+        }
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            return STAGE_NONE;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return STAGE_SNAPSHOT;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return STAGE_COMPACT_KV;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return STAGE_DROP_CACHES;
+        }
+        return STAGE_NONE;
+    }
+
+    static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int stage = stageFor(level);
+        synchronized (this) {
+            callbacks++;
+            lastLevel = level;
+            lastTrimAt = SystemClock.elapsedRealtime();
+        }
+        if (stage != STAGE_NONE) {
+            listener.onTrim(stage, level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        // Not relevant to memory pressure.
+    }
+
+    /**
+     * Counts a stage that ran and emits its event. {@code details} carries
+     * the stage-specific fields; stage and level are added here.
+     */
+    void report(int stage, int level, WritableMap details) {
+        synchronized (this) {
+            stageCounts[stage]++;
+        }
+        details.putString("stage", STAGE_NAMES[stage]);
+        details.putInt("level", level);
+        if (reactContext.hasActiveReactInstance()) {
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(EVENT_MEMORY_TRIM, details);
+        }
+    }
+
+    synchronized WritableMap metrics() {
+        WritableMap metrics = new WritableNativeMap();
+        metrics.putDouble("callbacks", callbacks);
+        metrics.putInt("lastLevel", lastLevel);
+        metrics.putDouble("msSinceLastTrim",
+                lastTrimAt >= 0 ? SystemClock.elapsedRealtime() - lastTrimAt : -1);
+        WritableMap stages = new WritableNativeMap();
+        for (int stage = STAGE_DROP_CACHES; stage <= STAGE_UNLOAD; stage++) {
+            stages.putDouble(STAGE_NAMES[stage], stageCounts[stage]);
+        }
+        metrics.putMap("stages", stages);
+        return metrics;
+    }
+
+    synchronized void resetCounters() {
+        callbacks = 0;
+        lastLevel = -1;
+        lastTrimAt = -1;
+        for (int i = 0; i < stageCounts.length; i++) {
+            stageCounts[i] = 0;
+        }
+    }
+}
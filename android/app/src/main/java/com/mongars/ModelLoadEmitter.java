@@ -0,0 +1,58 @@
+package com.mongars;
+
+import android.os.SystemClock;
+import androidx.annotation.Keep;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+/**
+ * ModelLoadEmitter receives loading progress from the JNI layer while a model
+ * is being loaded and forwards it to JavaScript as {@code llamaLoadProgress}
+ * events. During the "weights" phase llama.cpp reports progress per tensor,
+ * so updates are throttled to one event per interval unless a phase
+ * completes. Each event carries the phase, its progress, the bytes of the
+ * model file mapped or read so far and the number of layers initialized.
+ */
+final class ModelLoadEmitter {
+    static final String EVENT_LOAD_PROGRESS = "llamaLoadProgress";
+
+    private static final long MIN_INTERVAL_MS = 100;
+
+    private final ReactApplicationContext reactContext;
+    private final String handle;
+    private final long totalBytes;
+    private long lastEmitTime = -1;
+
+    ModelLoadEmitter(ReactApplicationContext reactContext, String handle, long totalBytes) {
+        this.reactContext = reactContext;
+        this.handle = handle;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Called from native code on the loading thread.
+     */
+    @Keep
+    void onProgress(String phase, float progress, int layers) {
+        long now = SystemClock.elapsedRealtime();
+        if (progress < 1.0f && lastEmitTime >= 0 && now - lastEmitTime < MIN_INTERVAL_MS) {
+            return;
+        }
+        lastEmitTime = now;
+        boolean weights = "weights".equals(phase);
+        WritableMap event = new WritableNativeMap();
+        event.putString("handle", handle);
+        event.putString("phase", phase);
+        event.putDouble("progress", progress);
+        event.putDouble("bytesLoaded", weights ? (double) totalBytes * progress : totalBytes);
+        event.putDouble("totalBytes", totalBytes);
+        event.putInt("layers", layers);
+        if (reactContext.hasActiveReactInstance()) {
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(EVENT_LOAD_PROGRESS, event);
+        }
+    }
+}
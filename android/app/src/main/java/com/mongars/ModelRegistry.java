@@ -0,0 +1,201 @@
+package com.mongars;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * ModelRegistry keeps several native llama contexts resident at once, each
+ * addressable by a caller-chosen handle (for example a small embedding model
+ * next to the chat model). Entries are ordered by last use. When a new model
+ * would push the estimated resident size over the memory budget, the least
+ * recently used idle models are unloaded first; models currently acquired by
+ * a request are never unloaded by the budget. An explicit unload of a model
+ * that is still acquired is deferred until its last release, so status reads
+ * on other threads never touch freed native memory. All methods are
+ * thread-safe.
+ */
+final class ModelRegistry {
+    static final String DEFAULT_HANDLE = "default";
+
+    /** Releases the native memory behind a context pointer. */
+    interface Unloader {
+        void free(long ctxPtr);
+    }
+
+    static final class Entry {
+        final String handle;
+        final String path;
+        final long ctxPtr;
+        final long sizeBytes;
+        /**
+         * Decode and prefill thread counts chosen at load time; the
+         * governor scales them.
+         */
+        final int threads;
+        final int prefillThreads;
+        final long loadedAt;
+        long lastUsed;
+        int inUse;
+        boolean retired;
+
+        Entry(String handle, String path, long ctxPtr, long sizeBytes, int threads, int prefillThreads) {
+            this.handle = handle;
+            this.path = path;
+            this.ctxPtr = ctxPtr;
+            this.sizeBytes = sizeBytes;
+            this.threads = threads;
+            this.prefillThreads = prefillThreads;
+            this.loadedAt = System.currentTimeMillis();
+            this.lastUsed = loadedAt;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final Unloader unloader;
+    private long budgetBytes;
+
+    ModelRegistry(long budgetBytes, Unloader unloader) {
+        this.budgetBytes = budgetBytes;
+        this.unloader = unloader;
+    }
+
+    static String normalizeHandle(String handle) {
+        return handle == null || handle.isEmpty() ? DEFAULT_HANDLE : handle;
+    }
+
+    synchronized boolean contains(String handle) {
+        return entries.containsKey(normalizeHandle(handle));
+    }
+
+    /**
+     * Marks the model as in use and most recently used. Every successful
+     * acquire must be paired with {@link #release}. Returns null if no model
+     * is registered under the handle.
+     */
+    synchronized Entry acquire(String handle) {
+        Entry entry = entries.get(normalizeHandle(handle));
+        if (entry != null) {
+            entry.inUse++;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        return entry;
+    }
+
+    /**
+     * Acquires {@code entry} if it is still registered, without counting as
+     * a use for LRU purposes. Returns null if it has been unloaded or
+     * replaced since it was looked up.
+     */
+    synchronized Entry acquireIfCurrent(Entry entry) {
+        if (entry == null || entries.get(entry.handle) != entry) {
+            return null;
+        }
+        entry.inUse++;
+        return entry;
+    }
+
+    /**
+     * Takes an additional reference on an entry the caller already holds,
+     * for work that outlives the caller's own acquire. Pair with
+     * {@link #release}.
+     */
+    synchronized void retain(Entry entry) {
+        entry.inUse++;
+    }
+
+    synchronized void release(Entry entry) {
+        if (entry != null && entry.inUse > 0) {
+            entry.inUse--;
+            if (entry.inUse == 0 && entry.retired) {
+                unloader.free(entry.ctxPtr);
+            }
+        }
+    }
+
+    /**
+     * Unloads idle models in LRU order until {@code incomingBytes} more fit
+     * in the budget. Returns the handles that were unloaded.
+     */
+    synchronized List<String> makeRoom(long incomingBytes) {
+        List<String> unloaded = new ArrayList<>();
+        long total = totalBytes();
+        for (Entry entry : snapshot()) {
+            if (total + incomingBytes <= budgetBytes) {
+                break;
+            }
+            if (entry.inUse > 0) {
+                continue;
+            }
+            entries.remove(entry.handle);
+            unloader.free(entry.ctxPtr);
+            total -= entry.sizeBytes;
+            unloaded.add(entry.handle);
+        }
+        return unloaded;
+    }
+
+    /**
+     * Registers a freshly loaded context. The caller must have removed any
+     * previous model under the same handle.
+     */
+    synchronized Entry register(String handle, String path, long ctxPtr, long sizeBytes, int threads,
+            int prefillThreads) {
+        Entry entry = new Entry(normalizeHandle(handle), path, ctxPtr, sizeBytes, threads, prefillThreads);
+        entries.put(entry.handle, entry);
+        return entry;
+    }
+
+    /**
+     * Removes the model under the handle and frees it, immediately if idle
+     * or on its last {@link #release} otherwise. Returns false if none was
+     * registered.
+     */
+    synchronized boolean unload(String handle) {
+        Entry entry = entries.remove(normalizeHandle(handle));
+        if (entry == null) {
+            return false;
+        }
+        retire(entry);
+        return true;
+    }
+
+    synchronized void unloadAll() {
+        for (Entry entry : entries.values()) {
+            retire(entry);
+        }
+        entries.clear();
+    }
+
+    private void retire(Entry entry) {
+        if (entry.inUse > 0) {
+            entry.retired = true;
+        } else {
+            unloader.free(entry.ctxPtr);
+        }
+    }
+
+    synchronized long totalBytes() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.sizeBytes;
+        }
+        return total;
+    }
+
+    synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = Math.max(0, budgetBytes);
+    }
+
+    /** Snapshot of the registered models, least recently used first. */
+    synchronized List<Entry> snapshot() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        return list;
+    }
+}
@@ -37,6 +37,7 @@ public class MonGarsPackage implements ReactPackage {
         modules.add(new PhotosTurboModule(reactContext));
         modules.add(new SensorsTurboModule(reactContext));
         modules.add(new LlamaTurboModule(reactContext));
+        modules.add(new VectorIndexTurboModule(reactContext));
         return modules;
     }
 
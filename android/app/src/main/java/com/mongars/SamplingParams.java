@@ -0,0 +1,87 @@
+package com.mongars;
+
+import androidx.annotation.Keep;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+
+/**
+ * SamplingParams carries the sampler chain settings of one generate call to
+ * the JNI layer, which reads the fields by name, so they must keep their
+ * names. Neutral values switch a stage off; when every stage is off the
+ * model's built-in temperature sampler is used as before.
+ */
+@Keep
+final class SamplingParams {
+    float temperature = 0.7f;
+    int topK = 0;
+    float topP = 1.0f;
+    float minP = 0.0f;
+    float repeatPenalty = 1.0f;
+    float frequencyPenalty = 0.0f;
+    float presencePenalty = 0.0f;
+    int penaltyLastN = 64;
+    int seed = 0;
+    String[] stop;
+
+    /**
+     * Reads temperature, topK, topP, minP, repeatPenalty, frequencyPenalty,
+     * presencePenalty, penaltyLastN, seed and stop (a string or an array of
+     * strings) from generate options.
+     */
+    static SamplingParams fromOptions(ReadableMap options) {
+        SamplingParams params = new SamplingParams();
+        if (options == null) {
+            return params;
+        }
+        if (options.hasKey("temperature") && !options.isNull("temperature")) {
+            params.temperature = (float) options.getDouble("temperature");
+        }
+        if (options.hasKey("topK") && !options.isNull("topK")) {
+            params.topK = Math.max(0, options.getInt("topK"));
+        }
+        if (options.hasKey("topP") && !options.isNull("topP")) {
+            params.topP = (float) Math.max(0.0, Math.min(1.0, options.getDouble("topP")));
+        }
+        if (options.hasKey("minP") && !options.isNull("minP")) {
+            params.minP = (float) Math.max(0.0, Math.min(1.0, options.getDouble("minP")));
+        }
+        if (options.hasKey("repeatPenalty") && !options.isNull("repeatPenalty")) {
+            params.repeatPenalty = (float) options.getDouble("repeatPenalty");
+            if (params.repeatPenalty <= 0) {
+                throw new IllegalArgumentException("repeatPenalty must be positive");
+            }
+        }
+        if (options.hasKey("frequencyPenalty") && !options.isNull("frequencyPenalty")) {
+            params.frequencyPenalty = (float) options.getDouble("frequencyPenalty");
+        }
+        if (options.hasKey("presencePenalty") && !options.isNull("presencePenalty")) {
+            params.presencePenalty = (float) options.getDouble("presencePenalty");
+        }
+        if (options.hasKey("penaltyLastN") && !options.isNull("penaltyLastN")) {
+            params.penaltyLastN = Math.max(0, options.getInt("penaltyLastN"));
+        }
+        if (options.hasKey("seed") && !options.isNull("seed")) {
+            params.seed = options.getInt("seed");
+        }
+        if (options.hasKey("stop") && !options.isNull("stop")) {
+            if (options.getType("stop") == ReadableType.String) {
+                params.stop = new String[] {options.getString("stop")};
+            } else {
+                ReadableArray stop = options.getArray("stop");
+                params.stop = new String[stop.size()];
+                for (int i = 0; i < stop.size(); i++) {
+                    params.stop[i] = stop.getString(i);
+                }
+            }
+        }
+        return params;
+    }
+
+    /** Whether any stage beyond temperature and seed, or a stop string, was requested. */
+    boolean hasChainOptions() {
+        return topK > 0 || topP < 1.0f || minP > 0.0f || repeatPenalty != 1.0f
+                || frequencyPenalty != 0.0f || presencePenalty != 0.0f
+                || (stop != null && stop.length > 0);
+    }
+}
@@ -0,0 +1,96 @@
+package com.mongars;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * SessionStore manages the on-disk KV-cache snapshots written by
+ * {@link LlamaTurboModule#saveSession}. Each conversation maps to one file
+ * named after a hash of its identifier, so arbitrary ids cannot escape the
+ * session directory. Files are kept under a total byte budget; when the
+ * budget is exceeded the least recently used snapshots (by modification
+ * time, refreshed on every save and restore) are deleted first.
+ */
+final class SessionStore {
+    private static final String SUFFIX = ".session";
+
+    private final File directory;
+    private long budgetBytes;
+
+    SessionStore(File directory, long budgetBytes) {
+        this.directory = directory;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the snapshot file for the conversation, creating the session
+     * directory if needed. The file itself may not exist yet.
+     */
+    File fileFor(String conversationId) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+        return new File(directory, hash(conversationId) + SUFFIX);
+    }
+
+    /** Marks the snapshot as most recently used. */
+    void touch(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = Math.max(0, budgetBytes);
+        evict(null);
+    }
+
+    /**
+     * Deletes least recently used snapshots until the directory fits in the
+     * budget. {@code keep} is never evicted, even if it alone exceeds it.
+     * Returns the number of files removed.
+     */
+    synchronized int evict(File keep) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return 0;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        int removed = 0;
+        for (File file : files) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static String hash(String conversationId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(conversationId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", bytes[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mongars;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * ThreadCalibration remembers the prefill and decode thread counts measured
+ * by {@link LlamaTurboModule#loadModel} with {@code calibrateThreads}. Results
+ * are stored in shared preferences per device model, GGUF file (path and
+ * size) and CPU affinity policy, so later loads of the same weights on the
+ * same phone start tuned without measuring again.
+ */
+final class ThreadCalibration {
+    private static final String PREFS = "llama_thread_calibration";
+
+    /** Tokens evaluated per candidate for the prefill and decode timings. */
+    static final int PREFILL_TOKENS = 64;
+    static final int DECODE_TOKENS = 16;
+
+    /**
+     * A slower candidate wins when it is within this fraction of the fastest
+     * one, so ties go to fewer threads and less power.
+     */
+    private static final double TOLERANCE = 0.03;
+
+    /** Measured thread counts for one model. */
+    static final class Result {
+        final int prefillThreads;
+        final int decodeThreads;
+
+        Result(int prefillThreads, int decodeThreads) {
+            this.prefillThreads = prefillThreads;
+            this.decodeThreads = decodeThreads;
+        }
+    }
+
+    private final SharedPreferences prefs;
+
+    ThreadCalibration(Context context) {
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the stored result for the model file under the affinity policy
+     * (null when threads are not pinned), or null.
+     */
+    Result load(String modelPath, long sizeBytes, String affinity) {
+        String value = prefs.getString(key(modelPath, sizeBytes, affinity), null);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(":");
+        try {
+            return new Result(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    void store(String modelPath, long sizeBytes, String affinity, Result result) {
+        prefs.edit()
+                .putString(key(modelPath, sizeBytes, affinity), result.prefillThreads + ":" + result.decodeThreads)
+                .apply();
+    }
+
+    /** Forgets every stored result; returns how many were removed. */
+    int clear() {
+        int count = prefs.getAll().size();
+        prefs.edit().clear().apply();
+        return count;
+    }
+
+    /**
+     * Thread counts worth measuring on a device with {@code available}
+     * cores: a handful of points between 1 and all cores, ascending.
+     */
+    static int[] candidates(int available) {
+        Set<Integer> counts = new LinkedHashSet<>();
+        int[] points = {1, 2, available / 4, available / 2, (available * 3) / 4, available - 1, available};
+        for (int point : points) {
+            if (point >= 1 && point <= available) {
+                counts.add(point);
+            }
+        }
+        int[] result = new int[counts.size()];
+        int i = 0;
+        for (int count : counts) {
+            result[i++] = count;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Index of the fewest threads whose throughput is within
+     * {@link #TOLERANCE} of the best, given throughputs for ascending thread
+     * counts. Returns -1 when nothing could be measured.
+     */
+    static int best(double[] tokensPerSecond) {
+        double max = 0;
+        for (double tps : tokensPerSecond) {
+            max = Math.max(max, tps);
+        }
+        if (max <= 0) {
+            return -1;
+        }
+        for (int i = 0; i < tokensPerSecond.length; i++) {
+            if (tokensPerSecond[i] >= max * (1 - TOLERANCE)) {
+                return i;
+            }
+        }
+        return tokensPerSecond.length - 1;
+    }
+
+    private static String key(String modelPath, long sizeBytes, String affinity) {
+        String key = Build.MANUFACTURER + " " + Build.MODEL + "|" + modelPath + ":" + sizeBytes;
+        return affinity != null ? key + "|" + affinity : key;
+    }
+}
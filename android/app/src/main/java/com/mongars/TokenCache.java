@@ -0,0 +1,88 @@
+package com.mongars;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TokenCache remembers the token ids of recently tokenized texts for one
+ * model, so repeated budgeting passes over the same history chunks do not
+ * go back to native code. Entries are kept in access order and the least
+ * recently used ones are dropped once the cached token total exceeds
+ * {@code maxTokens}. Texts tokenized with and without a leading BOS are
+ * cached separately. All methods are synchronized.
+ */
+final class TokenCache {
+    private final int maxTokens;
+    private final LinkedHashMap<String, int[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long tokenCount;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    TokenCache(int maxTokens) {
+        this.maxTokens = Math.max(0, maxTokens);
+    }
+
+    synchronized int[] get(String text, boolean addBos) {
+        int[] tokens = entries.get(key(text, addBos));
+        if (tokens != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return tokens;
+    }
+
+    synchronized void put(String text, boolean addBos, int[] tokens) {
+        if (tokens.length > maxTokens) {
+            return;
+        }
+        int[] previous = entries.put(key(text, addBos), tokens);
+        if (previous != null) {
+            tokenCount -= previous.length;
+        }
+        tokenCount += tokens.length;
+        Iterator<Map.Entry<String, int[]>> it = entries.entrySet().iterator();
+        while (tokenCount > maxTokens && it.hasNext()) {
+            tokenCount -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        tokenCount = 0;
+    }
+
+    synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long tokenCount() {
+        return tokenCount;
+    }
+
+    private static String key(String text, boolean addBos) {
+        return (addBos ? '1' : '0') + text;
+    }
+}
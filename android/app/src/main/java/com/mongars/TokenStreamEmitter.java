@@ -0,0 +1,123 @@
+package com.mongars;
+
+import android.os.SystemClock;
+import androidx.annotation.Keep;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+/**
+ * TokenStreamEmitter receives decoded token pieces from the JNI layer while a
+ * generation is running and forwards them to JavaScript as
+ * {@code llamaToken} events. Pieces are buffered and flushed once either the
+ * token or the time threshold is reached so that a fast decode loop does not
+ * cross the bridge once per token. The emitter also records the timing data
+ * used to build the streaming summary (time-to-first-token and tokens/sec).
+ */
+final class TokenStreamEmitter {
+    static final String EVENT_TOKEN = "llamaToken";
+
+    private final ReactApplicationContext reactContext;
+    private final String requestId;
+    private final int flushTokens;
+    private final long flushIntervalMs;
+    private final StringBuilder buffer = new StringBuilder();
+
+    private final long startTime;
+    private long firstTokenTime = -1;
+    private long lastFlushTime;
+    private long endTime = -1;
+    private int bufferedTokens = 0;
+    private int totalTokens = 0;
+
+    TokenStreamEmitter(ReactApplicationContext reactContext, String requestId,
+                       int flushTokens, long flushIntervalMs) {
+        this.reactContext = reactContext;
+        this.requestId = requestId;
+        this.flushTokens = Math.max(1, flushTokens);
+        this.flushIntervalMs = Math.max(0, flushIntervalMs);
+        this.startTime = SystemClock.elapsedRealtime();
+        this.lastFlushTime = startTime;
+    }
+
+    /**
+     * Called from native code for each sampled token. Must stay cheap: it
+     * runs inside the decode loop while the context lock is held.
+     */
+    @Keep
+    void onToken(String piece) {
+        long now = SystemClock.elapsedRealtime();
+        if (firstTokenTime < 0) {
+            firstTokenTime = now;
+        }
+        buffer.append(piece);
+        bufferedTokens++;
+        totalTokens++;
+        if (bufferedTokens >= flushTokens || now - lastFlushTime >= flushIntervalMs) {
+            flush(now);
+        }
+    }
+
+    /**
+     * Called from native code for text that is not a token of its own, such
+     * as output held back while it could have been a stop sequence. It is
+     * sent with the next flush without counting towards the token totals.
+     */
+    @Keep
+    void onText(String text) {
+        buffer.append(text);
+    }
+
+    /**
+     * Flushes any buffered text and marks the stream as finished.
+     */
+    void finish() {
+        endTime = SystemClock.elapsedRealtime();
+        flush(endTime);
+    }
+
+    /**
+     * Builds the summary map resolved to JS once the stream has finished.
+     */
+    WritableMap buildSummary(String text) {
+        long end = endTime >= 0 ? endTime : SystemClock.elapsedRealtime();
+        WritableMap summary = new WritableNativeMap();
+        summary.putString("text", text);
+        summary.putString("requestId", requestId);
+        summary.putInt("tokens", totalTokens);
+        summary.putDouble("durationMs", end - startTime);
+        if (firstTokenTime >= 0) {
+            long decodeMs = end - firstTokenTime;
+            summary.putDouble("timeToFirstTokenMs", firstTokenTime - startTime);
+            // The first token is produced by the prompt evaluation, so only the
+            // remaining tokens are attributed to the decode phase.
+            double tokensPerSecond = decodeMs > 0 && totalTokens > 1
+                    ? (totalTokens - 1) * 1000.0 / decodeMs
+                    : 0;
+            summary.putDouble("tokensPerSecond", tokensPerSecond);
+        } else {
+            summary.putNull("timeToFirstTokenMs");
+            summary.putDouble("tokensPerSecond", 0);
+        }
+        return summary;
+    }
+
+    private void flush(long now) {
+        lastFlushTime = now;
+        if (bufferedTokens == 0 && buffer.length() == 0) {
+            return;
+        }
+        WritableMap event = new WritableNativeMap();
+        event.putString("requestId", requestId);
+        event.putString("text", buffer.toString());
+        event.putInt("tokenCount", bufferedTokens);
+        buffer.setLength(0);
+        bufferedTokens = 0;
+        if (reactContext.hasActiveReactInstance()) {
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(EVENT_TOKEN, event);
+        }
+    }
+}
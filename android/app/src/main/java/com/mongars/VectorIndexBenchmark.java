@@ -0,0 +1,185 @@
+package com.mongars;
+
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+import com.facebook.react.bridge.WritableNativeMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * VectorIndexBenchmark measures recall and latency of {@link HnswIndex} in
+ * every {@link VectorQuantizer} mode against exact brute-force search. The
+ * data is synthetic but clustered like sentence embeddings: points are drawn
+ * around a fixed number of random centroids, and queries come from the same
+ * distribution. Each mode gets a scratch index under {@code directory} that
+ * is deleted afterwards.
+ */
+final class VectorIndexBenchmark {
+    private static final int CLUSTERS = 32;
+    private static final String[] MODES = {
+            VectorQuantizer.NONE, VectorQuantizer.INT8, VectorQuantizer.BINARY};
+
+    private VectorIndexBenchmark() {
+    }
+
+    static WritableMap run(File directory, int count, int dimension, int queries, int k, int ef,
+                           long seed) throws IOException {
+        Random random = new Random(seed);
+        float[][] centroids = new float[CLUSTERS][dimension];
+        for (float[] centroid : centroids) {
+            for (int i = 0; i < dimension; i++) {
+                centroid[i] = (float) random.nextGaussian();
+            }
+        }
+        float[] data = new float[count * dimension];
+        for (int n = 0; n < count; n++) {
+            sample(centroids, random, data, n * dimension);
+        }
+        float[] queryData = new float[queries * dimension];
+        for (int q = 0; q < queries; q++) {
+            sample(centroids, random, queryData, q * dimension);
+        }
+
+        // Ground truth and the latency of an exact flat scan.
+        normalizeRows(data, dimension);
+        normalizeRows(queryData, dimension);
+        int[][] truth = new int[queries][];
+        long[] exactNs = new long[queries];
+        for (int q = 0; q < queries; q++) {
+            long start = System.nanoTime();
+            truth[q] = exactTopK(data, queryData, q * dimension, count, dimension, k);
+            exactNs[q] = System.nanoTime() - start;
+        }
+
+        WritableArray modes = new WritableNativeArray();
+        for (String mode : MODES) {
+            File base = new File(directory, "bench-" + mode);
+            HnswIndex.deleteFiles(base);
+            try {
+                HnswIndex index = new HnswIndex(base, dimension, 16, 100, mode);
+                long buildStart = System.nanoTime();
+                for (int n = 0; n < count; n++) {
+                    index.add(Integer.toString(n), null, data, n * dimension);
+                }
+                long buildNs = System.nanoTime() - buildStart;
+
+                long[] searchNs = new long[queries];
+                double recall = 0;
+                float[] query = new float[dimension];
+                for (int q = 0; q < queries; q++) {
+                    System.arraycopy(queryData, q * dimension, query, 0, dimension);
+                    long start = System.nanoTime();
+                    List<HnswIndex.Hit> hits = index.search(query, k, ef);
+                    searchNs[q] = System.nanoTime() - start;
+                    Set<String> expected = new HashSet<>();
+                    for (int node : truth[q]) {
+                        expected.add(Integer.toString(node));
+                    }
+                    int found = 0;
+                    for (HnswIndex.Hit hit : hits) {
+                        if (expected.contains(hit.id)) {
+                            found++;
+                        }
+                    }
+                    recall += (double) found / truth[q].length;
+                }
+
+                WritableMap result = new WritableNativeMap();
+                result.putString("quantization", mode);
+                result.putDouble("recall", queries > 0 ? recall / queries : 0);
+                result.putDouble("meanMs", mean(searchNs));
+                result.putDouble("p95Ms", percentile(searchNs, 0.95));
+                result.putDouble("buildMs", buildNs / 1_000_000.0);
+                result.putInt("searchBytesPerVector", index.searchBytesPerVector());
+                modes.pushMap(result);
+            } finally {
+                HnswIndex.deleteFiles(base);
+            }
+        }
+
+        WritableMap report = new WritableNativeMap();
+        report.putInt("count", count);
+        report.putInt("dimension", dimension);
+        report.putInt("queries", queries);
+        report.putInt("k", k);
+        report.putInt("ef", ef);
+        report.putDouble("exactMeanMs", mean(exactNs));
+        report.putDouble("exactP95Ms", percentile(exactNs, 0.95));
+        report.putArray("modes", modes);
+        return report;
+    }
+
+    private static void sample(float[][] centroids, Random random, float[] out, int offset) {
+        float[] centroid = centroids[random.nextInt(centroids.length)];
+        for (int i = 0; i < centroid.length; i++) {
+            out[offset + i] = centroid[i] + (float) random.nextGaussian();
+        }
+    }
+
+    private static void normalizeRows(float[] rows, int dimension) {
+        for (int offset = 0; offset < rows.length; offset += dimension) {
+            double norm = 0;
+            for (int i = 0; i < dimension; i++) {
+                norm += rows[offset + i] * rows[offset + i];
+            }
+            float inv = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0;
+            for (int i = 0; i < dimension; i++) {
+                rows[offset + i] *= inv;
+            }
+        }
+    }
+
+    private static int[] exactTopK(float[] data, float[] queries, int queryOffset, int count,
+                                   int dimension, int k) {
+        int n = Math.min(k, count);
+        int[] best = new int[n];
+        float[] bestScores = new float[n];
+        Arrays.fill(bestScores, Float.NEGATIVE_INFINITY);
+        for (int node = 0; node < count; node++) {
+            float score = 0;
+            int base = node * dimension;
+            for (int i = 0; i < dimension; i++) {
+                score += queries[queryOffset + i] * data[base + i];
+            }
+            if (n == 0 || score <= bestScores[n - 1]) {
+                continue;
+            }
+            int j = n - 1;
+            while (j > 0 && bestScores[j - 1] < score) {
+                bestScores[j] = bestScores[j - 1];
+                best[j] = best[j - 1];
+                j--;
+            }
+            bestScores[j] = score;
+            best[j] = node;
+        }
+        return best;
+    }
+
+    private static double mean(long[] nanos) {
+        if (nanos.length == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (long value : nanos) {
+            total += value;
+        }
+        return total / 1_000_000.0 / nanos.length;
+    }
+
+    private static double percentile(long[] nanos, double p) {
+        if (nanos.length == 0) {
+            return 0;
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
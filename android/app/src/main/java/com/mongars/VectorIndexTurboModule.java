@@ -0,0 +1,529 @@
+package com.mongars;
+
+import androidx.annotation.NonNull;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+import com.facebook.react.bridge.WritableNativeMap;
+import com.facebook.react.module.annotations.ReactModule;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * VectorIndexTurboModule provides persistent approximate nearest-neighbour
+ * search on device. Each named index is an {@link HnswIndex} whose vectors
+ * and base-layer graph are memory-mapped from files under the app files
+ * directory, so only the pages touched by a query are resident. Indexes can
+ * be filled from vectors passed in from JS or from texts, in which case the
+ * embeddings are computed by {@link LlamaTurboModule} and inserted without
+ * crossing the bridge. All index work runs on one background thread.
+ * Changes are saved behind the writes queued with them, so a burst of adds
+ * rewrites the metadata once, and on close.
+ */
+@ReactModule(name = VectorIndexTurboModule.NAME)
+public class VectorIndexTurboModule extends ReactContextBaseJavaModule {
+    public static final String NAME = "VectorIndexTurboModule";
+
+    private static final int MAX_PENDING_REQUESTS = 64;
+    private static final int DEFAULT_M = 16;
+    private static final int DEFAULT_EF_CONSTRUCTION = 100;
+    private static final int DEFAULT_EF_SEARCH = 64;
+    private static final Pattern INDEX_NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]{0,63}");
+
+    /** Open indexes by name; only mutated on the index thread. */
+    private final Map<String, HnswIndex> mIndexes = new ConcurrentHashMap<>();
+
+    /** Indexes changed since their last save; only used on the index thread. */
+    private final Set<String> mUnsaved = new HashSet<>();
+    private boolean mSaveQueued;
+
+    private final InferenceExecutor mExecutor =
+            new InferenceExecutor("vector-index", MAX_PENDING_REQUESTS);
+
+    public VectorIndexTurboModule(ReactApplicationContext reactContext) {
+        super(reactContext);
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void invalidate() {
+        mExecutor.shutdown(() -> {
+            for (HnswIndex index : mIndexes.values()) {
+                try {
+                    index.save();
+                } catch (IOException ignored) {
+                    // Nodes added since the last save are lost; the files
+                    // stay consistent with the previous metadata.
+                }
+            }
+            mIndexes.clear();
+            mUnsaved.clear();
+        });
+        super.invalidate();
+    }
+
+    /**
+     * Open the index called {@code name}, creating it if it does not exist.
+     * {@code dimension} is required for a new index and must match for an
+     * existing one. {@code m} (default 16) is the number of links per node
+     * and {@code efConstruction} (default 100) the beam width while
+     * inserting; both are fixed once the index exists. {@code quantization}
+     * ("none", "int8" or "binary", default "none", also fixed) keeps a compact
+     * copy of every vector that searches walk first, re-ranking the
+     * shortlist at full precision. Resolves with the index stats.
+     */
+    @ReactMethod
+    public void openIndex(String name, ReadableMap options, Promise promise) {
+        if (!validName(name, promise)) {
+            return;
+        }
+        int dimension = readInt(options, "dimension", 0);
+        int m = readInt(options, "m", DEFAULT_M);
+        int efConstruction = readInt(options, "efConstruction", DEFAULT_EF_CONSTRUCTION);
+        String quantization = options != null && options.hasKey("quantization")
+                && !options.isNull("quantization")
+                ? options.getString("quantization") : VectorQuantizer.NONE;
+        if (!VectorQuantizer.isValid(quantization)) {
+            promise.reject("INDEX_ERROR", "Unknown quantization: " + quantization);
+            return;
+        }
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            try {
+                HnswIndex index = mIndexes.get(name);
+                if (index == null) {
+                    index = new HnswIndex(new File(indexDirectory(), name), dimension, m, efConstruction,
+                            quantization);
+                    mIndexes.put(name, index);
+                } else if (dimension > 0 && index.dimension() != dimension) {
+                    promise.reject("INDEX_ERROR", "Index has dimension " + index.dimension()
+                            + ", requested " + dimension);
+                    return;
+                }
+                promise.resolve(stats(name, index));
+            } catch (Exception e) {
+                promise.reject("INDEX_ERROR", "Failed to open index: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Insert or replace vectors. {@code vectors} is an array of number
+     * arrays, one per id, each of the index dimension. Resolves with the
+     * number of vectors added once they are searchable; they reach disk with
+     * the next queued save.
+     */
+    @ReactMethod
+    public void add(String name, ReadableArray ids, ReadableArray vectors, Promise promise) {
+        if (ids == null || vectors == null || ids.size() != vectors.size()) {
+            promise.reject("INDEX_ERROR", "ids and vectors must be arrays of the same length");
+            return;
+        }
+        String[] keys = readStrings(ids);
+        float[][] rows = new float[vectors.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            ReadableArray row = vectors.getArray(i);
+            rows[i] = new float[row != null ? row.size() : 0];
+            for (int j = 0; j < rows[i].length; j++) {
+                rows[i][j] = (float) row.getDouble(j);
+            }
+        }
+        enqueue(InferenceExecutor.PRIORITY_BACKGROUND, promise, () -> {
+            HnswIndex index = openedIndex(name, promise);
+            if (index == null) {
+                return;
+            }
+            try {
+                for (int i = 0; i < rows.length; i++) {
+                    if (rows[i].length != index.dimension()) {
+                        throw new IllegalArgumentException("Vector " + i + " has dimension "
+                                + rows[i].length + ", expected " + index.dimension());
+                    }
+                }
+                for (int i = 0; i < rows.length; i++) {
+                    index.add(keys[i], null, rows[i], 0);
+                }
+                scheduleSave(name);
+                promise.resolve(rows.length);
+            } catch (Exception e) {
+                promise.reject("INDEX_ERROR", "Failed to add vectors: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Embed {@code texts} with the model loaded under {@code options.handle}
+     * in {@link LlamaTurboModule} and insert them under {@code ids}. The
+     * vectors go straight from the model into the index. The texts are
+     * stored with the vectors and returned by searches, unless
+     * {@code storeText} is false. Resolves with the number of vectors added
+     * and the embedding time in milliseconds.
+     */
+    @ReactMethod
+    public void addTexts(String name, ReadableArray ids, ReadableArray texts, ReadableMap options,
+                         Promise promise) {
+        if (ids == null || texts == null || ids.size() != texts.size()) {
+            promise.reject("INDEX_ERROR", "ids and texts must be arrays of the same length");
+            return;
+        }
+        String[] keys = readStrings(ids);
+        String[] inputs = readStrings(texts);
+        boolean storeText = options == null || !options.hasKey("storeText")
+                || options.isNull("storeText") || options.getBoolean("storeText");
+        LlamaTurboModule llama = llamaModule(promise);
+        if (llama == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        llama.embedTexts(readHandle(options), inputs, new LlamaTurboModule.EmbeddingsCallback() {
+            @Override
+            public void onEmbeddings(float[] embeddings, int dimension) {
+                double embedMs = (System.nanoTime() - start) / 1_000_000.0;
+                enqueue(InferenceExecutor.PRIORITY_BACKGROUND, promise, () -> {
+                    HnswIndex index = openedIndex(name, promise);
+                    if (index == null) {
+                        return;
+                    }
+                    if (index.dimension() != dimension) {
+                        promise.reject("INDEX_ERROR", "Model produces dimension " + dimension
+                                + ", index expects " + index.dimension());
+                        return;
+                    }
+                    try {
+                        for (int i = 0; i < keys.length; i++) {
+                            index.add(keys[i], storeText ? inputs[i] : null, embeddings, i * dimension);
+                        }
+                        scheduleSave(name);
+                        WritableMap result = new WritableNativeMap();
+                        result.putInt("added", keys.length);
+                        result.putDouble("embedMs", embedMs);
+                        result.putDouble("totalMs", (System.nanoTime() - start) / 1_000_000.0);
+                        promise.resolve(result);
+                    } catch (Exception e) {
+                        promise.reject("INDEX_ERROR", "Failed to add texts: " + e.getMessage());
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String code, String message) {
+                promise.reject(code, message);
+            }
+        });
+    }
+
+    /**
+     * Return the {@code k} nearest neighbours of {@code vector} by cosine
+     * similarity as an array of {id, score, text}, best first; text is only
+     * present for entries added with one. {@code options.ef} (default 64)
+     * trades speed for recall.
+     */
+    @ReactMethod
+    public void search(String name, ReadableArray vector, int k, ReadableMap options, Promise promise) {
+        if (vector == null) {
+            promise.reject("INDEX_ERROR", "vector must be an array of numbers");
+            return;
+        }
+        float[] query = new float[vector.size()];
+        for (int i = 0; i < query.length; i++) {
+            query[i] = (float) vector.getDouble(i);
+        }
+        int ef = readInt(options, "ef", DEFAULT_EF_SEARCH);
+        searchWith(name, query, k, ef, promise);
+    }
+
+    /**
+     * Embed {@code text} with the model under {@code options.handle} and
+     * search for it, without returning the query vector to JS.
+     */
+    @ReactMethod
+    public void searchText(String name, String text, int k, ReadableMap options, Promise promise) {
+        LlamaTurboModule llama = llamaModule(promise);
+        if (llama == null) {
+            return;
+        }
+        int ef = readInt(options, "ef", DEFAULT_EF_SEARCH);
+        llama.embedTexts(readHandle(options), new String[] {text != null ? text : ""},
+                new LlamaTurboModule.EmbeddingsCallback() {
+                    @Override
+                    public void onEmbeddings(float[] embeddings, int dimension) {
+                        searchWith(name, embeddings, k, ef, promise);
+                    }
+
+                    @Override
+                    public void onError(String code, String message) {
+                        promise.reject(code, message);
+                    }
+                });
+    }
+
+    /** Remove vectors by id. Resolves with the number removed. */
+    @ReactMethod
+    public void remove(String name, ReadableArray ids, Promise promise) {
+        String[] keys = ids != null ? readStrings(ids) : new String[0];
+        enqueue(InferenceExecutor.PRIORITY_BACKGROUND, promise, () -> {
+            HnswIndex index = openedIndex(name, promise);
+            if (index == null) {
+                return;
+            }
+            try {
+                int removed = 0;
+                for (String key : keys) {
+                    if (index.remove(key)) {
+                        removed++;
+                    }
+                }
+                if (removed > 0) {
+                    scheduleSave(name);
+                }
+                promise.resolve(removed);
+            } catch (Exception e) {
+                promise.reject("INDEX_ERROR", "Failed to remove vectors: " + e.getMessage());
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getIndexStats(String name, Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_INTERACTIVE, promise, () -> {
+            HnswIndex index = openedIndex(name, promise);
+            if (index != null) {
+                promise.resolve(stats(name, index));
+            }
+        });
+    }
+
+    /** Save and close the index. Resolves false if it was not open. */
+    @ReactMethod
+    public void closeIndex(String name, Promise promise) {
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            HnswIndex index = mIndexes.remove(name);
+            mUnsaved.remove(name);
+            if (index == null) {
+                promise.resolve(false);
+                return;
+            }
+            try {
+                index.save();
+                promise.resolve(true);
+            } catch (Exception e) {
+                promise.reject("INDEX_ERROR", "Failed to save index: " + e.getMessage());
+            }
+        });
+    }
+
+    /** Close the index if open and delete its files. */
+    @ReactMethod
+    public void deleteIndex(String name, Promise promise) {
+        if (!validName(name, promise)) {
+            return;
+        }
+        enqueue(InferenceExecutor.PRIORITY_NORMAL, promise, () -> {
+            mIndexes.remove(name);
+            mUnsaved.remove(name);
+            HnswIndex.deleteFiles(new File(indexDirectory(), name));
+            promise.resolve(null);
+        });
+    }
+
+    /** Receives search results computed for another native module. */
+    interface SearchCallback {
+        void onHits(List<HnswIndex.Hit> hits);
+
+        void onError(String code, String message);
+    }
+
+    /**
+     * Searches the open index {@code name} at interactive priority on the
+     * index thread for other native modules, such as the fused retrieval
+     * in {@link LlamaTurboModule#ragGenerate}. The callback runs on the
+     * index thread, or on the caller's thread if the queue is full.
+     */
+    void searchIndex(String name, float[] query, int k, int ef, SearchCallback callback) {
+        boolean queued = mExecutor.submit(InferenceExecutor.PRIORITY_INTERACTIVE, null, () -> {
+            HnswIndex index = name != null ? mIndexes.get(name) : null;
+            if (index == null) {
+                callback.onError("NO_INDEX", "Index not open: " + name);
+            } else if (query.length != index.dimension()) {
+                callback.onError("INDEX_ERROR", "Query has dimension " + query.length
+                        + ", index expects " + index.dimension());
+            } else {
+                callback.onHits(index.search(query, k, ef));
+            }
+        }, () -> callback.onError("INDEX_ERROR", "Module invalidated"));
+        if (!queued) {
+            callback.onError("QUEUE_FULL", "Vector index queue is full ("
+                    + mExecutor.pendingCount() + " pending)");
+        }
+    }
+
+    /**
+     * Measure recall@k and search latency of each quantization mode against
+     * exact search on synthetic clustered vectors. Options: {@code count}
+     * (default 5000), {@code dimension} (384), {@code queries} (100),
+     * {@code k} (10), {@code ef} (64) and {@code seed}. Runs on the index
+     * thread and can take several seconds for large counts.
+     */
+    @ReactMethod
+    public void benchmarkQuantization(ReadableMap options, Promise promise) {
+        int count = readInt(options, "count", 5000);
+        int dimension = readInt(options, "dimension", 384);
+        int queries = readInt(options, "queries", 100);
+        int k = readInt(options, "k", 10);
+        int ef = readInt(options, "ef", DEFAULT_EF_SEARCH);
+        int seed = readInt(options, "seed", 42);
+        if (count <= 0 || dimension <= 0 || queries <= 0 || k <= 0) {
+            promise.reject("BENCHMARK_ERROR", "count, dimension, queries and k must be positive");
+            return;
+        }
+        enqueue(InferenceExecutor.PRIORITY_BACKGROUND, promise, () -> {
+            try {
+                File directory = new File(getReactApplicationContext().getCacheDir(), "vector_bench");
+                promise.resolve(VectorIndexBenchmark.run(directory, count, dimension, queries, k, ef, seed));
+            } catch (Exception e) {
+                promise.reject("BENCHMARK_ERROR", "Benchmark failed: " + e.getMessage());
+            }
+        });
+    }
+
+    private void searchWith(String name, float[] query, int k, int ef, Promise promise) {
+        searchIndex(name, query, k, ef, new SearchCallback() {
+            @Override
+            public void onHits(List<HnswIndex.Hit> hits) {
+                WritableArray result = new WritableNativeArray();
+                for (HnswIndex.Hit hit : hits) {
+                    WritableMap item = new WritableNativeMap();
+                    item.putString("id", hit.id);
+                    item.putDouble("score", hit.score);
+                    if (hit.text != null) {
+                        item.putString("text", hit.text);
+                    }
+                    result.pushMap(item);
+                }
+                promise.resolve(result);
+            }
+
+            @Override
+            public void onError(String code, String message) {
+                promise.reject(code, message);
+            }
+        });
+    }
+
+    /**
+     * Marks {@code name} as changed and queues a save behind the work already
+     * waiting at background priority, so consecutive adds share one rewrite
+     * of the metadata. Runs on the index thread.
+     */
+    private void scheduleSave(String name) {
+        mUnsaved.add(name);
+        if (!mSaveQueued) {
+            // With a full queue the next change, closeIndex or invalidate saves it.
+            mSaveQueued = mExecutor.submit(InferenceExecutor.PRIORITY_BACKGROUND, this::saveUnsaved);
+        }
+    }
+
+    private void saveUnsaved() {
+        mSaveQueued = false;
+        for (Iterator<String> it = mUnsaved.iterator(); it.hasNext(); ) {
+            HnswIndex index = mIndexes.get(it.next());
+            try {
+                if (index != null) {
+                    index.save();
+                }
+                it.remove();
+            } catch (IOException ignored) {
+                // Kept as unsaved; retried after the next change and on close.
+            }
+        }
+    }
+
+    private HnswIndex openedIndex(String name, Promise promise) {
+        HnswIndex index = name != null ? mIndexes.get(name) : null;
+        if (index == null) {
+            promise.reject("NO_INDEX", "Index not open: " + name);
+        }
+        return index;
+    }
+
+    private LlamaTurboModule llamaModule(Promise promise) {
+        LlamaTurboModule llama = getReactApplicationContext().getNativeModule(LlamaTurboModule.class);
+        if (llama == null) {
+            promise.reject("NO_MODEL", "LlamaTurboModule is not available");
+        }
+        return llama;
+    }
+
+    private void enqueue(int priority, Promise promise, Runnable task) {
+        if (!mExecutor.submit(priority, null, task,
+                () -> promise.reject("INDEX_ERROR", "Module invalidated"))) {
+            promise.reject("QUEUE_FULL", "Vector index queue is full ("
+                    + mExecutor.pendingCount() + " pending)");
+        }
+    }
+
+    private File indexDirectory() {
+        return new File(getReactApplicationContext().getFilesDir(), "vector_index");
+    }
+
+    private static WritableMap stats(String name, HnswIndex index) {
+        WritableMap stats = new WritableNativeMap();
+        stats.putString("name", name);
+        stats.putInt("dimension", index.dimension());
+        stats.putInt("count", index.size());
+        stats.putInt("nodes", index.nodeCount());
+        stats.putInt("maxLevel", index.maxLevel());
+        stats.putString("quantization", index.quantization());
+        stats.putInt("searchBytesPerVector", index.searchBytesPerVector());
+        stats.putDouble("mappedBytes", index.mappedBytes());
+        return stats;
+    }
+
+    private static boolean validName(String name, Promise promise) {
+        if (name == null || !INDEX_NAME.matcher(name).matches()) {
+            promise.reject("INDEX_ERROR", "Invalid index name: " + name);
+            return false;
+        }
+        return true;
+    }
+
+    private static String[] readStrings(ReadableArray array) {
+        String[] values = new String[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            String value = array.isNull(i) ? null : array.getString(i);
+            values[i] = value != null ? value : "";
+        }
+        return values;
+    }
+
+    private static String readHandle(ReadableMap options) {
+        if (options != null && options.hasKey("handle") && !options.isNull("handle")) {
+            return options.getString("handle");
+        }
+        return null;
+    }
+
+    private static int readInt(ReadableMap options, String key, int fallback) {
+        if (options != null && options.hasKey(key) && !options.isNull(key)) {
+            return options.getInt(key);
+        }
+        return fallback;
+    }
+}
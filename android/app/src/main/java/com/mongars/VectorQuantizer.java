@@ -0,0 +1,123 @@
+package com.mongars;
+
+import java.nio.ByteBuffer;
+
+/**
+ * VectorQuantizer holds the compact embedding encodings shared by
+ * {@link HnswIndex} and the quantized output of
+ * {@link LlamaTurboModule#embedBatch}. {@code int8} stores each vector as
+ * signed bytes with one float scale (value = code * scale, scale =
+ * max|v| / 127), a quarter of float32. {@code binary} keeps only the sign of
+ * each dimension, one bit per value, and compares vectors by Hamming
+ * distance. Both are only good enough to shortlist candidates; exact
+ * float32 scores re-rank the shortlist.
+ */
+final class VectorQuantizer {
+    static final String NONE = "none";
+    static final String INT8 = "int8";
+    static final String BINARY = "binary";
+
+    private VectorQuantizer() {
+    }
+
+    static boolean isValid(String mode) {
+        return NONE.equals(mode) || INT8.equals(mode) || BINARY.equals(mode);
+    }
+
+    /** 64-bit words needed for the binary code of a vector. */
+    static int words(int dimension) {
+        return (dimension + 63) / 64;
+    }
+
+    /** Bytes per vector in the given mode, including the int8 scale. */
+    static int codeBytes(String mode, int dimension) {
+        switch (mode) {
+            case INT8:
+                return 4 + dimension;
+            case BINARY:
+                return words(dimension) * 8;
+            default:
+                return dimension * 4;
+        }
+    }
+
+    /**
+     * Writes the int8 codes of {@code dimension} values of {@code v} from
+     * {@code offset} into {@code out} at {@code outOffset} and returns the
+     * scale.
+     */
+    static float quantizeInt8(float[] v, int offset, int dimension, byte[] out, int outOffset) {
+        float maxAbs = 0;
+        for (int i = 0; i < dimension; i++) {
+            maxAbs = Math.max(maxAbs, Math.abs(v[offset + i]));
+        }
+        if (maxAbs == 0) {
+            for (int i = 0; i < dimension; i++) {
+                out[outOffset + i] = 0;
+            }
+            return 0;
+        }
+        float inv = 127f / maxAbs;
+        for (int i = 0; i < dimension; i++) {
+            out[outOffset + i] = (byte) Math.round(v[offset + i] * inv);
+        }
+        return maxAbs / 127f;
+    }
+
+    /** Sign bits of the vector: bit i of word i / 64 is set when v[i] > 0. */
+    static void packBits(float[] v, int offset, int dimension, long[] out, int outOffset) {
+        for (int w = 0; w < words(dimension); w++) {
+            long word = 0;
+            int end = Math.min(64, dimension - w * 64);
+            for (int b = 0; b < end; b++) {
+                if (v[offset + w * 64 + b] > 0) {
+                    word |= 1L << b;
+                }
+            }
+            out[outOffset + w] = word;
+        }
+    }
+
+    /**
+     * Sign bits packed into bytes, bit i in byte i / 8 at position i % 8,
+     * the layout returned to JS.
+     */
+    static void packBits(float[] v, int offset, int dimension, byte[] out, int outOffset) {
+        for (int i = 0; i < (dimension + 7) / 8; i++) {
+            out[outOffset + i] = 0;
+        }
+        for (int i = 0; i < dimension; i++) {
+            if (v[offset + i] > 0) {
+                out[outOffset + i / 8] |= (byte) (1 << (i % 8));
+            }
+        }
+    }
+
+    /** Integer dot product of {@code a} with the codes at {@code offset} of {@code b}. */
+    static int dotInt8(byte[] a, ByteBuffer b, int offset, int dimension) {
+        int s0 = 0;
+        int s1 = 0;
+        int s2 = 0;
+        int s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            s0 += a[i] * b.get(offset + i);
+            s1 += a[i + 1] * b.get(offset + i + 1);
+            s2 += a[i + 2] * b.get(offset + i + 2);
+            s3 += a[i + 3] * b.get(offset + i + 3);
+        }
+        for (; i < dimension; i++) {
+            s0 += a[i] * b.get(offset + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Hamming distance between {@code a} and the words at {@code offset} of {@code b}. */
+    static int hamming(long[] a, ByteBuffer b, int offset) {
+        int distance = 0;
+        for (int w = 0; w < a.length; w++) {
+            distance += Long.bitCount(a[w] ^ b.getLong(offset + w * 8));
+        }
+        return distance;
+    }
+}
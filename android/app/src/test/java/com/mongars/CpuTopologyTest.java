@@ -0,0 +1,136 @@
+package com.mongars;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CpuTopologyTest {
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("sysfs-cpu").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void offlineCoreWithoutCpufreqIsNotAnEfficiencyCore() throws IOException {
+        write("possible", "0-7");
+        write("online", "0-6");
+        for (int cpu = 0; cpu <= 3; cpu++) {
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "1800000");
+        }
+        for (int cpu = 4; cpu <= 6; cpu++) {
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "2800000");
+        }
+        new File(root, "cpu7").mkdirs();
+
+        CpuTopology topology = new CpuTopology(root);
+
+        assertEquals(2, topology.clusterCount());
+        assertEquals(-1, topology.cores().get(7).cluster);
+        assertArrayEquals(new int[] {4, 5, 6}, topology.cpusFor(CpuTopology.AFFINITY_PERFORMANCE));
+        assertArrayEquals(new int[] {0, 1, 2, 3}, topology.cpusFor(CpuTopology.AFFINITY_EFFICIENCY));
+        assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5, 6}, topology.cpusFor(CpuTopology.AFFINITY_ALL));
+    }
+
+    @Test
+    public void perCoreOnlineFlagsAreUsedWithoutAnOnlineList() throws IOException {
+        write("possible", "0-3");
+        write("cpu0/cpufreq/cpuinfo_max_freq", "1800000");
+        write("cpu1/online", "1");
+        write("cpu1/cpufreq/cpuinfo_max_freq", "1800000");
+        write("cpu2/online", "1");
+        write("cpu2/cpufreq/cpuinfo_max_freq", "2800000");
+        write("cpu3/online", "0");
+
+        CpuTopology topology = new CpuTopology(root);
+
+        assertEquals(2, topology.clusterCount());
+        assertArrayEquals(new int[] {2}, topology.cpusFor(CpuTopology.AFFINITY_PERFORMANCE));
+        assertArrayEquals(new int[] {0, 1}, topology.cpusFor(CpuTopology.AFFINITY_EFFICIENCY));
+    }
+
+    @Test
+    public void capacityTakesPrecedenceOverFrequency() throws IOException {
+        write("possible", "0-7");
+        write("online", "0-7");
+        int[] capacities = {325, 325, 325, 325, 870, 870, 870, 1024};
+        for (int cpu = 0; cpu < capacities.length; cpu++) {
+            write("cpu" + cpu + "/cpu_capacity", String.valueOf(capacities[cpu]));
+            // Same max frequency everywhere, so only the capacity separates them.
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "2000000");
+        }
+
+        CpuTopology topology = new CpuTopology(root);
+
+        assertEquals(3, topology.clusterCount());
+        assertEquals(2, topology.cores().get(7).cluster);
+        assertArrayEquals(new int[] {4, 5, 6, 7}, topology.cpusFor(CpuTopology.AFFINITY_PERFORMANCE));
+        assertArrayEquals(new int[] {0, 1, 2, 3}, topology.cpusFor(CpuTopology.AFFINITY_EFFICIENCY));
+    }
+
+    @Test
+    public void homogeneousCpuYieldsAllOnlineCores() throws IOException {
+        write("possible", "0-3");
+        write("online", "0-2");
+        for (int cpu = 0; cpu <= 3; cpu++) {
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "2000000");
+        }
+
+        CpuTopology topology = new CpuTopology(root);
+
+        assertEquals(1, topology.clusterCount());
+        assertArrayEquals(new int[] {0, 1, 2}, topology.cpusFor(CpuTopology.AFFINITY_PERFORMANCE));
+        assertArrayEquals(new int[] {0, 1, 2}, topology.cpusFor(CpuTopology.AFFINITY_EFFICIENCY));
+    }
+
+    @Test
+    public void validatesPolicyNames() {
+        assertTrue(CpuTopology.isValidPolicy(CpuTopology.AFFINITY_PERFORMANCE));
+        assertTrue(CpuTopology.isValidPolicy(CpuTopology.AFFINITY_EFFICIENCY));
+        assertTrue(CpuTopology.isValidPolicy(CpuTopology.AFFINITY_ALL));
+        assertFalse(CpuTopology.isValidPolicy("big"));
+        assertFalse(CpuTopology.isValidPolicy(null));
+    }
+
+    @Test
+    public void parsesKernelCpuLists() {
+        assertEquals("[0, 1, 2, 3, 6, 8, 9]", CpuTopology.parseCpuList("0-3,6,8-9\n").toString());
+        assertEquals("[1]", CpuTopology.parseCpuList("x,1").toString());
+        assertEquals("[]", CpuTopology.parseCpuList(null).toString());
+    }
+
+    private void write(String path, String value) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(value + "\n");
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
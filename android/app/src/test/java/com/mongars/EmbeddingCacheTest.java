@@ -0,0 +1,77 @@
+package com.mongars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmbeddingCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("embedding-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void persistedEntriesSurviveReopen() throws IOException {
+        File file = new File(dir, "cache.bin");
+        EmbeddingCache cache = new EmbeddingCache("model", 4, 8, EmbeddingCache.PRECISION_FLOAT32, file);
+        cache.put("hello", new float[] {1, 2, 3, 4}, 0);
+
+        EmbeddingCache reopened = new EmbeddingCache("model", 4, 8, EmbeddingCache.PRECISION_FLOAT32, file);
+        float[] out = new float[4];
+        assertTrue(reopened.get("hello", out, 0));
+        assertEquals(3f, out[2], 0f);
+    }
+
+    @Test
+    public void slotRewrittenByAnotherInstanceIsAMiss() throws IOException {
+        File file = new File(dir, "cache.bin");
+        EmbeddingCache stale = new EmbeddingCache("model", 4, 1, EmbeddingCache.PRECISION_FLOAT32, file);
+        stale.put("a", new float[] {1, 1, 1, 1}, 0);
+        EmbeddingCache current = new EmbeddingCache("model", 4, 1, EmbeddingCache.PRECISION_FLOAT32, file);
+
+        // The stale instance evicts "a" and reuses the only slot for "b".
+        stale.put("b", new float[] {2, 2, 2, 2}, 0);
+
+        assertFalse(current.get("a", new float[4], 0));
+        assertEquals(0, current.size());
+    }
+
+    @Test
+    public void invalidatedCacheNeitherReadsNorWrites() throws IOException {
+        File file = new File(dir, "cache.bin");
+        EmbeddingCache old = new EmbeddingCache("model", 4, 1, EmbeddingCache.PRECISION_FLOAT32, file);
+        old.put("a", new float[] {1, 1, 1, 1}, 0);
+        old.invalidate();
+        EmbeddingCache current = new EmbeddingCache("model", 4, 1, EmbeddingCache.PRECISION_FLOAT32, file);
+
+        old.put("b", new float[] {2, 2, 2, 2}, 0);
+        old.clear();
+
+        assertFalse(old.get("a", new float[4], 0));
+        float[] out = new float[4];
+        assertTrue(current.get("a", out, 0));
+        assertEquals(1f, out[0], 0f);
+    }
+}
@@ -0,0 +1,92 @@
+package com.mongars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HnswIndexTest {
+    private static final int DIMENSION = 16;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("hnsw").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void reopenWithoutSaveDropsUnsavedNodes() throws IOException {
+        File base = new File(dir, "index");
+        Random random = new Random(7);
+        HnswIndex index = new HnswIndex(base, DIMENSION, 8, 64, VectorQuantizer.NONE);
+        for (int i = 0; i < 200; i++) {
+            index.add("a" + i, null, randomVector(random), 0);
+        }
+        index.save();
+        for (int i = 0; i < 200; i++) {
+            index.add("b" + i, null, randomVector(random), 0);
+        }
+
+        // The process "dies" here: reopen from disk without a second save.
+        HnswIndex reopened = new HnswIndex(base, DIMENSION, 8, 64, VectorQuantizer.NONE);
+        assertEquals(200, reopened.nodeCount());
+        for (int i = 0; i < 50; i++) {
+            List<HnswIndex.Hit> hits = reopened.search(randomVector(random), 10, 64);
+            assertEquals(10, hits.size());
+            for (HnswIndex.Hit hit : hits) {
+                assertFalse(hit.id.startsWith("b"));
+            }
+        }
+    }
+
+    @Test
+    public void savedNodesSurviveReopen() throws IOException {
+        File base = new File(dir, "index");
+        Random random = new Random(11);
+        HnswIndex index = new HnswIndex(base, DIMENSION, 8, 64, VectorQuantizer.NONE);
+        float[][] vectors = new float[300][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = randomVector(random);
+            index.add("n" + i, null, vectors[i], 0);
+            if (i == 149) {
+                index.save();
+            }
+        }
+        index.save();
+
+        HnswIndex reopened = new HnswIndex(base, DIMENSION, 8, 64, VectorQuantizer.NONE);
+        assertEquals(300, reopened.nodeCount());
+        for (int i = 0; i < vectors.length; i += 30) {
+            assertEquals("n" + i, reopened.search(vectors[i], 1, 64).get(0).id);
+        }
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] v = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            v[i] = (float) random.nextGaussian();
+        }
+        return v;
+    }
+}
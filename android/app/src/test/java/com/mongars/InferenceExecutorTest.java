@@ -0,0 +1,53 @@
+package com.mongars;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class InferenceExecutorTest {
+    @Test
+    public void shutdownRunsTheDropHookOfEveryQueuedTask() throws InterruptedException {
+        InferenceExecutor executor = new InferenceExecutor("test", 8);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch cleaned = new CountDownLatch(1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        executor.submit(InferenceExecutor.PRIORITY_NORMAL, () -> {
+            running.countDown();
+            await(release);
+            events.add("ran current");
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        executor.submit(InferenceExecutor.PRIORITY_NORMAL, "a",
+                () -> events.add("ran a"), () -> events.add("dropped a"));
+        executor.submit(InferenceExecutor.PRIORITY_BACKGROUND, null,
+                () -> events.add("ran b"), () -> events.add("dropped b"));
+
+        executor.shutdown(cleaned::countDown);
+        release.countDown();
+
+        assertTrue(cleaned.await(5, TimeUnit.SECONDS));
+        assertTrue(events.contains("dropped a"));
+        assertTrue(events.contains("dropped b"));
+        assertTrue(events.contains("ran current"));
+        assertFalse(events.contains("ran a"));
+        assertFalse(events.contains("ran b"));
+        assertEquals(0, executor.pendingCount());
+        assertFalse(executor.submit(InferenceExecutor.PRIORITY_NORMAL, () -> { }));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -11,6 +11,7 @@ export function registerLLMPlugins(pluginManager, context) {
           return context.generateWeb(prompt, maxTokens, temperature);
         }
         const generateOptions = {
+          ...options,
           maxTokens,
           temperature,
           useSparseAttention,
@@ -23,4 +23,25 @@ export default class VectorIndexer {
       timestamp: new Date().toISOString(),
     });
   }
+
+  /**
+   * Index many exchanges with a single batched embedding call.
+   * @param {{ user: string, assistant: string, tools?: any[] }[]} entries
+   */
+  async indexBatch(entries) {
+    if (!entries?.length) return;
+    await this._ensureInit();
+    const embeddings = this.llm.embedBatch
+      ? await this.llm.embedBatch(entries.map((e) => e.user))
+      : await Promise.all(entries.map((e) => this.llm.embed(e.user)));
+    const timestamp = new Date().toISOString();
+    for (let i = 0; i < entries.length; i++) {
+      const { user, assistant, tools = [] } = entries[i];
+      await this.store.addVector(
+        `User: ${user}\nAssistant: ${assistant}`,
+        embeddings[i],
+        { user, assistant, tools, timestamp },
+      );
+    }
+  }
 }
@@ -196,6 +196,7 @@ export class ContextEngineer {
         llmService: this.llmService,
         sparseAttention,
       });
+    this.tokenizer = this.contextEvaluator.tokenizer ?? null;
     this.maxContextTokens = 768;
     this.conversationSummaryLength = 128;
     this.useDynamicTokenBudgeting = true;
@@ -344,23 +345,31 @@ export class ContextEngineer {
 
       return {
         text: summaryResult.text,
-        tokenCount: this._estimateTokens(summaryResult.text),
+        tokenCount: await this._countTokens(summaryResult.text),
       };
     } catch (error) {
       console.error("Hierarchical summarization failed:", error);
-      return {
-        text: conversationHistory
-          .slice(-2)
-          .map((m) => m.content)
-          .join("\n"),
-        tokenCount: this._estimateTokens(
-          conversationHistory
-            .slice(-2)
-            .map((m) => m.content)
-            .join("\n"),
-        ),
-      };
+      const text = conversationHistory
+        .slice(-2)
+        .map((m) => m.content)
+        .join("\n");
+      return { text, tokenCount: await this._countTokens(text) };
+    }
+  }
+
+  /**
+   * Count tokens with the loaded model's own tokenizer when the LLM service
+   * has one loaded, falling back to the tiktoken/length estimate otherwise.
+   */
+  async _countTokens(text) {
+    if (this.llmService?.hasNativeTokenizer?.()) {
+      try {
+        return await this.llmService.countTokens(text);
+      } catch {
+        // Fall through to the estimate.
+      }
     }
+    return this._estimateTokens(text);
   }
 
   _estimateTokens(text) {
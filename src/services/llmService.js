@@ -1,4 +1,4 @@
-import { NativeModules, Platform } from "react-native";
+import { NativeEventEmitter, NativeModules, Platform } from "react-native";
 import LLM from "../specs/NativeLLM"; // Turbo (preferred) with legacy fallback
 import { getDeviceProfile } from "../utils/deviceUtils";
 import { PluginManager } from "../architecture/pluginManager";
@@ -7,9 +7,18 @@ import { registerLLMPlugins } from "../architecture/pluginSetup";
 import { setupLLMDI } from "../architecture/diSetup";
 import { ensureModelDownloaded } from "../utils/modelDownloader";
 import { MODEL_CONFIG } from "../config/model";
+import {
+  unpackEmbeddings,
+  unpackQuantizedEmbeddings,
+  unpackTokens,
+} from "../utils/embeddingCodec";
 
 class LLMService {
   #pendingQuantAdjust = null;
+  #streamCounter = 0;
+  #emitter = null;
+  #trimSubscription = null;
+  #trimListeners = new Set();
 
   constructor() {
     this.isWeb = Platform.OS === "web";
@@ -77,7 +86,16 @@ class LLMService {
     }
   }
 
-  async loadModel(modelPath) {
+  /**
+   * Load a model. On Android `options` is forwarded to the native module
+   * (`handle`, `useMmap`, `useMlock`, `warmup`, `prefillThreads`,
+   * `decodeThreads`, `calibrateThreads`, `affinity`, `kvCacheType`, ...) and
+   * `onProgress`, when given, receives the `llamaLoadProgress` events emitted
+   * while the weights are mapped and the context is created.
+   */
+  async loadModel(modelPath, options = {}) {
+    const { onProgress, ...loadOptions } = options;
+    let subscription = null;
     try {
       let result;
 
@@ -90,9 +108,20 @@ class LLMService {
         // avoid a signature mismatch we pass an empty options object on
         // Android and omit it on iOS.
         if (Platform.OS === "android") {
+          if (onProgress) {
+            if (!this.#emitter) {
+              this.#emitter = new NativeEventEmitter(this.nativeModule);
+            }
+            subscription = this.#emitter.addListener(
+              "llamaLoadProgress",
+              onProgress,
+            );
+          }
           result = await this.nativeModule.loadModel(modelPath, {
             contextSize: 4096,
+            ...loadOptions,
           });
+          this.#watchMemoryTrim();
         } else {
           result = await this.nativeModule.loadModel(modelPath);
         }
@@ -111,6 +140,8 @@ class LLMService {
     } catch (error) {
       console.error("Failed to load model:", error);
       throw error;
+    } finally {
+      subscription?.remove();
     }
   }
 
@@ -187,6 +218,183 @@ class LLMService {
     }
   }
 
+  /**
+   * Generate completions for several independent prompts at once. On Android
+   * the prompts are decoded together by the native continuous batcher
+   * (`parallel: true`), outside the chat history; elsewhere they run one
+   * after another. Resolves with one response per prompt, in order.
+   */
+  async generateParallel(prompts, options = {}) {
+    const { maxTokens = 256, temperature = 0.7, ...rest } = options;
+    if (this.isWeb || Platform.OS !== "android") {
+      const responses = [];
+      for (const prompt of prompts) {
+        responses.push(await this.generate(prompt, maxTokens, temperature));
+      }
+      return responses;
+    }
+    if (!this.isReady) {
+      const loaded = await this.loadConfiguredModel();
+      if (!loaded) {
+        throw new Error("Model not loaded");
+      }
+    }
+    return Promise.all(
+      prompts.map((prompt) =>
+        this.nativeModule.generate(prompt, {
+          maxTokens,
+          temperature,
+          ...rest,
+          parallel: true,
+        }),
+      ),
+    );
+  }
+
+  /**
+   * Retrieval-augmented generation in a single native call: the query is
+   * embedded, searched in the on-device vector index named by
+   * `retrieval.index` and the top chunks are put into the prompt before
+   * generating. Resolves with the generation result plus `sources` and
+   * per-stage `timings`. Only available on Android.
+   */
+  async generateWithRetrieval(query, retrieval, options = {}) {
+    if (this.isWeb || !this.nativeModule?.ragGenerate) {
+      throw new Error("Fused retrieval is not supported on this platform");
+    }
+    if (!this.isReady) {
+      const loaded = await this.loadConfiguredModel();
+      if (!loaded) {
+        throw new Error("Model not loaded");
+      }
+    }
+    const { maxTokens = 256, temperature = 0.7, ...rest } = options;
+    return this.nativeModule.ragGenerate(query, retrieval, {
+      maxTokens,
+      temperature,
+      ...rest,
+    });
+  }
+
+  /**
+   * Generate a value that conforms to `schema` (a JSON schema object) and
+   * resolve with `{ value, text }`. On Android sampling is constrained by a
+   * grammar derived from the schema, so the output always parses and stops
+   * at the closing brace; elsewhere the model output is parsed as is.
+   */
+  async generateJSON(prompt, schema, options = {}) {
+    const { maxTokens = 256, temperature = 0.2, ...rest } = options;
+    const constrained = !this.isWeb && Platform.OS === "android";
+    const response = await this.generate(prompt, maxTokens, temperature, {
+      ...rest,
+      ...(constrained ? { jsonSchema: schema ?? {} } : {}),
+    });
+    const text = response.text.trim();
+    return { value: JSON.parse(text), text };
+  }
+
+  /**
+   * Stream a completion token by token. On Android the native module emits
+   * buffered `llamaToken` events while decoding and resolves with a summary
+   * containing `timeToFirstTokenMs` and `tokensPerSecond`. Other platforms
+   * fall back to a regular generation delivered as a single chunk.
+   */
+  async generateStream(prompt, onToken, options = {}) {
+    if (this.isWeb || Platform.OS !== "android") {
+      const response = await this.generate(
+        prompt,
+        options.maxTokens,
+        options.temperature,
+        options,
+      );
+      onToken?.(response.text);
+      return response;
+    }
+
+    if (!this.isReady) {
+      const loaded = await this.loadConfiguredModel();
+      if (!loaded) {
+        throw new Error("Model not loaded");
+      }
+    }
+
+    const requestId =
+      options.requestId ?? `js-stream-${Date.now()}-${++this.#streamCounter}`;
+    if (!this.#emitter) {
+      this.#emitter = new NativeEventEmitter(this.nativeModule);
+    }
+    const subscription = this.#emitter.addListener("llamaToken", (event) => {
+      if (event?.requestId === requestId) {
+        onToken?.(event.text);
+      }
+    });
+
+    try {
+      return await this.nativeModule.generate(prompt, {
+        maxTokens: 256,
+        temperature: 0.7,
+        ...options,
+        stream: true,
+        requestId,
+      });
+    } finally {
+      subscription.remove();
+    }
+  }
+
+  /**
+   * Stop a generation started with the given `requestId` (see
+   * `generateStream`). The original generate promise resolves with the text
+   * produced so far and `cancelled: true`. Resolves false when no matching
+   * request is pending or the native module does not support cancellation.
+   */
+  async cancelGeneration(requestId) {
+    if (this.isWeb || !this.nativeModule?.cancel) {
+      return false;
+    }
+    try {
+      return await this.nativeModule.cancel(requestId);
+    } catch (error) {
+      console.error("Failed to cancel generation:", error);
+      return false;
+    }
+  }
+
+  /**
+   * Subscribe to the `llamaMemoryTrim` events the native module emits while
+   * it sheds memory under system pressure. Each event names its `stage`
+   * ("dropCaches", "compactKVCache", "snapshotSession" or "unloadModel")
+   * and the trim `level`; a snapshot carries the `conversationId` to pass
+   * to `restoreSession` once the model is loaded again. Returns an object
+   * with `remove()`.
+   */
+  onMemoryTrim(listener) {
+    this.#trimListeners.add(listener);
+    this.#watchMemoryTrim();
+    return { remove: () => this.#trimListeners.delete(listener) };
+  }
+
+  #watchMemoryTrim() {
+    if (this.#trimSubscription || this.isWeb || Platform.OS !== "android") {
+      return;
+    }
+    if (!this.#emitter) {
+      this.#emitter = new NativeEventEmitter(this.nativeModule);
+    }
+    this.#trimSubscription = this.#emitter.addListener(
+      "llamaMemoryTrim",
+      (event) => {
+        if (event?.stage === "unloadModel") {
+          // The next generate reloads the configured model.
+          this.isReady = false;
+        }
+        for (const listener of this.#trimListeners) {
+          listener(event);
+        }
+      },
+    );
+  }
+
   async getPerformanceMetrics() {
     try {
       if (!this.isWeb) {
@@ -207,6 +415,21 @@ class LLMService {
     }
   }
 
+  async resetPerformanceMetrics() {
+    this.performanceMetrics = {
+      totalInferenceTime: 0,
+      inferenceCount: 0,
+      averageInferenceTime: 0,
+    };
+    if (!this.isWeb && this.nativeModule?.resetPerformanceMetrics) {
+      try {
+        await this.nativeModule.resetPerformanceMetrics();
+      } catch (error) {
+        console.error("Failed to reset performance metrics:", error);
+      }
+    }
+  }
+
   async adjustPerformanceMode(mode) {
     try {
       if (!this.isWeb) {
@@ -251,6 +474,141 @@ class LLMService {
     }
   }
 
+  /**
+   * Embed several texts at once. Uses the native `embedBatch` call when
+   * available (one bridge crossing and one native batch) and falls back to
+   * sequential `embed` calls otherwise. Always resolves with one vector per
+   * input text, in order. Pass `{ typed: true }` to receive Float32Array
+   * views over the packed native buffer instead of plain arrays.
+   */
+  async embedBatch(texts, options = {}) {
+    if (!Array.isArray(texts) || texts.length === 0) {
+      return [];
+    }
+    if (this.isWeb || !this.nativeModule?.embedBatch) {
+      const vectors = [];
+      for (const text of texts) {
+        vectors.push(await this.embed(text));
+      }
+      return vectors;
+    }
+    if (!this.isReady) {
+      throw new Error("Model not loaded");
+    }
+
+    try {
+      const { typed = false, ...nativeOptions } = options;
+      const result = await this.nativeModule.embedBatch(texts, {
+        format: "base64",
+        ...nativeOptions,
+      });
+      if (typeof result.data === "string") {
+        const views = unpackEmbeddings(result);
+        return typed ? views : views.map((view) => Array.from(view));
+      }
+      const { dimension, count, embeddings } = result;
+      const vectors = [];
+      for (let i = 0; i < count; i++) {
+        vectors.push(embeddings.slice(i * dimension, (i + 1) * dimension));
+      }
+      return vectors;
+    } catch (error) {
+      console.error("Batch embedding failed:", error);
+      throw error;
+    }
+  }
+
+  /**
+   * Embed texts and receive compact codes instead of floats: `"int8"`
+   * resolves with `{ codes, scale }` per text (a quarter of the float32
+   * size) and `"binary"` with `{ bits }` (one bit per dimension, compared
+   * with `hammingDistance`). Android only.
+   */
+  async embedBatchQuantized(texts, mode = "int8", options = {}) {
+    if (!Array.isArray(texts) || texts.length === 0) {
+      return [];
+    }
+    if (this.isWeb || !this.nativeModule?.embedBatch) {
+      throw new Error("Quantized embeddings are not supported on this platform");
+    }
+    if (!this.isReady) {
+      throw new Error("Model not loaded");
+    }
+    const result = await this.nativeModule.embedBatch(texts, {
+      ...options,
+      quantize: mode,
+    });
+    return unpackQuantizedEmbeddings(result);
+  }
+
+  /**
+   * Whether `countTokens` runs the loaded model's tokenizer rather than
+   * estimating from the text length.
+   */
+  hasNativeTokenizer() {
+    return (
+      !this.isWeb && Boolean(this.nativeModule?.countTokens) && this.isReady
+    );
+  }
+
+  /**
+   * Count tokens with the loaded model's tokenizer. Accepts a string
+   * (resolves with a number) or an array of strings (resolves with one
+   * count per text). Repeated texts are served from the native token
+   * cache. Without native support the count is estimated from the length.
+   */
+  async countTokens(texts, options = {}) {
+    const single = !Array.isArray(texts);
+    const list = single ? [texts] : texts;
+    if (list.length === 0) {
+      return [];
+    }
+    if (!this.hasNativeTokenizer()) {
+      const counts = list.map((text) => Math.ceil(text.length / 4));
+      return single ? counts[0] : counts;
+    }
+    const { counts } = await this.nativeModule.countTokens(list, options);
+    return single ? counts[0] : counts;
+  }
+
+  /**
+   * Tokenize with the loaded model's tokenizer and resolve with one
+   * Int32Array of token ids per text (or a single one for a string
+   * argument). Pass `{ addBos: true }` to prepend the BOS token. Android
+   * only.
+   */
+  async tokenize(texts, options = {}) {
+    const single = !Array.isArray(texts);
+    const list = single ? [texts] : texts;
+    if (this.isWeb || !this.nativeModule?.tokenize) {
+      throw new Error("Tokenization is not supported on this platform");
+    }
+    if (!this.isReady) {
+      throw new Error("Model not loaded");
+    }
+    const tokens = unpackTokens(
+      await this.nativeModule.tokenize(list, options),
+    );
+    return single ? tokens[0] : tokens;
+  }
+
+  /**
+   * Configure the native embedding cache: `{ capacity, precision, persist }`
+   * where precision is "float16" or "float32". Resolves with the cache
+   * stats, or null when the native module has no cache.
+   */
+  async configureEmbeddingCache(options = {}) {
+    if (this.isWeb || !this.nativeModule?.configureEmbeddingCache) {
+      return null;
+    }
+    try {
+      return await this.nativeModule.configureEmbeddingCache(options);
+    } catch (error) {
+      console.error("Failed to configure embedding cache:", error);
+      return null;
+    }
+  }
+
   async clearKVCache() {
     try {
       if (!this.isWeb) {
@@ -274,12 +632,20 @@ class LLMService {
     }
   }
 
+  /**
+   * Resolves with `{ size, maxSize }` in tokens. On Android the result also
+   * carries the KV cache memory: `bytes`, `allocatedBytes`, `bytesPerToken`
+   * and the cache element `type` (see the `kvCacheType` load option).
+   */
   async getKVCacheSize() {
     try {
       if (!this.isWeb) {
         const size = this.nativeModule?.getKVCacheSize
           ? await this.nativeModule.getKVCacheSize()
           : 0;
+        if (size && typeof size === "object") {
+          return size;
+        }
         const maxSize = this.nativeModule?.getKVCacheMaxSize
           ? await this.nativeModule.getKVCacheMaxSize()
           : 0;
@@ -0,0 +1,150 @@
+const BASE64_ALPHABET =
+  "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+const DECODE_TABLE = (() => {
+  const table = new Uint8Array(256).fill(255);
+  for (let i = 0; i < BASE64_ALPHABET.length; i++) {
+    table[BASE64_ALPHABET.charCodeAt(i)] = i;
+  }
+  return table;
+})();
+
+/**
+ * Decode a base64 string into a fresh byte buffer. Implemented with a lookup
+ * table so it does not depend on `atob` or `Buffer` being available in the
+ * JS runtime.
+ */
+export const decodeBase64 = (base64) => {
+  if (typeof base64 !== "string" || base64.length === 0) {
+    return new Uint8Array(0);
+  }
+  let end = base64.length;
+  while (end > 0 && base64[end - 1] === "=") end--;
+  const bytes = new Uint8Array(Math.floor((end * 3) / 4));
+
+  let out = 0;
+  let buffer = 0;
+  let bits = 0;
+  for (let i = 0; i < end; i++) {
+    const value = DECODE_TABLE[base64.charCodeAt(i)];
+    if (value === 255) {
+      throw new Error(`Invalid base64 character at index ${i}`);
+    }
+    buffer = (buffer << 6) | value;
+    bits += 6;
+    if (bits >= 8) {
+      bits -= 8;
+      bytes[out++] = (buffer >> bits) & 0xff;
+    }
+  }
+  return bytes;
+};
+
+/**
+ * Decode the packed little-endian float32 payload produced by
+ * `LlamaTurboModule.embedBatch(texts, { format: "base64" })`.
+ */
+export const decodeFloat32Base64 = (base64) => {
+  const bytes = decodeBase64(base64);
+  if (bytes.byteLength % 4 !== 0) {
+    throw new Error("Packed float32 payload length is not a multiple of 4");
+  }
+  return new Float32Array(bytes.buffer, 0, bytes.byteLength / 4);
+};
+
+/**
+ * Split a packed embedding batch into one Float32Array view per input text.
+ * The views share the decoded buffer, so no per-element copy happens.
+ */
+export const unpackEmbeddings = ({ data, dimension, count }) => {
+  const floats = decodeFloat32Base64(data);
+  const vectors = [];
+  for (let i = 0; i < count; i++) {
+    vectors.push(floats.subarray(i * dimension, (i + 1) * dimension));
+  }
+  return vectors;
+};
+
+/**
+ * Split a quantized batch from
+ * `LlamaTurboModule.embedBatch(texts, { quantize })` into one entry per
+ * input text. `int8-base64` yields `{ codes: Int8Array, scale }` where each
+ * value is `codes[i] * scale`; `binary-base64` yields `{ bits: Uint8Array }`
+ * with bit i of the vector in byte i / 8 at position i % 8. Entries are
+ * views over the decoded buffer.
+ */
+export const unpackQuantizedEmbeddings = ({
+  data,
+  encoding,
+  dimension,
+  count,
+  scales,
+}) => {
+  const bytes = decodeBase64(data);
+  const entries = [];
+  if (encoding === "int8-base64") {
+    const codes = new Int8Array(bytes.buffer, 0, bytes.byteLength);
+    for (let i = 0; i < count; i++) {
+      entries.push({
+        codes: codes.subarray(i * dimension, (i + 1) * dimension),
+        scale: scales[i],
+      });
+    }
+  } else if (encoding === "binary-base64") {
+    const stride = Math.ceil(dimension / 8);
+    for (let i = 0; i < count; i++) {
+      entries.push({ bits: bytes.subarray(i * stride, (i + 1) * stride) });
+    }
+  } else {
+    throw new Error(`Unsupported embedding encoding: ${encoding}`);
+  }
+  return entries;
+};
+
+/** Expand int8 codes back to approximate float values. */
+export const dequantizeInt8 = ({ codes, scale }) => {
+  const values = new Float32Array(codes.length);
+  for (let i = 0; i < codes.length; i++) {
+    values[i] = codes[i] * scale;
+  }
+  return values;
+};
+
+const POPCOUNT = (() => {
+  const table = new Uint8Array(256);
+  for (let i = 1; i < 256; i++) {
+    table[i] = (i & 1) + table[i >> 1];
+  }
+  return table;
+})();
+
+/** Number of differing bits between two packed binary embeddings. */
+export const hammingDistance = (a, b) => {
+  let distance = 0;
+  for (let i = 0; i < a.length; i++) {
+    distance += POPCOUNT[a[i] ^ b[i]];
+  }
+  return distance;
+};
+
+/**
+ * Split the packed token ids from `LlamaTurboModule.tokenize(texts)`
+ * (`int32le-base64`) into one Int32Array view per input text.
+ */
+export const unpackTokens = ({ data, encoding, counts }) => {
+  if (encoding !== "int32le-base64") {
+    throw new Error(`Unsupported token encoding: ${encoding}`);
+  }
+  const bytes = decodeBase64(data);
+  if (bytes.byteLength % 4 !== 0) {
+    throw new Error("Packed int32 payload length is not a multiple of 4");
+  }
+  const ids = new Int32Array(bytes.buffer, 0, bytes.byteLength / 4);
+  const tokens = [];
+  let offset = 0;
+  for (const count of counts) {
+    tokens.push(ids.subarray(offset, offset + count));
+    offset += count;
+  }
+  return tokens;
+};